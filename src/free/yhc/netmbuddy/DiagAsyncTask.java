@@ -28,6 +28,7 @@ import android.content.DialogInterface;
 import android.view.KeyEvent;
 import android.view.View;
 import free.yhc.netmbuddy.model.BGTask;
+import free.yhc.netmbuddy.model.TaskExecutor;
 import free.yhc.netmbuddy.model.UnexpectedExceptionHandler;
 import free.yhc.netmbuddy.utils.Utils;
 
@@ -88,7 +89,8 @@ UnexpectedExceptionHandler.Evidence {
                          CharSequence msg,
                          boolean cancelable,
                          boolean interruptOnCancel) {
-        super();
+        // User is waiting for the result in front of modal dialog.
+        super(TaskExecutor.Lane.UI);
         UnexpectedExceptionHandler.get().registerModule(this);
         mContext= context;
         mWorker = listener;
@@ -50,6 +50,7 @@ import free.yhc.netmbuddy.PlaylistAdapter.ItemButton;
 import free.yhc.netmbuddy.db.ColPlaylist;
 import free.yhc.netmbuddy.db.ColVideo;
 import free.yhc.netmbuddy.db.DB;
+import free.yhc.netmbuddy.model.OfflineStore;
 import free.yhc.netmbuddy.model.Policy;
 import free.yhc.netmbuddy.model.SearchSuggestionProvider;
 import free.yhc.netmbuddy.model.UnexpectedExceptionHandler;
@@ -64,17 +65,12 @@ UnexpectedExceptionHandler.Evidence {
     private static final boolean DBG = false;
     private static final Utils.Logger P = new Utils.Logger(PlaylistActivity.class);
 
+    // Other information of videos are loaded by player when they are used.
     private static final ColVideo[] sVideoProjectionToPlay
-        = new ColVideo[] { ColVideo.VIDEOID,
-                           ColVideo.TITLE,
-                           ColVideo.AUTHOR,
-                           ColVideo.VOLUME,
-                           ColVideo.PLAYTIME};
-    private static final int COLI_VID_YTVID     = 0;
-    private static final int COLI_VID_TITLE     = 1;
-    private static final int COLI_VID_AUTHOR    = 2;
-    private static final int COLI_VID_VOLUME    = 3;
-    private static final int COLI_VID_PLAYTIME  = 4;
+        = new ColVideo[] { ColVideo.ID,
+                           ColVideo.VIDEOID };
+    private static final int COLI_VID_ID        = 0;
+    private static final int COLI_VID_YTVID     = 1;
 
     private final DB            mDb = DB.get();
     private final YTPlayer      mMp = YTPlayer.get();
@@ -102,6 +98,14 @@ UnexpectedExceptionHandler.Evidence {
         return (PlaylistAdapter)mListv.getAdapter();
     }
 
+    /**
+     * Videos are played in order of title if it's not shuffled.
+     */
+    private static ColVideo
+    getPlayOrderColumn() {
+        return Utils.isPrefSuffle()? null: ColVideo.TITLE;
+    }
+
     /**
      * Closing cursor is this functions responsibility.
      * DO NOT close cursor by caller.
@@ -124,11 +128,8 @@ UnexpectedExceptionHandler.Evidence {
         ViewGroup playerv = (ViewGroup)findViewById(R.id.player);
         playerv.setVisibility(View.VISIBLE);
         mMp.startVideos(c,
+                        COLI_VID_ID,
                         COLI_VID_YTVID,
-                        COLI_VID_TITLE,
-                        COLI_VID_AUTHOR,
-                        COLI_VID_VOLUME,
-                        COLI_VID_PLAYTIME,
                         Utils.isPrefSuffle());
 
     }
@@ -140,7 +141,7 @@ UnexpectedExceptionHandler.Evidence {
 
     private void
     playAllMusics(View anchor) {
-        playMusics(mDb.queryVideos(sVideoProjectionToPlay, null, false));
+        playMusics(mDb.queryVideos(sVideoProjectionToPlay, getPlayOrderColumn(), true));
         UiUtils.showTextToast(this, R.string.msg_play_all_musics);
     }
 
@@ -822,9 +823,21 @@ UnexpectedExceptionHandler.Evidence {
             .run();
     }
 
+    private void
+    onContextMenuPinOffline(final AdapterContextMenuInfo info, boolean pin) {
+        if (pin
+            && 0 >= (Long)mDb.getPlaylistInfo(info.id, ColPlaylist.SIZE)) {
+            UiUtils.showTextToast(this, R.string.msg_empty_playlist);
+            return;
+        }
+        OfflineStore.get().setPinned(info.id, pin);
+        if (pin)
+            UiUtils.showTextToast(this, R.string.msg_pinned_offline);
+    }
+
     private void
     onListItemClick(View view, int position, long itemId) {
-        playMusics(mDb.queryVideos(itemId, sVideoProjectionToPlay, null, false));
+        playMusics(mDb.queryVideos(itemId, sVideoProjectionToPlay, getPlayOrderColumn(), true));
     }
 
     @Override
@@ -853,6 +866,14 @@ UnexpectedExceptionHandler.Evidence {
         case R.id.share:
             onContextMenuShare(info);
             return true;
+
+        case R.id.pin_offline:
+            onContextMenuPinOffline(info, true);
+            return true;
+
+        case R.id.unpin_offline:
+            onContextMenuPinOffline(info, false);
+            return true;
         }
         eAssert(false);
         return false;
@@ -864,7 +885,10 @@ UnexpectedExceptionHandler.Evidence {
         super.onCreateContextMenu(menu, v, menuInfo);
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.playlist_context, menu);
-        // AdapterContextMenuInfo mInfo = (AdapterContextMenuInfo)menuInfo;
+        AdapterContextMenuInfo mInfo = (AdapterContextMenuInfo)menuInfo;
+        boolean pinned = OfflineStore.get().isPinned(mInfo.id);
+        menu.findItem(R.id.pin_offline).setVisible(!pinned);
+        menu.findItem(R.id.unpin_offline).setVisible(pinned);
     }
 
     @Override
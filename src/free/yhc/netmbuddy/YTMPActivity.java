@@ -24,6 +24,7 @@ import android.app.Activity;
 import android.content.Intent;
 import android.content.res.Configuration;
 import android.os.Bundle;
+import free.yhc.netmbuddy.model.YTPlayer;
 import free.yhc.netmbuddy.utils.Utils;
 
 public class YTMPActivity extends Activity {
@@ -35,6 +36,9 @@ public class YTMPActivity extends Activity {
     onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        // Continue playing of last session if it was not finished normally.
+        YTPlayer.get().resumeLastSession();
+
         Intent i = new Intent(this, PlaylistActivity.class);
         startActivity(i);
         finish();
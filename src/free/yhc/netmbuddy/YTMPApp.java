@@ -29,7 +29,11 @@ import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.preference.PreferenceManager;
 import free.yhc.netmbuddy.db.DB;
+import free.yhc.netmbuddy.model.CacheIndex;
+import free.yhc.netmbuddy.model.CacheWarmer;
 import free.yhc.netmbuddy.model.NotiManager;
+import free.yhc.netmbuddy.model.OfflineStore;
+import free.yhc.netmbuddy.model.Policy;
 import free.yhc.netmbuddy.model.RTState;
 import free.yhc.netmbuddy.model.UnexpectedExceptionHandler;
 import free.yhc.netmbuddy.model.YTPlayer;
@@ -126,6 +130,14 @@ public class YTMPApp extends Application {
         YTPlayer.get();
         LockScreenActivity.ScreenMonitor.init();
         YTPlayerLifeSupportService.init();
+        // Files may be broken if app or device crashed at last run.
+        // Broken files are quarantined at background.
+        // Quarantined ones are downloaded again at next sync.
+        // Player doesn't play broken file regardless of this. See CacheIndex.isValid().
+        CacheIndex.verifyAsync(new String[] { Policy.APPDATA_VIDDIR, Policy.APPDATA_WARMDIR });
+        // Resume downloading pinned playlists.
+        OfflineStore.get().sync();
+        CacheWarmer.get().start();
     }
 
     @Override
@@ -41,6 +41,7 @@ import android.widget.AdapterView.AdapterContextMenuInfo;
 import free.yhc.netmbuddy.db.DB;
 import free.yhc.netmbuddy.model.MultiThreadRunner;
 import free.yhc.netmbuddy.model.MultiThreadRunner.Job;
+import free.yhc.netmbuddy.model.NetAdmission;
 import free.yhc.netmbuddy.model.Policy;
 import free.yhc.netmbuddy.model.UnexpectedExceptionHandler;
 import free.yhc.netmbuddy.model.YTConstants;
@@ -96,7 +97,9 @@ UnexpectedExceptionHandler.Evidence {
                                              e.media.title,
                                              e.author.name,
                                              playtm,
-                                             Policy.DEFAULT_VIDEO_VOLUME);
+                                             Policy.DEFAULT_VIDEO_VOLUME,
+                                             "",
+                                             NetAdmission.TrafficClass.IMPORT);
     }
 
     private Err
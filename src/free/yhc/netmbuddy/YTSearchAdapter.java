@@ -46,7 +46,12 @@ YTSearchHelper.LoadThumbnailDoneReceiver {
     protected YTFeed.Entry[]        mEntries;
 
     private Bitmap[]                mThumbnails;
+    // Thumbnail is requested but not loaded yet.
+    private boolean[]               mLoading;
     private YTSearchHelper          mHelper;
+    // Items shown to user - [mFirstVisible, mFirstVisible + mNrVisible).
+    private int                     mFirstVisible   = 0;
+    private int                     mNrVisible      = 0;
 
     YTSearchAdapter(Context context,
                     YTSearchHelper helper,
@@ -59,6 +64,7 @@ YTSearchHelper.LoadThumbnailDoneReceiver {
         mEntries = entries;
         mItemViews = new View[mEntries.length];
         mThumbnails = new Bitmap[mEntries.length];
+        mLoading = new boolean[mEntries.length];
 
         mHelper.setLoadThumbnailDoneRecevier(this);
         for (int i = 0; i < mItemViews.length; i++) {
@@ -71,17 +77,30 @@ YTSearchHelper.LoadThumbnailDoneReceiver {
             // Initialize thumbnail to ic_unknown_image
             UiUtils.setThumbnailImageView((ImageView)mItemViews[i].findViewById(R.id.thumbnail), null);
             setViewInvalid(mItemViews[i]);
-            final YTSearchHelper.LoadThumbnailArg arg
-                = new YTSearchHelper.LoadThumbnailArg(i,
-                                                      mEntries[i].media.thumbnailUrl,
-                                                      mCxt.getResources().getDimensionPixelSize(R.dimen.thumbnail_width),
-                                                      mCxt.getResources().getDimensionPixelSize(R.dimen.thumbnail_height));
             mThumbnails[i] = null;
-            if (null != mHelper)
-                mHelper.loadThumbnailAsync(arg);
+            loadThumbnail(i);
         }
     }
 
+    private void
+    loadThumbnail(int pos) {
+        if (null == mHelper)
+            return;
+
+        YTSearchHelper.LoadThumbnailArg arg
+            = new YTSearchHelper.LoadThumbnailArg(pos,
+                                                  mEntries[pos].media.thumbnailUrl,
+                                                  mCxt.getResources().getDimensionPixelSize(R.dimen.thumbnail_width),
+                                                  mCxt.getResources().getDimensionPixelSize(R.dimen.thumbnail_height));
+        mLoading[pos] = true;
+        mHelper.loadThumbnailAsync(arg);
+    }
+
+    private boolean
+    isVisible(int pos) {
+        return mFirstVisible <= pos && pos < mFirstVisible + mNrVisible;
+    }
+
 
     protected int
     pos2index(int pos) {
@@ -140,6 +159,42 @@ YTSearchHelper.LoadThumbnailDoneReceiver {
         return mThumbnails[pos];
     }
 
+    /**
+     * Called when items shown to user are changed - ex. list is scrolled.
+     * Thumbnails of items that become visible, are loaded first.
+     * Loading thumbnails of items that are scrolled off screen, is cancelled.
+     * They are loaded again when they become visible.
+     */
+    public void
+    onVisibleItemsChanged(int first, int nr) {
+        eAssert(Utils.isUiThread());
+        if (null == mHelper
+            || (first == mFirstVisible && nr == mNrVisible))
+            return;
+
+        int oldFirst = mFirstVisible;
+        int oldNr = mNrVisible;
+        mFirstVisible = first;
+        mNrVisible = nr;
+        for (int i = oldFirst; i < oldFirst + oldNr && i < mLoading.length; i++) {
+            if (!isVisible(i)
+                && mLoading[i]) {
+                mHelper.cancelThumbnailAsync(i);
+                mLoading[i] = false;
+            }
+        }
+
+        for (int i = first; i < first + nr && i < mThumbnails.length; i++) {
+            if (i >= oldFirst && i < oldFirst + oldNr)
+                continue; // already visible.
+            if (null != mThumbnails[i])
+                continue;
+            if (!mLoading[i])
+                loadThumbnail(i);
+            mHelper.prioritizeThumbnailAsync(i);
+        }
+    }
+
 
     @Override
     public void
@@ -150,12 +205,13 @@ YTSearchHelper.LoadThumbnailDoneReceiver {
             return; // invalid callback.
         }
 
+        int i = (Integer)arg.tag;
+        mLoading[i] = false;
         if (YTSearchHelper.Err.NO_ERR != err) {
             ; // TODO set to something else...
         } else {
             // View is NOT reused here.
             // So, I don't need to worry about issues comes from reusing view in the list.
-            int i = (Integer)arg.tag;
             ImageView iv = (ImageView)mItemViews[i].findViewById(R.id.thumbnail);
             mThumbnails[i] = bm;
             iv.setImageBitmap(bm);
@@ -185,7 +241,6 @@ YTSearchHelper.LoadThumbnailDoneReceiver {
     public View
     getView(int position, View convertView, ViewGroup parent) {
         View v = mItemViews[position];
-
         if (isViewValid(position))
             return v;
 
@@ -30,6 +30,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.animation.AnimationUtils;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
@@ -341,6 +342,19 @@ YTSearchHelper.SearchDoneReceiver {
                 onListItemClick(view, position, itemId);
             }
         });
+        mListv.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void
+            onScrollStateChanged(AbsListView view, int scrollState) { }
+
+            @Override
+            public void
+            onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                YTSearchAdapter adapter = getAdapter();
+                if (null != adapter)
+                    adapter.onVisibleItemsChanged(firstVisibleItem, visibleItemCount);
+            }
+        });
         setToPrimary(isPrimary());
         return fl;
     }
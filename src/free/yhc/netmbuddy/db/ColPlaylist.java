@@ -42,7 +42,8 @@ public enum ColPlaylist implements DB.Col {
     // ENUM name can be changed without affecting DB
     RESERVED0       ("reserved0",       "text",     "\"\"", ""),
     RESERVED1       ("reserved1",       "text",     "\"\"", ""),
-    RESERVED2       ("reserved2",       "integer",  "0",    ""),
+    // 1 if playlist is pinned for offline playback. See OfflineStore.
+    PINNED          ("reserved2",       "integer",  "0",    ""),
     RESERVED3       ("reserved3",       "integer",  "0",    ""),
     RESERVED4       ("reserved4",       "blob",     "\"\"", ""),
 
@@ -64,8 +64,8 @@ public enum ColVideo implements DB.Col {
         // newly added at DB version 2
         // --------------------------------------------------------------------
         AUTHOR          ("author",          "text",     "\"\"", ""), // YTFeed.Author.name
-        // Belows are not used yet.
         NRPLAYED        ("nrplayed",        "integer",  "0",    ""), // # of played
+        // Belows are not used yet.
         REL_VIDEOS_FEED ("relvideosfeed",   "text",     "\"\"", ""), // feeds for relative videos.
         // Reserved fields for future use
         // ENUM name can be changed without affecting DB
@@ -832,6 +832,14 @@ UnexpectedExceptionHandler.Evidence {
         return updateVideo(ColVideo.VIDEOID, ytvid, ColVideo.TIME_PLAYED, time);
     }
 
+    public void
+    increaseVideoPlayCount(String ytvid) {
+        mDb.execSQL("UPDATE " + TABLE_VIDEO
+                    + " SET " + ColVideo.NRPLAYED.getName() + " = " + ColVideo.NRPLAYED.getName() + " + 1"
+                    + " WHERE " + ColVideo.VIDEOID.getName() + " = " + DatabaseUtils.sqlEscapeString(ytvid));
+        markBooleanWatcherChanged(mVidTblWM);
+    }
+
     public int
     updateVideoVolume(String ytvid, int volume) {
         return updateVideo(ColVideo.VIDEOID, ytvid, ColVideo.VOLUME, volume);
@@ -951,6 +959,24 @@ UnexpectedExceptionHandler.Evidence {
         return mDb.rawQuery(DBUtils.buildQueryVideosSQL(plid, cols, null, null, colOrderBy, asc), null);
     }
 
+    /**
+     * Most played videos first. Recently played one first among videos played same times.
+     * @param minPlayed
+     *   videos played less than this number of times are excluded.
+     * @param limit
+     *   max number of rows.
+     */
+    public Cursor
+    queryFrequentlyPlayedVideos(ColVideo[] cols, int minPlayed, int limit) {
+        return mDb.query(TABLE_VIDEO,
+                         DBUtils.getColNames(cols),
+                         ColVideo.NRPLAYED.getName() + " >= " + minPlayed,
+                         null, null, null,
+                         DBUtils.buildSQLOrderBy(false, ColVideo.NRPLAYED, false)
+                         + ", " + DBUtils.buildSQLOrderBy(false, ColVideo.TIME_PLAYED, false),
+                         String.valueOf(limit));
+    }
+
     // NOTE
     // Usually, number of videos in the playlist at most 10,000;
     // And user usually expects so-called "sub string search" (Not token search).
@@ -989,6 +1015,25 @@ UnexpectedExceptionHandler.Evidence {
                          null, null, null, null);
     }
 
+    /**
+     * Order of rows is NOT same with order of 'vids'.
+     * @param vids
+     *   video ids.
+     */
+    public Cursor
+    queryVideos(long[] vids, ColVideo[] cols) {
+        eAssert(cols.length > 0 && vids.length > 0);
+        StringBuilder sbldr = new StringBuilder(vids.length * 8);
+        sbldr.append(ColVideo.ID.getName()).append(" IN (").append(vids[0]);
+        for (int i = 1; i < vids.length; i++)
+            sbldr.append(", ").append(vids[i]);
+        sbldr.append(")");
+        return mDb.query(TABLE_VIDEO,
+                         DBUtils.getColNames(cols),
+                         sbldr.toString(),
+                         null, null, null, null);
+    }
+
     /**
      * Returned value can be type-casted to one of follows
      *  - Long
@@ -50,7 +50,7 @@ class DBUpgrader {
         db.execSQL(buildAddColumnSQL(DB.getPlaylistTableName(), ColPlaylist.THUMBNAIL_YTVID));
         db.execSQL(buildAddColumnSQL(DB.getPlaylistTableName(), ColPlaylist.RESERVED0));
         db.execSQL(buildAddColumnSQL(DB.getPlaylistTableName(), ColPlaylist.RESERVED1));
-        db.execSQL(buildAddColumnSQL(DB.getPlaylistTableName(), ColPlaylist.RESERVED2));
+        db.execSQL(buildAddColumnSQL(DB.getPlaylistTableName(), ColPlaylist.PINNED));
         db.execSQL(buildAddColumnSQL(DB.getPlaylistTableName(), ColPlaylist.RESERVED3));
         db.execSQL(buildAddColumnSQL(DB.getPlaylistTableName(), ColPlaylist.RESERVED4));
 
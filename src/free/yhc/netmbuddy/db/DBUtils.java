@@ -145,8 +145,8 @@ class DBUtils {
 
         String orderBy = buildSQLOrderBy(true, colOrderBy, asc);
         // NOTE
-        // There is NO USE CASE requiring sorted cursor for videos.
-        // result of querying videos don't need to be sorted cursor.
+        // Order-by column is not prefixed with table name.
+        // So, column that exists only at video table - ex. title - should be used.
         String mrefTable = DB.getVideoRefTableName(plid);
         sql += sel + " FROM " + DB.getVideoTableName() + ", " + mrefTable
                 + " WHERE " + mrefTable + "." + ColVideoRef.VIDEOID.getName()
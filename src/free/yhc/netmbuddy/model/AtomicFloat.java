@@ -79,6 +79,16 @@ public class AtomicFloat extends Number {
         return Float.intBitsToFloat(mBits.getAndSet(Float.floatToIntBits(newValue)));
     }
 
+    public final float
+    addAndGet(float delta) {
+        while (true) {
+            int bits = mBits.get();
+            float next = Float.intBitsToFloat(bits) + delta;
+            if (mBits.compareAndSet(bits, Float.floatToIntBits(next)))
+                return next;
+        }
+    }
+
     public final boolean
     weakCompareAndSet(float expect, float update) {
         return mBits.weakCompareAndSet(Float.floatToIntBits(expect),
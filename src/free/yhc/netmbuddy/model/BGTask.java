@@ -33,6 +33,9 @@
 //
 // Additional advantage is, I can control it even at Java thread level :).
 //
+// Background job is run at a thread of shared TaskExecutor instead of creating new thread for each task.
+// Priority of task decides the lane of TaskExecutor.
+//
 // [ WARNING ]
 // -----------
 // DO NOT make this CLASS DIRTY!
@@ -62,8 +65,19 @@ public abstract class BGTask<R> {
 
     private static final String DEFAULT_THREAD_NAME = "BGTask";
 
-    private final Thread            mThread;
+    private final TaskExecutor.Lane mLane;
     private final Handler           mOwner;
+    private final Runnable          mBgRunnable = new Runnable() {
+        @Override
+        public void
+        run() {
+            bgRun();
+        }
+    };
+    private volatile String         mName;
+    // Thread running background job. null if job is not running.
+    // This is protected by mStateLock.
+    private Thread                  mThread = null;
     private final Object            mStateLock  = new Object();
     // NOTE
     // Why this special variable 'mUserCancel' is required?
@@ -136,9 +150,24 @@ public abstract class BGTask<R> {
         });
     }
 
+    private static TaskExecutor.Lane
+    laneOf(int priority) {
+        if (priority > PRIORITY_NORM)
+            return TaskExecutor.Lane.UI;
+        else if (priority > PRIORITY_MIDLOW)
+            return TaskExecutor.Lane.PLAYBACK;
+        else if (priority > PRIORITY_MIN)
+            return TaskExecutor.Lane.PREFETCH;
+        else
+            return TaskExecutor.Lane.BULK;
+    }
+
     private void
     bgRun() {
         R r = null;
+        Thread thd = Thread.currentThread();
+        String thdName = thd.getName();
+        thd.setName(mName);
         try {
             synchronized (mStateLock) {
                 switch (getStateLocked()) {
@@ -148,6 +177,7 @@ public abstract class BGTask<R> {
                 case STARTED:
                     // Normal case
                     setStateLocked(State.RUNNING);
+                    mThread = thd;
                     break;
 
                 default:
@@ -173,7 +203,12 @@ public abstract class BGTask<R> {
                 default:
                     ;// unexpected... just ignore it...
                 }
+                mThread = null;
             }
+            // Thread is shared with other tasks.
+            // Interrupt requested to this task SHOULD NOT be remained.
+            Thread.interrupted();
+            thd.setName(thdName);
         }
     }
 
@@ -204,25 +239,42 @@ public abstract class BGTask<R> {
     /**
      *
      * @param name
-     *   Thread name
+     *   Name of thread while background job is running.
      * @param owner
      *   Owner handler. All other action functions except for 'doAsyncTask' will be run on
      *     given owner handler's context. If null, UI context is used as default.
+     * @param lane
+     *   Lane of TaskExecutor where background job is run.
+     */
+    public BGTask(String name,
+                  Handler owner,
+                  TaskExecutor.Lane lane) {
+        mName = name;
+        mOwner = owner;
+        mLane = lane;
+    }
+
+    /**
      * @param priority
-     *   Java thread priority LOW[1, 10]High
+     *   Java thread priority LOW[1, 10]High.
+     *   This is mapped to lane of TaskExecutor.
      */
     public BGTask(String name,
                   Handler owner,
                   int priority) {
-        mThread = new Thread(name) {
-            @Override
-            public void
-            run() {
-                bgRun();
-            }
-        };
-        mThread.setPriority(priority);
-        mOwner = owner;
+        this(name, owner, laneOf(priority));
+    }
+
+    public BGTask(String name, TaskExecutor.Lane lane) {
+        this(name, Utils.getUiHandler(), lane);
+    }
+
+    public BGTask(Handler owner, TaskExecutor.Lane lane) {
+        this(DEFAULT_THREAD_NAME, owner, lane);
+    }
+
+    public BGTask(TaskExecutor.Lane lane) {
+        this(DEFAULT_THREAD_NAME, Utils.getUiHandler(), lane);
     }
 
     public BGTask(String name, int priority) {
@@ -243,12 +295,17 @@ public abstract class BGTask<R> {
 
     public final String
     getName() {
-        return mThread.getName();
+        return mName;
     }
 
     public final void
     setName(String name) {
-        mThread.setName(name);
+        mName = name;
+    }
+
+    public final TaskExecutor.Lane
+    getLane() {
+        return mLane;
     }
 
     public final State
@@ -280,7 +337,9 @@ public abstract class BGTask<R> {
 
     public final boolean
     isInterrupted() {
-        return mThread.isInterrupted();
+        synchronized (mStateLock) {
+            return null != mThread && mThread.isInterrupted();
+        }
     }
 
     public final void
@@ -311,6 +370,16 @@ public abstract class BGTask<R> {
                 synchronized(mStateLock) {
                     switch (getStateLocked()) {
                     case STARTED:
+                        // Background job is not started yet.
+                        // If it is still in the queue, it is cancelled without waiting free thread.
+                        if (TaskExecutor.get().remove(mLane, mBgRunnable)) {
+                            setStateLocked(State.CANCELING);
+                            onCancel();
+                            setStateLocked(State.CANCELLED);
+                            postOnCancelled();
+                            break;
+                        }
+                        // Job is just taken by thread - fall through.
                     case RUNNING:
                         setStateLocked(State.CANCELING);
                         if (DBG) P.v("before onCancel()");
@@ -324,7 +393,7 @@ public abstract class BGTask<R> {
                         // But, this blocks only background thread.
                         // This is NOT critical to user experience.
                         onCancel();
-                        if (interrupt)
+                        if (interrupt && null != mThread)
                             mThread.interrupt();
                         break;
 
@@ -353,7 +422,7 @@ public abstract class BGTask<R> {
 
                 if (canRun) {
                     onPreRun();
-                    mThread.start();
+                    TaskExecutor.get().execute(mLane, mBgRunnable);
                 }
             }
         });
@@ -0,0 +1,145 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+package free.yhc.netmbuddy.model;
+
+import free.yhc.netmbuddy.utils.Utils;
+
+// Estimate network throughput from actual transfers.
+//
+// Two exponentially weighted moving averages - fast and slow - are kept.
+// Weight of a sample is it's duration. So, long transfer affects more.
+// Smaller one of two is used as estimation.
+//   - fast one follows sudden drop of bandwidth quickly.
+//   - slow one doesn't follow sudden short burst.
+public class BandwidthEstimator {
+    private static final boolean DBG = false;
+    private static final Utils.Logger P = new Utils.Logger(BandwidthEstimator.class);
+
+    private static BandwidthEstimator sInstance = null;
+
+    private final Ewma  mFast = new Ewma(Policy.BWEST_FAST_HALFLIFE);
+    private final Ewma  mSlow = new Ewma(Policy.BWEST_SLOW_HALFLIFE);
+
+    private long        mTotalBytes = 0;
+    private long        mTotalTime  = 0; // ms
+    private int         mNrSamples  = 0;
+    private long        mLastBps    = 0;
+
+    private static class Ewma {
+        private final double    _mAlpha;
+        private double          _mEstimate      = 0;
+        private double          _mTotalWeight   = 0;
+
+        /**
+         * @param halfLife
+         *   in seconds.
+         */
+        Ewma(double halfLife) {
+            _mAlpha = Math.exp(Math.log(0.5) / halfLife);
+        }
+
+        void
+        add(double weight, double value) {
+            double adjAlpha = Math.pow(_mAlpha, weight);
+            _mEstimate = value * (1 - adjAlpha) + adjAlpha * _mEstimate;
+            _mTotalWeight += weight;
+        }
+
+        double
+        getEstimate() {
+            // Remove bias toward initial value(0).
+            double zeroFactor = 1 - Math.pow(_mAlpha, _mTotalWeight);
+            return zeroFactor > 0? _mEstimate / zeroFactor: 0;
+        }
+    }
+
+    private BandwidthEstimator() {
+    }
+
+    public static synchronized BandwidthEstimator
+    get() {
+        if (null == sInstance)
+            sInstance = new BandwidthEstimator();
+        return sInstance;
+    }
+
+    /**
+     * Thread safe.
+     * Too small transfer is ignored because it's rate is dominated by latency - not by bandwidth.
+     * @param bytes
+     * @param time
+     *   time(ms) taken to transfer.
+     */
+    public synchronized void
+    addSample(long bytes, long time) {
+        if (bytes < Policy.BWEST_MIN_SAMPLE_BYTES
+            || time <= 0)
+            return;
+
+        long bps = bytes * 8 * 1000 / time;
+        double weight = time / 1000.0;
+        mFast.add(weight, bps);
+        mSlow.add(weight, bps);
+        mTotalBytes += bytes;
+        mTotalTime += time;
+        mNrSamples++;
+        mLastBps = bps;
+        if (DBG) P.v("Sample : " + bps + " bps (" + bytes + " bytes / " + time + " ms)"
+                     + " => estimate : " + getEstimate());
+    }
+
+    /**
+     * @return
+     *   bits per second. -1 if there is not enough samples to estimate.
+     */
+    public synchronized long
+    getEstimate() {
+        if (mTotalBytes < Policy.BWEST_MIN_TOTAL_BYTES)
+            return -1;
+        return (long)Math.min(mFast.getEstimate(), mSlow.getEstimate());
+    }
+
+    public synchronized void
+    reset() {
+        mFast._mEstimate = 0;
+        mFast._mTotalWeight = 0;
+        mSlow._mEstimate = 0;
+        mSlow._mTotalWeight = 0;
+        mTotalBytes = 0;
+        mTotalTime = 0;
+        mNrSamples = 0;
+        mLastBps = 0;
+    }
+
+    /**
+     * For debugging.
+     */
+    public synchronized String
+    dump() {
+        return "[Bandwidth Estimator]\n"
+               + "  estimate     : " + getEstimate() + " bps\n"
+               + "  fast         : " + (long)mFast.getEstimate() + " bps\n"
+               + "  slow         : " + (long)mSlow.getEstimate() + " bps\n"
+               + "  last sample  : " + mLastBps + " bps\n"
+               + "  samples      : " + mNrSamples + "\n"
+               + "  total        : " + mTotalBytes + " bytes / " + mTotalTime + " ms";
+    }
+}
@@ -0,0 +1,318 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+package free.yhc.netmbuddy.model;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import free.yhc.netmbuddy.utils.Mp4Utils;
+import free.yhc.netmbuddy.utils.Utils;
+
+// Commit protocol and integrity check of downloaded video files.
+//
+// Downloaded file is committed by
+//   1. fsync data of temp file.
+//   2. write index record - size and checksum - to "<target file>.idx".
+//   3. rename temp file to target file.
+// Index record is written via temp file and rename, too.
+// NOTE
+// Index record is written before target file appears.
+// Otherwise, player may see target file without index record - and quarantine it - in the meantime.
+// If process or device crashes in the middle, index record without file
+//   or index record that doesn't match file, may remain.
+// And file without valid index record is never played.
+//
+// Before cached file is played, it is checked cheaply - index record, size, and mp4 box layout.
+// Broken file is moved to Policy.APPDATA_QUARANTINEDIR instead of being played.
+// Checksum is verified only at background - and only for files committed after last verification.
+// See verifyAsync().
+public class CacheIndex {
+    private static final boolean DBG = false;
+    private static final Utils.Logger P = new Utils.Logger(CacheIndex.class);
+
+    private static final String INDEX_EXT = ".idx";
+    private static final String TEMP_EXT = ".tmp";
+    // Time stamp of file system may be coarse. ex. 2 seconds at FAT.
+    private static final long   MTIME_SLACK = 2000; // ms
+
+    // For debugging.
+    private static final AtomicInteger sNrQuarantined = new AtomicInteger(0);
+
+    private static class Record {
+        final long size;
+        final long checksum;
+        Record(long aSize, long aChecksum) {
+            size = aSize;
+            checksum = aChecksum;
+        }
+    }
+
+    private CacheIndex() {
+    }
+
+    static File
+    getIndexFile(File f) {
+        return new File(f.getAbsolutePath() + INDEX_EXT);
+    }
+
+    private static boolean
+    isIndexFile(File f) {
+        return f.getName().endsWith(INDEX_EXT);
+    }
+
+    private static long
+    checksum(File f) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[64 * 1024];
+        FileInputStream fis = new FileInputStream(f);
+        try {
+            int n;
+            while (0 < (n = fis.read(buf)))
+                crc.update(buf, 0, n);
+        } finally {
+            fis.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Data of file is written to storage device - not just to page cache.
+     */
+    private static void
+    sync(File f) throws IOException {
+        FileOutputStream fos = new FileOutputStream(f, true);
+        try {
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static void
+    writeIndex(File f, Record r) throws IOException {
+        File idxf = getIndexFile(f);
+        File tmpf = new File(idxf.getAbsolutePath() + TEMP_EXT);
+        FileOutputStream fos = new FileOutputStream(tmpf);
+        try {
+            fos.write((r.size + " " + r.checksum).getBytes());
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmpf.renameTo(idxf)) {
+            tmpf.delete();
+            throw new IOException("Fail to rename index : " + idxf.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return
+     *   null if there is no valid index record.
+     */
+    private static Record
+    readIndex(File f) {
+        File idxf = getIndexFile(f);
+        if (!idxf.exists())
+            return null;
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(idxf));
+            String line = br.readLine();
+            if (null == line)
+                return null;
+            String[] toks = line.trim().split(" ");
+            if (2 != toks.length)
+                return null;
+            return new Record(Long.parseLong(toks[0]), Long.parseLong(toks[1]));
+        } catch (IOException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        } finally {
+            if (null != br)
+                try {
+                    br.close();
+                } catch (IOException e) { }
+        }
+    }
+
+    /**
+     * Commit completely downloaded temp file to target file.
+     * This is blocking IO operation. So, DO NOT call this at UI thread.
+     * @param tmpf
+     *   Verified file - see Mp4Utils.verify(). It is moved to 'outf'.
+     * @throws IOException
+     *   Target file is not committed.
+     */
+    static void
+    commit(File tmpf, File outf) throws IOException {
+        Record r = new Record(tmpf.length(), checksum(tmpf));
+        sync(tmpf);
+        writeIndex(outf, r);
+        if (!tmpf.renameTo(outf)) {
+            getIndexFile(outf).delete();
+            throw new IOException("Fail to rename : " + outf.getAbsolutePath());
+        }
+        if (DBG) P.v("Committed : " + outf.getAbsolutePath() + " (" + r.size + ")");
+    }
+
+    /**
+     * Cheap check that doesn't read whole file.
+     * Thread safe.
+     * @return
+     *   false if file is not committed or it is broken.
+     */
+    static boolean
+    isValid(File f) {
+        Record r = readIndex(f);
+        if (null == r
+            || f.length() != r.size)
+            return false;
+        try {
+            // 'moov' SHOULD exist and boxes SHOULD cover whole file.
+            Mp4Utils.verify(f);
+        } catch (IOException e) {
+            return false;
+        } catch (Mp4Utils.FormatException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * File and index record are moved out of the way. File is never played.
+     * Thread safe.
+     */
+    static void
+    quarantine(File f) {
+        if (DBG) P.w("Quarantine : " + f.getAbsolutePath());
+        sNrQuarantined.incrementAndGet();
+        File qdir = new File(Policy.APPDATA_QUARANTINEDIR);
+        qdir.mkdirs();
+        if (!f.renameTo(new File(qdir, f.getName())))
+            f.delete();
+        getIndexFile(f).delete();
+    }
+
+    /**
+     * @return
+     *   0 if verification has never been done.
+     */
+    private static long
+    readVerifiedTime() {
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(Policy.APPDATA_CACHE_VERIFIED));
+            String line = br.readLine();
+            return null == line? 0: Long.parseLong(line.trim());
+        } catch (IOException e) {
+            return 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        } finally {
+            if (null != br)
+                try {
+                    br.close();
+                } catch (IOException e) { }
+        }
+    }
+
+    private static void
+    writeVerifiedTime(long time) {
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(Policy.APPDATA_CACHE_VERIFIED);
+            fos.write(String.valueOf(time).getBytes());
+        } catch (IOException e) {
+            // Files are verified again at next run. That's all.
+            if (DBG) P.w("Fail to write verified time : " + e.getMessage());
+        } finally {
+            if (null != fos)
+                try {
+                    fos.close();
+                } catch (IOException e) { }
+        }
+    }
+
+    /**
+     * Verify checksum of files committed after last verification, at background.
+     * Files committed at last run but not verified yet - ex. app or device crashed right after commit -
+     *   are checked here.
+     * Other files are checked cheaply before being played. See isValid().
+     * Broken files are quarantined.
+     * Partially downloaded files - '.part' - are not touched.
+     * NOTE
+     * Downloads may commit files while verification is running.
+     * So, only stale index records are regarded as garbage.
+     */
+    public static void
+    verifyAsync(final String[] dirs) {
+        TaskExecutor.get().execute(TaskExecutor.Lane.BULK, new Runnable() {
+            @Override
+            public void
+            run() {
+                long start = System.currentTimeMillis() - MTIME_SLACK;
+                long verified = readVerifiedTime();
+                int nrVerified = 0;
+                for (String dir : dirs) {
+                    File[] fs = new File(dir).listFiles();
+                    if (null == fs)
+                        continue;
+                    for (File f : fs) {
+                        if (!f.isFile()
+                            || YTDownloader.isPartialFile(f))
+                            continue;
+                        if (isIndexFile(f)) {
+                            // Record of file that is already removed.
+                            if (f.lastModified() < start
+                                && !new File(f.getAbsolutePath().substring(0, f.getAbsolutePath().length()
+                                                                               - INDEX_EXT.length())).exists())
+                                f.delete();
+                            continue;
+                        }
+                        File idxf = getIndexFile(f);
+                        if (idxf.exists()
+                            && idxf.lastModified() < verified)
+                            continue; // verified at last run.
+                        nrVerified++;
+                        try {
+                            Record r = readIndex(f);
+                            if (isValid(f)
+                                && null != r
+                                && checksum(f) == r.checksum)
+                                continue;
+                        } catch (IOException ignored) { }
+                        quarantine(f);
+                    }
+                }
+                writeVerifiedTime(start);
+                if (DBG) P.v("Verified " + nrVerified + " : quarantined " + sNrQuarantined.get());
+            }
+        });
+    }
+}
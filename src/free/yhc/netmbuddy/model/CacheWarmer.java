@@ -0,0 +1,487 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+package free.yhc.netmbuddy.model;
+
+import static free.yhc.netmbuddy.utils.Utils.eAssert;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import free.yhc.netmbuddy.db.ColPlaylist;
+import free.yhc.netmbuddy.db.ColVideo;
+import free.yhc.netmbuddy.db.DB;
+import free.yhc.netmbuddy.utils.Utils;
+
+// Pre-fill video cache with videos that are likely to be played next.
+//
+// Prediction is based on play history at DB.
+//   - first videos of recently played playlists - ex. playlist for commute.
+//   - frequently played videos.
+// Predicted videos are downloaded to Policy.APPDATA_WARMDIR.
+// Unlike cache of YTPlayer, files are kept across app restarts.
+// Total size of warmed files is limited by Policy.CACHEWARM_MAX_BYTES.
+// Files of videos that are not predicted anymore, are removed at next prediction.
+//
+// Warming is done only while
+//   - player is idle,
+//   - network is unmetered and device is charging. See Policy.CACHEWARM_XXX.
+// So, warmed files are usually filled at night and used at the morning.
+//
+// NOTE
+// All functions SHOULD be called at UI thread.
+public class CacheWarmer implements
+UnexpectedExceptionHandler.Evidence {
+    private static final boolean DBG = false;
+    private static final Utils.Logger P = new Utils.Logger(CacheWarmer.class);
+
+    private static final String WLTAG = "CacheWarmer";
+    private static final String FILE_EXT = ".mp4";
+
+    private static CacheWarmer sInstance = null;
+
+    private final DB            mDb = DB.get();
+    // Videos to be downloaded - most likely one first.
+    private LinkedList<String>  mPending    = new LinkedList<String>();
+    private YTDownloader        mDnr        = null;
+    private String              mDnVid      = null;
+    private WakeLock            mWl         = null;
+    private boolean             mPredicting = false;
+    // Time of last prediction - System.currentTimeMillis(). 0 means 'never'.
+    private long                mPredictTime = 0;
+    // Total bytes of warmed files.
+    private long                mBytes      = 0;
+
+    // Statistics.
+    private int                 mNrPredicted = 0;
+    private int                 mNrWarmed   = 0;
+
+    private final Runnable mRecheck = new Runnable() {
+        @Override
+        public void
+        run() {
+            schedule();
+        }
+    };
+
+    private static class Prediction {
+        // Most likely one first.
+        final LinkedList<String>    pending = new LinkedList<String>();
+        long                        bytes   = 0;
+        int                         nrPredicted = 0;
+    }
+
+    private CacheWarmer() {
+        UnexpectedExceptionHandler.get().registerModule(this);
+        YTPlayer.get().addPlayerStateListener(this, new YTPlayer.PlayerStateListener() {
+            @Override
+            public void
+            onStateChanged(YTPlayer.MPState from, int fromFlag,
+                           YTPlayer.MPState to,   int toFlag) {
+                if (from != to)
+                    schedule();
+            }
+
+            @Override
+            public void
+            onBufferingChanged(int percent) { }
+        });
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        Utils.getAppContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void
+            onReceive(Context context, Intent intent) {
+                schedule();
+            }
+        }, filter);
+    }
+
+    public static CacheWarmer
+    get() {
+        if (null == sInstance)
+            sInstance = new CacheWarmer();
+        return sInstance;
+    }
+
+    private static File
+    getFile(String ytvid) {
+        return new File(Policy.APPDATA_WARMDIR + ytvid + FILE_EXT);
+    }
+
+    /**
+     * Thread safe.
+     * @return
+     *   null if video is not warmed.
+     */
+    public static File
+    getWarmedFile(String ytvid) {
+        File f = getFile(ytvid);
+        return f.exists() && f.canRead()? f: null;
+    }
+
+    private static boolean
+    isPlayerIdle() {
+        switch (YTPlayer.get().playerGetState()) {
+        case INITIALIZED:
+        case PREPARING:
+        case PREPARED_AUDIO:
+        case PREPARED:
+        case STARTED:
+            return false;
+        default:
+            return true;
+        }
+    }
+
+    private static boolean
+    canWarm() {
+        return isPlayerIdle()
+               && Utils.isNetworkAvailable()
+               && (!Policy.CACHEWARM_WIFI_ONLY || Utils.isWifiConnected())
+               && (!Policy.CACHEWARM_CHARGING_ONLY || Utils.isCharging());
+    }
+
+    private void
+    acquireWakeLock() {
+        if (null != mWl)
+            return;
+        mWl = ((PowerManager)Utils.getAppContext().getSystemService(Context.POWER_SERVICE))
+                .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, WLTAG);
+        mWl.acquire();
+    }
+
+    private void
+    releaseWakeLock() {
+        if (null == mWl)
+            return;
+        mWl.release();
+        mWl = null;
+    }
+
+    /**
+     * Runs at background thread.
+     * @return
+     *   ids of recently played playlists - most recent one first.
+     */
+    private long[]
+    loadRecentPlaylists() {
+        // { playlist id, last played time }
+        ArrayList<long[]> pls = new ArrayList<long[]>();
+        Cursor c = mDb.queryPlaylist(new ColPlaylist[] { ColPlaylist.ID });
+        try {
+            if (!c.moveToFirst())
+                return new long[0];
+            do {
+                // Last time that any video of the playlist is played.
+                Cursor vc = mDb.queryVideos(c.getLong(0),
+                                            new ColVideo[] { ColVideo.TIME_PLAYED },
+                                            ColVideo.TIME_PLAYED,
+                                            false);
+                try {
+                    if (vc.moveToFirst()
+                        && vc.getLong(0) > 0)
+                        pls.add(new long[] { c.getLong(0), vc.getLong(0) });
+                } finally {
+                    vc.close();
+                }
+            } while (c.moveToNext());
+        } finally {
+            c.close();
+        }
+
+        Collections.sort(pls, new Comparator<long[]>() {
+            @Override
+            public int
+            compare(long[] pl0, long[] pl1) {
+                return pl0[1] > pl1[1]? -1: pl0[1] < pl1[1]? 1: 0;
+            }
+        });
+        long[] plids = new long[pls.size()];
+        for (int i = 0; i < plids.length; i++)
+            plids[i] = pls.get(i)[0];
+        return plids;
+    }
+
+    /**
+     * Runs at background thread.
+     * @return
+     *   ytvids of videos that are likely to be played - most likely one first.
+     */
+    private LinkedHashSet<String>
+    predict() {
+        LinkedHashSet<String> ytvids = new LinkedHashSet<String>();
+        // Starting playlist is most common. And it's the case that user waits for the first video.
+        // So, first videos of playlists come first.
+        long[] plids = loadRecentPlaylists();
+        for (int i = 0; i < plids.length && i < Policy.CACHEWARM_NR_PLAYLISTS; i++) {
+            // Same order with playlist view. See MusicsAdapter.
+            Cursor c = mDb.queryVideos(plids[i],
+                                       new ColVideo[] { ColVideo.VIDEOID },
+                                       ColVideo.TITLE,
+                                       true);
+            try {
+                for (int j = 0; j < Policy.CACHEWARM_NR_PLAYLIST_HEAD && c.moveToNext(); j++)
+                    ytvids.add(c.getString(0));
+            } finally {
+                c.close();
+            }
+        }
+
+        Cursor c = mDb.queryFrequentlyPlayedVideos(new ColVideo[] { ColVideo.VIDEOID },
+                                                   Policy.CACHEWARM_MIN_NRPLAYED,
+                                                   Policy.CACHEWARM_NR_FREQUENT);
+        try {
+            while (c.moveToNext())
+                ytvids.add(c.getString(0));
+        } finally {
+            c.close();
+        }
+        return ytvids;
+    }
+
+    /**
+     * Runs at background thread.
+     * Files of videos that are not predicted or exceed budget, are removed.
+     */
+    private Prediction
+    buildPrediction() {
+        Prediction pred = new Prediction();
+        HashSet<String> keep = new HashSet<String>();
+        LinkedHashSet<String> ytvids = predict();
+        pred.nrPredicted = ytvids.size();
+        for (String ytvid : ytvids) {
+            // Pinned video is already at local.
+            if (null != OfflineStore.getStoredFile(ytvid))
+                continue;
+            File f = getFile(ytvid);
+            if (f.exists()) {
+                if (pred.bytes + f.length() > Policy.CACHEWARM_MAX_BYTES)
+                    continue;
+                pred.bytes += f.length();
+            } else
+                // Size is not known until it is downloaded.
+                pred.pending.addLast(ytvid);
+            keep.add(ytvid);
+        }
+
+        File[] fs = new File(Policy.APPDATA_WARMDIR).listFiles();
+        if (null != fs) {
+            for (File f : fs) {
+                // ex. "<ytvid>.mp4" or "<ytvid>.mp4.part"
+                String name = f.getName();
+                int i = name.indexOf('.');
+                if (i < 0
+                    || !keep.contains(name.substring(0, i))) {
+                    if (DBG) P.v("Remove : " + name);
+                    f.delete();
+                }
+            }
+        }
+        return pred;
+    }
+
+    private void
+    predictAsync() {
+        mPredicting = true;
+        TaskExecutor.get().execute(TaskExecutor.Lane.BULK, new Runnable() {
+            @Override
+            public void
+            run() {
+                final Prediction pred = buildPrediction();
+                Utils.getUiHandler().post(new Runnable() {
+                    @Override
+                    public void
+                    run() {
+                        if (DBG) P.v("Predicted : " + pred.nrPredicted + ", to download " + pred.pending.size());
+                        mPredicting = false;
+                        mPredictTime = System.currentTimeMillis();
+                        mPending = pred.pending;
+                        mBytes = pred.bytes;
+                        mNrPredicted = pred.nrPredicted;
+                        schedule();
+                    }
+                });
+            }
+        });
+    }
+
+    private void
+    stopDownload() {
+        if (null == mDnr)
+            return;
+        // Partially downloaded data is kept to be resumed.
+        mDnr.close();
+        mPending.addFirst(mDnVid);
+        mDnr = null;
+        mDnVid = null;
+    }
+
+    /**
+     * @return
+     *   false if download cannot be started. Video is pushed back to pending queue in this case.
+     */
+    private boolean
+    startDownload(final String ytvid) {
+        YTDownloader dnr = new YTDownloader(NetAdmission.TrafficClass.IMPORT);
+        dnr.open("", new YTDownloader.DownloadDoneReceiver() {
+            @Override
+            public void
+            downloadDone(YTDownloader downloader, YTDownloader.DnArg arg, YTDownloader.Err err) {
+                downloader.close();
+                if (mDnr != downloader)
+                    return; // Already stopped.
+                mDnr = null;
+                mDnVid = null;
+                onDownloadDone(ytvid, arg.outf, err);
+            }
+        });
+        mDnr = dnr;
+        mDnVid = ytvid;
+        // Muxed stream is stored. So, it can be played at both video and audio mode.
+        YTDownloader.Err err = dnr.downloadResumable(ytvid,
+                                                     getFile(ytvid),
+                                                     YTPlayer.mapPrefToQScore(Utils.getPrefQuality()),
+                                                     0);
+        if (YTDownloader.Err.NO_ERR != err) {
+            // Try again at next schedule.
+            stopDownload();
+            return false;
+        }
+        return true;
+    }
+
+    private void
+    onDownloadDone(String ytvid, File f, YTDownloader.Err err) {
+        if (DBG) P.v("Download done : " + ytvid + " : " + err.name());
+        switch (err) {
+        case NO_ERR:
+            mNrWarmed++;
+            mBytes += f.length();
+            break;
+
+        case NETWORK_UNAVAILABLE:
+        case INTERRUPTED:
+            mPending.addFirst(ytvid);
+            break;
+
+        default:
+            // Warming is just a guess. Failed one is not worth retrying.
+            ;
+        }
+        schedule();
+    }
+
+    private void
+    schedule() {
+        Utils.getUiHandler().removeCallbacks(mRecheck);
+        if (!canWarm()) {
+            stopDownload();
+            releaseWakeLock();
+        } else if (null == mDnr
+                   && !mPredicting) {
+            if (mPending.isEmpty()
+                && System.currentTimeMillis() - mPredictTime >= Policy.CACHEWARM_INTERVAL)
+                predictAsync();
+            else {
+                while (!mPending.isEmpty()
+                       && mBytes < Policy.CACHEWARM_MAX_BYTES
+                       && null == mDnr) {
+                    String ytvid = mPending.removeFirst();
+                    if (!getFile(ytvid).exists()
+                        && !startDownload(ytvid))
+                        break;
+                }
+                if (mBytes >= Policy.CACHEWARM_MAX_BYTES)
+                    mPending.clear();
+            }
+        }
+
+        if (null != mDnr)
+            acquireWakeLock();
+        else
+            releaseWakeLock();
+        // Conditions may be changed in the meantime.
+        Utils.getUiHandler().postDelayed(mRecheck, Policy.CACHEWARM_RECHECK_INTERVAL);
+    }
+
+    // ========================================================================
+    //
+    //
+    //
+    // ========================================================================
+    /**
+     * Warming is started whenever conditions are met.
+     */
+    public void
+    start() {
+        eAssert(Utils.isUiThread());
+        schedule();
+    }
+
+    /**
+     * Warmed file is broken - ex. it cannot be played.
+     * @param f
+     *   Ignored if it is not a warmed file.
+     */
+    public void
+    invalidate(File f) {
+        eAssert(Utils.isUiThread());
+        if (!f.getAbsolutePath().startsWith(new File(Policy.APPDATA_WARMDIR).getAbsolutePath()))
+            return;
+        if (DBG) P.w("Invalidate : " + f.getAbsolutePath());
+        mBytes -= f.length();
+        f.delete();
+    }
+
+    /**
+     * Called when network state is changed. Warming is suspended or resumed.
+     */
+    public void
+    onNetworkChanged() {
+        eAssert(Utils.isUiThread());
+        schedule();
+    }
+
+    @Override
+    public String
+    dump(UnexpectedExceptionHandler.DumpLevel lvl) {
+        return this.getClass().getName() + "\n"
+               + "  downloading : " + mDnVid + "\n"
+               + "  pending : " + mPending.size() + "\n"
+               + "  bytes : " + mBytes + "\n"
+               + "  predicted : " + mNrPredicted + "\n"
+               + "  warmed : " + mNrWarmed;
+    }
+}
@@ -0,0 +1,122 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+package free.yhc.netmbuddy.model;
+
+import java.util.LinkedList;
+
+import android.os.SystemClock;
+import free.yhc.netmbuddy.utils.Utils;
+
+// Cancellation request shared by all layers of one operation.
+//
+// Owner of operation creates token and passes it down to lower layers - ex. YTDownloader -> NetLoader.
+// Each layer registers listener to stop it's blocking job - ex. abort socket read -
+//   instead of relying on Thread.interrupt() that doesn't wake up thread blocked at I/O.
+// Code that runs loop SHOULD also check isCancelled() at each iteration.
+//
+// NOTE
+// Token is one-shot. Once cancelled, it cannot be reused.
+public class CancelToken {
+    private static final boolean DBG = false;
+    private static final Utils.Logger P = new Utils.Logger(CancelToken.class);
+
+    private final String                        mName;
+    // Protected by 'this'.
+    private final LinkedList<OnCancelListener>  mListeners = new LinkedList<OnCancelListener>();
+    private volatile boolean    mCancelled  = false;
+    private volatile long       mCancelTime = 0;
+
+    public interface OnCancelListener {
+        /**
+         * Called at the thread that cancels token.
+         * So, this SHOULD be short and SHOULD NOT block.
+         */
+        void onCancel(CancelToken token);
+    }
+
+    public CancelToken(String name) {
+        mName = name;
+    }
+
+    public String
+    getName() {
+        return mName;
+    }
+
+    /**
+     * Polling this is cheap enough to be called at each iteration of I/O loop.
+     */
+    public boolean
+    isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return
+     *   SystemClock.elapsedRealtime() at the moment token is cancelled. 0 if not cancelled.
+     *   Used to measure how long work continues after cancel.
+     */
+    public long
+    getCancelTime() {
+        return mCancelTime;
+    }
+
+    /**
+     * If token is already cancelled, listener is called immediately at caller's context.
+     */
+    public void
+    addOnCancelListener(OnCancelListener listener) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mListeners.addLast(listener);
+                return;
+            }
+        }
+        listener.onCancel(this);
+    }
+
+    public synchronized void
+    removeOnCancelListener(OnCancelListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Thread safe. Calling more than once is harmless.
+     */
+    public void
+    cancel() {
+        OnCancelListener[] listeners;
+        synchronized (this) {
+            if (mCancelled)
+                return;
+            mCancelTime = SystemClock.elapsedRealtime();
+            mCancelled = true;
+            listeners = mListeners.toArray(new OnCancelListener[0]);
+            mListeners.clear();
+        }
+        if (DBG) P.v("Cancel : " + mName + " (" + listeners.length + " listeners)");
+        // Listeners are called outside of lock.
+        // Listener may add/remove other listeners - ex. closing NetLoader.
+        for (OnCancelListener l : listeners)
+            l.onCancel(this);
+    }
+}
@@ -0,0 +1,77 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+package free.yhc.netmbuddy.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Decode content-coding of http response body.
+//
+// NOTE
+// This class SHOULD depend only on JAVA standard library - not on Android or Utils.
+// So, it can be tested at JVM. See tests/src/free/yhc/netmbuddy/model/ContentDecoderTest.java
+class ContentDecoder {
+    private ContentDecoder() {
+    }
+
+    /**
+     * Wrap stream to decode content-coding of response.
+     * Decoding is done while user reads stream. So, whole body is never loaded on memory.
+     * @param encoding
+     *   value of 'Content-Encoding' header. null if there is no header.
+     */
+    static InputStream
+    decode(String encoding, InputStream in)
+            throws IOException {
+        if (null == encoding)
+            return in;
+
+        String enc = encoding.trim().toLowerCase();
+        if ("gzip".equals(enc)
+            || "x-gzip".equals(enc))
+            return new GZIPInputStream(in);
+        else if ("deflate".equals(enc)) {
+            // NOTE
+            // Some servers send raw deflate data without zlib header even if it is against RFC.
+            PushbackInputStream pbin = new PushbackInputStream(in, 2);
+            byte[] hdr = new byte[2];
+            // read() may return less than requested - ex. at the boundary of chunk.
+            int n = 0;
+            int r;
+            while (n < hdr.length
+                   && 0 < (r = pbin.read(hdr, n, hdr.length - n)))
+                n += r;
+            if (n > 0)
+                pbin.unread(hdr, 0, n);
+            boolean zlib = 2 == n
+                           && 8 == (hdr[0] & 0x0f)
+                           && 0 == (((hdr[0] & 0xff) << 8) | (hdr[1] & 0xff)) % 31;
+            return new InflaterInputStream(pbin, new Inflater(!zlib));
+        }
+        // 'identity' or unknown coding. Unknown coding is never received because it's not requested.
+        return in;
+    }
+}
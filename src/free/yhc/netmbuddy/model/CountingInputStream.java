@@ -0,0 +1,78 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+package free.yhc.netmbuddy.model;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Count bytes read through this stream.
+//
+// NOTE
+// This class SHOULD depend only on JAVA standard library - not on Android or Utils.
+// So, it can be tested at JVM. See tests/src/free/yhc/netmbuddy/model/ContentDecoderTest.java
+class CountingInputStream extends FilterInputStream {
+    private volatile long _mBytes = 0;
+
+    CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    long
+    getBytes() {
+        return _mBytes;
+    }
+
+    @Override
+    public int
+    read() throws IOException {
+        int b = super.read();
+        if (b >= 0)
+            _mBytes++;
+        return b;
+    }
+
+    @Override
+    public int
+    read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0)
+            _mBytes += n;
+        return n;
+    }
+
+    @Override
+    public long
+    skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        if (skipped > 0)
+            _mBytes += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean
+    markSupported() {
+        // To keep counter simple.
+        return false;
+    }
+}
@@ -0,0 +1,277 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+package free.yhc.netmbuddy.model;
+
+import static free.yhc.netmbuddy.utils.Utils.eAssert;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import free.yhc.netmbuddy.utils.Utils;
+
+// Disk cache of http contents that has validators (ETag / Last-Modified).
+//
+// One file per url. File name is hash of url.
+// Cached content is re-validated with conditional request whenever it is used.
+// So, stale content is never returned.
+// Total size of files is bounded. Least recently used files are removed first.
+// NOTE
+// Last-modified time of file is used to keep LRU order across app restarts.
+class HttpCache {
+    private static final boolean DBG = false;
+    private static final Utils.Logger P = new Utils.Logger(HttpCache.class);
+
+    private static final int    FILE_MAGIC      = 0x48545043; // 'HTPC'
+    private static final int    FILE_VERSION    = 1;
+
+    private static HttpCache sInstance = null;
+
+    private final File          mDir;
+    private final long          mMaxBytes;
+    // Access-ordered map of <file name, file size>.
+    private final LinkedHashMap<String, Long> mIndex
+        = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    private long                mBytes  = 0;
+    private boolean             mLoaded = false;
+
+    static class Entry {
+        final String    url;
+        final String    etag;           // "" if there is no 'ETag'
+        final String    lastModified;   // "" if there is no 'Last-Modified'
+        final String    type;
+        final byte[]    body;
+        Entry(String aUrl, String aEtag, String aLastModified, String aType, byte[] aBody) {
+            url = aUrl;
+            etag = null == aEtag? "": aEtag;
+            lastModified = null == aLastModified? "": aLastModified;
+            type = null == aType? "": aType;
+            body = aBody;
+        }
+
+        boolean
+        hasValidator() {
+            return !etag.isEmpty() || !lastModified.isEmpty();
+        }
+    }
+
+    private HttpCache(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+    }
+
+    static synchronized HttpCache
+    get() {
+        if (null == sInstance)
+            sInstance = new HttpCache(new File(Policy.APPDATA_HTTPCACHEDIR), Policy.HTTPCACHE_MAX_BYTES);
+        return sInstance;
+    }
+
+    private static String
+    keyOf(String url) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] dg = md.digest(url.getBytes("UTF-8"));
+            StringBuilder sbldr = new StringBuilder(dg.length * 2);
+            for (byte b : dg)
+                sbldr.append(String.format("%02x", b & 0xff));
+            return sbldr.toString();
+        } catch (NoSuchAlgorithmException e) {
+            eAssert(false);
+        } catch (IOException e) {
+            eAssert(false);
+        }
+        return null;
+    }
+
+    private void
+    loadLocked() {
+        if (mLoaded)
+            return;
+        mLoaded = true;
+
+        mDir.mkdirs();
+        File[] fs = mDir.listFiles();
+        if (null == fs)
+            return;
+
+        // Oldest file first. So, it becomes eldest entry of access-ordered map.
+        Arrays.sort(fs, new Comparator<File>() {
+            @Override
+            public int
+            compare(File f0, File f1) {
+                long d = f0.lastModified() - f1.lastModified();
+                return d < 0? -1: d > 0? 1: 0;
+            }
+        });
+        for (File f : fs) {
+            if (!f.isFile())
+                continue;
+            if (f.getName().endsWith("-tmp")) {
+                // Garbage of interrupted write.
+                f.delete();
+                continue;
+            }
+            mIndex.put(f.getName(), f.length());
+            mBytes += f.length();
+        }
+        trimLocked();
+    }
+
+    private void
+    removeLocked(String key) {
+        Long sz = mIndex.remove(key);
+        if (null != sz)
+            mBytes -= sz;
+        new File(mDir, key).delete();
+    }
+
+    private void
+    trimLocked() {
+        Iterator<Map.Entry<String, Long>> iter = mIndex.entrySet().iterator();
+        while (iter.hasNext()
+               && mBytes > mMaxBytes) {
+            Map.Entry<String, Long> me = iter.next();
+            mBytes -= me.getValue();
+            new File(mDir, me.getKey()).delete();
+            iter.remove();
+        }
+    }
+
+    /**
+     * @return
+     *   null if there is no cached content.
+     */
+    synchronized Entry
+    get(String url) {
+        loadLocked();
+        String key = keyOf(url);
+        if (!mIndex.containsKey(key))
+            return null;
+
+        File f = new File(mDir, key);
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if (FILE_MAGIC != dis.readInt()
+                || FILE_VERSION != dis.readInt())
+                throw new IOException();
+
+            String furl = dis.readUTF();
+            String etag = dis.readUTF();
+            String lastmod = dis.readUTF();
+            String type = dis.readUTF();
+            int len = dis.readInt();
+            // Hash collision - very rare.
+            if (!url.equals(furl)
+                || len < 0)
+                return null;
+
+            byte[] body = new byte[len];
+            dis.readFully(body);
+            f.setLastModified(System.currentTimeMillis());
+            return new Entry(furl, etag, lastmod, type, body);
+        } catch (IOException e) {
+            // Broken cache file.
+            if (DBG) P.w("Fail to read http cache : " + e.getMessage());
+            removeLocked(key);
+            return null;
+        } finally {
+            if (null != dis)
+                try {
+                    dis.close();
+                } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Content without validator is not cached.
+     */
+    synchronized void
+    put(Entry e) {
+        loadLocked();
+        String key = keyOf(e.url);
+        if (!e.hasValidator()
+            || e.body.length > mMaxBytes) {
+            if (mIndex.containsKey(key))
+                removeLocked(key);
+            return;
+        }
+
+        File f = new File(mDir, key);
+        File tmpf = new File(mDir, key + "-tmp");
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpf)));
+            dos.writeInt(FILE_MAGIC);
+            dos.writeInt(FILE_VERSION);
+            dos.writeUTF(e.url);
+            dos.writeUTF(e.etag);
+            dos.writeUTF(e.lastModified);
+            dos.writeUTF(e.type);
+            dos.writeInt(e.body.length);
+            dos.write(e.body);
+            dos.close();
+            dos = null;
+
+            Long sz = mIndex.remove(key);
+            if (null != sz)
+                mBytes -= sz;
+            if (!tmpf.renameTo(f)) {
+                tmpf.delete();
+                f.delete();
+                return;
+            }
+            mIndex.put(key, f.length());
+            mBytes += f.length();
+            trimLocked();
+        } catch (IOException ex) {
+            if (DBG) P.w("Fail to write http cache : " + ex.getMessage());
+            tmpf.delete();
+        } finally {
+            if (null != dos)
+                try {
+                    dos.close();
+                } catch (IOException ignored) { }
+        }
+    }
+
+    synchronized void
+    remove(String url) {
+        loadLocked();
+        String key = keyOf(url);
+        if (mIndex.containsKey(key))
+            removeLocked(key);
+    }
+}
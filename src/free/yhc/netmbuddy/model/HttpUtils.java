@@ -33,13 +33,16 @@ public class HttpUtils {
     // Successful       : 2xx
     public static final int SC_OK           = 200;
     public static final int SC_NO_CONTENT   = 204;
+    public static final int SC_PARTIAL_CONTENT = 206;
 
     // Redirection      : 3xx
     public static final int SC_FOUND        = 302;
+    public static final int SC_NOT_MODIFIED = 304;
 
     // Client Error     : 4xx
     public static final int SC_BAD_REQUEST  = 400;
     public static final int SC_NOT_FOUND    = 404;
+    public static final int SC_RANGE_NOT_SATISFIABLE = 416;
 
     // Server Error     : 5xx
 
@@ -0,0 +1,222 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+package free.yhc.netmbuddy.model;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import free.yhc.netmbuddy.utils.Utils;
+
+// Executes MediaPlayer commands at dedicated thread.
+//
+// Some MediaPlayer functions may block for long time.
+//   - setDataSource with network url
+//   - reset / stop of player that is buffering
+// Calling them at UI thread leads to jank or ANR.
+//
+// Commands are executed in order of request.
+// So, owner can keep track of player state at UI thread as if commands are executed synchronously.
+// Player that is thrown away is torn down by discard() - not by commands.
+// Queued commands of it are dropped, and it is stopped/released at another thread
+//   as soon as command running on it - if any - is finished.
+// So, slow teardown doesn't stall commands of other players.
+// NOTE
+// MediaPlayer instance SHOULD be created at UI thread.
+// Then, all listeners of it are still called at UI thread.
+class MediaPlayerEngine {
+    private static final boolean DBG = false;
+    private static final Utils.Logger P = new Utils.Logger(MediaPlayerEngine.class);
+
+    private final String        mName;
+    private final Handler       mHandler;
+    // Number of commands that are requested but not finished yet.
+    private final AtomicInteger mPending = new AtomicInteger(0);
+
+    // Below are protected by mLock.
+    private final Object                            mLock = new Object();
+    // Number of queued commands of each player.
+    private final HashMap<MediaPlayer, Integer>     mQueued = new HashMap<MediaPlayer, Integer>();
+    // Players whose queued commands SHOULD be dropped.
+    private final HashSet<MediaPlayer>              mDiscarded = new HashSet<MediaPlayer>();
+    // Player that command is running on.
+    private MediaPlayer                             mRunning = null;
+
+    // For debugging.
+    private volatile long       mMaxCmdTime = 0;
+    private volatile String     mMaxCmdName = "";
+
+    abstract static class Command {
+        final String    name;
+        Command(String aName) {
+            name = aName;
+        }
+
+        abstract void
+        run(MediaPlayer mp) throws IOException;
+
+        /**
+         * Called at UI thread if run() fails.
+         */
+        void
+        onFailed(MediaPlayer mp, Exception e) {
+        }
+    }
+
+    /**
+     * @param priority
+     *   priority of thread. See android.os.Process.
+     */
+    MediaPlayerEngine(String name, int priority) {
+        mName = name;
+        HandlerThread thd = new HandlerThread(name, priority);
+        thd.start();
+        mHandler = new Handler(thd.getLooper());
+    }
+
+    private void
+    notifyFailed(final Command cmd, final MediaPlayer mp, final Exception e) {
+        if (DBG) P.w(mName + " : " + cmd.name + " fails : " + e.getMessage());
+        Utils.getUiHandler().post(new Runnable() {
+            @Override
+            public void
+            run() {
+                cmd.onFailed(mp, e);
+            }
+        });
+    }
+
+    /**
+     * Command is executed after all previously requested commands are finished.
+     */
+    void
+    execute(final MediaPlayer mp, final Command cmd) {
+        mPending.incrementAndGet();
+        synchronized (mLock) {
+            Integer n = mQueued.get(mp);
+            mQueued.put(mp, null == n? 1: n + 1);
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void
+            run() {
+                long tm = SystemClock.elapsedRealtime();
+                boolean discarded;
+                synchronized (mLock) {
+                    discarded = mDiscarded.contains(mp);
+                    if (!discarded)
+                        mRunning = mp;
+                }
+                try {
+                    if (discarded) {
+                        if (DBG) P.v(mName + " : " + cmd.name + " dropped");
+                        return;
+                    }
+                    cmd.run(mp);
+                } catch (IOException e) {
+                    notifyFailed(cmd, mp, e);
+                } catch (IllegalStateException e) {
+                    notifyFailed(cmd, mp, e);
+                } catch (IllegalArgumentException e) {
+                    notifyFailed(cmd, mp, e);
+                } finally {
+                    synchronized (mLock) {
+                        mRunning = null;
+                        int n = mQueued.get(mp) - 1;
+                        if (0 == n) {
+                            mQueued.remove(mp);
+                            mDiscarded.remove(mp);
+                        } else
+                            mQueued.put(mp, n);
+                        mLock.notifyAll();
+                    }
+                    mPending.decrementAndGet();
+                    tm = SystemClock.elapsedRealtime() - tm;
+                    if (tm > mMaxCmdTime) {
+                        mMaxCmdTime = tm;
+                        mMaxCmdName = cmd.name;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Queued commands of player are dropped, and 'teardown' is run at new thread
+     *   after command running on player - if any - is finished.
+     * Player SHOULD NOT be used by caller after this.
+     * @param teardown
+     *   SHOULD release player - even if it fails.
+     */
+    void
+    discard(final MediaPlayer mp, final Command teardown) {
+        synchronized (mLock) {
+            if (mQueued.containsKey(mp))
+                mDiscarded.add(mp);
+        }
+        // Why run at another thread?
+        // Sometimes stop() or release() takes too long time or may never return.
+        // NOTE
+        // TaskExecutor is NOT used here.
+        // Thread that never returns SHOULD NOT occupy thread of shared pool.
+        new Thread(new Runnable() {
+            @Override
+            public void
+            run() {
+                synchronized (mLock) {
+                    while (mp == mRunning) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException ignored) { }
+                    }
+                }
+                try {
+                    teardown.run(mp);
+                } catch (IOException e) {
+                    notifyFailed(teardown, mp, e);
+                } catch (IllegalStateException e) {
+                    notifyFailed(teardown, mp, e);
+                }
+            }
+        }, mName + ".discard").start();
+    }
+
+    /**
+     * If engine is busy, calling MediaPlayer functions directly may be blocked
+     *   until running command is finished.
+     */
+    boolean
+    isBusy() {
+        return mPending.get() > 0;
+    }
+
+    String
+    dump() {
+        return "[" + mName + "]\n"
+               + "  pending : " + mPending.get() + "\n"
+               + "  slowest : " + mMaxCmdName + " (" + mMaxCmdTime + " ms)";
+    }
+}
@@ -22,8 +22,10 @@ package free.yhc.netmbuddy.model;
 
 import static free.yhc.netmbuddy.utils.Utils.eAssert;
 
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.PriorityQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -33,13 +35,35 @@ import free.yhc.netmbuddy.utils.Utils;
 // [ Naming Convention ]
 // Runnable => Job
 // Thread   => Task
+//
+// Jobs are run in order of priority - FIFO among jobs of same priority.
+// Tasks are run at threads of TaskExecutor. So, threads are reused across jobs.
+//
+// NOTE
+// mQLock protects only queues.
+// Callbacks and task operations SHOULD NOT be called while holding it.
 public class MultiThreadRunner {
     private static final boolean DBG = false;
     private static final Utils.Logger P = new Utils.Logger(MultiThreadRunner.class);
 
+    public static final int PRIORITY_NORM   = 0;
+
     private final Handler               mOwner;
+    private final TaskExecutor.Lane     mLane;
     private final Object                mQLock      = new Object();
-    private final LinkedList<Job<?>>    mReadyQ     = new LinkedList<Job<?>>();
+    private final PriorityQueue<Job<?>> mReadyQ     = new PriorityQueue<Job<?>>(16, new Comparator<Job<?>>() {
+        @Override
+        public int
+        compare(Job<?> j0, Job<?> j1) {
+            // Higher priority first.
+            if (j0._mPriority != j1._mPriority)
+                return j0._mPriority > j1._mPriority? -1: 1;
+            // FIFO for same priority.
+            if (j0._mSeq != j1._mSeq)
+                return j0._mSeq < j1._mSeq? -1: 1;
+            return 0;
+        }
+    });
     private final LinkedList<Task<?>>   mRunQ       = new LinkedList<Task<?>>();
     private final int                   mMaxConcur;
     private final AtomicBoolean         mCancelled  = new AtomicBoolean(false);
@@ -49,8 +73,8 @@ public class MultiThreadRunner {
     private final AtomicReference<OnDoneListener> mDoneListener
         = new AtomicReference<OnDoneListener>(null);
 
-    // For debugging purpose.
-    private int  mSeqN   = 0;
+    // Sequence number of appended job. This is protected by mQLock.
+    private long mSeqN   = 0;
 
     public interface OnProgressListener {
         /**
@@ -68,14 +92,31 @@ public class MultiThreadRunner {
     public static abstract class Job<R> {
         private final boolean _mInterruptOnCancel;
         private final float _mProgWeight;
-        private final int   _mTaskPriority = -1; // not used yet.
+        // Key used to find jobs - to reorder or cancel them.
+        private final Object _mKey;
+
+        // Below values are protected by MultiThreadRunner.mQLock.
+        private int     _mPriority;
+        private long    _mSeq       = 0;
 
         private Handler _mOwner     = null;
         private OnProgressListener _mProgListener = null;
 
-        public Job(boolean interruptOnCancel, float progWeight) {
+        /**
+         * @param key
+         *   Key to identify job at MultiThreadRunner. null if not used.
+         * @param priority
+         *   Job of higher priority is run first.
+         */
+        public Job(Object key, int priority, boolean interruptOnCancel, float progWeight) {
+            _mKey = key;
+            _mPriority = priority;
             _mProgWeight = progWeight;
-            _mInterruptOnCancel = true; // default is true.
+            _mInterruptOnCancel = interruptOnCancel;
+        }
+
+        public Job(boolean interruptOnCancel, float progWeight) {
+            this(null, PRIORITY_NORM, interruptOnCancel, progWeight);
         }
 
         public Job(float progWeight) {
@@ -114,16 +155,21 @@ public class MultiThreadRunner {
             return _mInterruptOnCancel;
         }
 
-        final int
-        getTaskPriority() {
-            return _mTaskPriority;
-        }
-
         final float
         getProgWeight() {
             return _mProgWeight;
         }
 
+        final boolean
+        hasKey(Object key) {
+            return null != _mKey && _mKey.equals(key);
+        }
+
+        public final Object
+        getKey() {
+            return _mKey;
+        }
+
         protected final void
         publishProgress(float prog) {
             // NOTE
@@ -164,12 +210,6 @@ public class MultiThreadRunner {
         private final MultiThreadRunner _mMtrunner;
         private final Job<R>    _mJob;
 
-        // NOTE
-        // To workaround Android GB Framework bug regarding AsyncTask.
-        // On GB Framework, it is NOT guaranteed that onCancelled() is called after returning from doInBackground().
-        // This is based on experimental result on Moto Bionic.
-        private final boolean   _mJobDone = false;
-
         private boolean
         isOwnerThread() {
             return _mMtrunner.getOwner().getLooper().getThread() == Thread.currentThread();
@@ -177,8 +217,9 @@ public class MultiThreadRunner {
 
         Task(MultiThreadRunner mtrunner,
              Job<R> job,
-             Handler owner) {
-            super(owner);
+             Handler owner,
+             TaskExecutor.Lane lane) {
+            super(owner, lane);
             _mMtrunner = mtrunner;
             _mJob = job;
         }
@@ -188,9 +229,11 @@ public class MultiThreadRunner {
             return _mJob;
         }
 
+        /**
+         * This can be called at any thread.
+         */
         public void
         cancel() {
-            eAssert(isOwnerThread());
             _mJob.cancel();
             super.cancel(_mJob.getInterruptOnCancel());
         }
@@ -234,9 +277,7 @@ public class MultiThreadRunner {
 
     private float
     updateProgress(float amountOfProgress) {
-        float f = mProgress.get();
-        mProgress.set(f + amountOfProgress);
-        return mProgress.get();
+        return mProgress.addAndGet(amountOfProgress);
     }
 
     private void
@@ -265,16 +306,36 @@ public class MultiThreadRunner {
 
     /**
      * mQLock should be held.
-     * @param job
+     * @return
+     *   Task to run. null if there is no job to run or max number of jobs are already running.
      */
-    private void
-    runJobLocked(Job<?> job) {
+    private Task<?>
+    scheduleLocked() {
+        if (mRunQ.size() >= mMaxConcur
+            || mReadyQ.isEmpty())
+            return null;
         // TODO
         // Is there any to instantiate generic 'task' whose generic type is
         //   same with generic type of 'job' instead of raw-type?
-        Task<?> t = new Task(this, job, mOwner);
+        Task<?> t = new Task(this, mReadyQ.poll(), mOwner, mLane);
         mRunQ.addLast(t);
-        t.run();
+        return t;
+    }
+
+    /**
+     * Called when jobs are removed from queues.
+     * mQLock should NOT be held.
+     */
+    private void
+    onJobsRemoved() {
+        boolean done;
+        synchronized (mQLock) {
+            done = isAllJobsDoneLocked();
+            if (done)
+                mQLock.notifyAll();
+        }
+        if (done)
+            publishDone(mCancelled.get());
     }
 
     private void
@@ -291,25 +352,40 @@ public class MultiThreadRunner {
             }
         });
 
+        Task<?> next;
+        boolean done;
         synchronized (mQLock) {
             mRunQ.remove(task);
             eAssert(mRunQ.size() < mMaxConcur);
-
-            if (!mReadyQ.isEmpty())
-                runJobLocked(mReadyQ.removeFirst());
-
-            if (isAllJobsDoneLocked()) {
-                publishDone(mCancelled.get());
+            next = scheduleLocked();
+            done = isAllJobsDoneLocked();
+            if (done)
                 mQLock.notifyAll();
-            }
         }
+
+        if (null != next)
+            next.run();
+        if (done)
+            publishDone(mCancelled.get());
         //logD("Run TaskDone END : " + task.getName());
     }
 
+    /**
+     * @param lane
+     *   Lane of TaskExecutor where jobs are run.
+     *   Jobs SHOULD NOT be run at the lane of the task that waits for them - see TaskExecutor.
+     */
     public MultiThreadRunner(Handler ownerHandler,
-                             int nrMaxConcurrent) {
+                             int nrMaxConcurrent,
+                             TaskExecutor.Lane lane) {
         mOwner = ownerHandler;
         mMaxConcur = nrMaxConcurrent;
+        mLane = lane;
+    }
+
+    public MultiThreadRunner(Handler ownerHandler,
+                             int nrMaxConcurrent) {
+        this(ownerHandler, nrMaxConcurrent, TaskExecutor.Lane.BULK);
     }
 
     public Handler
@@ -340,12 +416,73 @@ public class MultiThreadRunner {
             }
         });
 
+        Task<?> t;
         synchronized (mQLock) {
-            if (mRunQ.size() < mMaxConcur)
-                runJobLocked(job);
-            else
-                mReadyQ.addLast(job);
+            job._mSeq = mSeqN++;
+            mReadyQ.add(job);
+            t = scheduleLocked();
         }
+        if (null != t)
+            t.run();
+    }
+
+    /**
+     * Change priority of jobs that are not started yet.
+     * @return
+     *   Number of jobs whose priority is changed.
+     */
+    public int
+    setJobPriority(Object key, int priority) {
+        LinkedList<Job<?>> jobs = new LinkedList<Job<?>>();
+        synchronized (mQLock) {
+            Iterator<Job<?>> iter = mReadyQ.iterator();
+            while (iter.hasNext()) {
+                Job<?> job = iter.next();
+                if (job.hasKey(key)
+                    && job._mPriority != priority) {
+                    iter.remove();
+                    jobs.addLast(job);
+                }
+            }
+            // Priority SHOULD NOT be changed while job is in the priority queue.
+            for (Job<?> job : jobs) {
+                job._mPriority = priority;
+                mReadyQ.add(job);
+            }
+        }
+        return jobs.size();
+    }
+
+    /**
+     * Cancel jobs of given key.
+     * Jobs that are not started yet, are just removed without any callback - like 'cancel()'.
+     * @return
+     *   Number of jobs cancelled.
+     */
+    public int
+    cancelJobs(Object key) {
+        int n = 0;
+        LinkedList<Task<?>> tasks = new LinkedList<Task<?>>();
+        synchronized (mQLock) {
+            Iterator<Job<?>> jiter = mReadyQ.iterator();
+            while (jiter.hasNext()) {
+                if (jiter.next().hasKey(key)) {
+                    jiter.remove();
+                    n++;
+                }
+            }
+            for (Task<?> t : mRunQ) {
+                if (t.getJob().hasKey(key))
+                    tasks.addLast(t);
+            }
+        }
+
+        for (Task<?> t : tasks)
+            t.cancel();
+        // Running tasks are removed at onTaskDone().
+        if (n > 0)
+            onJobsRemoved();
+        return n + tasks.size();
     }
 
     public void
@@ -361,18 +498,21 @@ public class MultiThreadRunner {
     public void
     cancel() {
         mCancelled.set(true);
+        LinkedList<Task<?>> tasks;
         synchronized (mQLock) {
             mReadyQ.clear();
-            Iterator<Task<?>> iter = mRunQ.iterator();
-            while (iter.hasNext())
-                iter.next().cancel();
+            tasks = new LinkedList<Task<?>>(mRunQ);
         }
+
+        Iterator<Task<?>> iter = tasks.iterator();
+        while (iter.hasNext())
+            iter.next().cancel();
     }
 
     public void
     waitAllDone() throws InterruptedException {
         synchronized (mQLock) {
-            if (!isAllJobsDoneLocked())
+            while (!isAllJobsDoneLocked())
                 mQLock.wait();
         }
     }
@@ -0,0 +1,258 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+package free.yhc.netmbuddy.model;
+
+import static free.yhc.netmbuddy.utils.Utils.eAssert;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import free.yhc.netmbuddy.utils.Utils;
+
+// Admission control of network requests issued by NetLoader.
+//
+// Request should get permit before it is sent, and holds it until its response is consumed.
+// Number of in-flight requests is limited globally and per host.
+// Waiting requests are admitted by weighted fair queuing between traffic classes.
+// That is, bandwidth - in number of requests - is shared in proportion to weight of class.
+// So, import of hundreds of videos cannot starve requests that user is waiting for.
+//
+// Start-time fair queuing is used.
+// Each request is tagged with virtual start/finish time when it is queued.
+// Request whose finish time is earliest, is admitted first.
+//
+// NOTE
+// MediaPlayer loads stream by itself - not via NetLoader.
+// Requests of background classes are limited more strictly to leave bandwidth for it.
+public class NetAdmission implements
+UnexpectedExceptionHandler.Evidence {
+    private static final boolean DBG = false;
+    private static final Utils.Logger P = new Utils.Logger(NetAdmission.class);
+
+    private static NetAdmission sInstance = null;
+
+    // Below values are protected by 'this'.
+    private final LinkedList<Permit>        mWaitQ      = new LinkedList<Permit>();
+    private final HashMap<String, Integer>  mHostInFlight = new HashMap<String, Integer>();
+    private final int[]                     mClassInFlight  = new int[TrafficClass.values().length];
+    private final int[]                     mClassWaiting   = new int[TrafficClass.values().length];
+    // Virtual finish time of last request of each class.
+    private final double[]                  mClassFinish    = new double[TrafficClass.values().length];
+    private double                          mVTime      = 0;
+    private int                             mInFlight   = 0;
+
+    public enum TrafficClass {
+        // Ordered by priority. ex. stream of video that is played.
+        PLAYBACK    (16, Policy.NETWORK_ADMIT_MAX_TOTAL),
+        // Feeds and search results that user is waiting for.
+        SEARCH      (8,  Policy.NETWORK_ADMIT_MAX_TOTAL),
+        // Thumbnails shown to user.
+        THUMBNAIL   (4,  Policy.NETWORK_ADMIT_MAX_TOTAL),
+        // Things that will be used in near future. ex. caching video.
+        PREFETCH    (2,  Policy.NETWORK_ADMIT_MAX_BACKGROUND),
+        // Importing playlists etc.
+        IMPORT      (1,  Policy.NETWORK_ADMIT_MAX_BACKGROUND);
+
+        private final int   _mWeight;
+        private final int   _mMaxInFlight;
+
+        TrafficClass(int weight, int maxInFlight) {
+            _mWeight = weight;
+            _mMaxInFlight = maxInFlight;
+        }
+    }
+
+    public static class Permit {
+        private final TrafficClass  _mClass;
+        private final String        _mHost;
+        // Below values are protected by NetAdmission instance.
+        private double  _mStart     = 0;
+        private double  _mFinish    = 0;
+        private boolean _mWaiting   = false;
+        private boolean _mAdmitted  = false;
+        private boolean _mReleased  = false;
+
+        Permit(TrafficClass tclass, String host) {
+            _mClass = tclass;
+            _mHost = null == host? "": host;
+        }
+
+        /**
+         * Wait until request is admitted.
+         * @return
+         *   false if permit is released before it is admitted.
+         */
+        boolean
+        acquire() throws InterruptedException {
+            return get().acquire(this);
+        }
+
+        /**
+         * Permit is returned. This can be called more than once.
+         * If permit is not admitted yet, waiting thread is woken up - acquire() returns false.
+         */
+        void
+        release() {
+            get().release(this);
+        }
+    }
+
+    private NetAdmission() {
+        UnexpectedExceptionHandler.get().registerModule(this);
+    }
+
+    public static synchronized NetAdmission
+    get() {
+        if (null == sInstance)
+            sInstance = new NetAdmission();
+        return sInstance;
+    }
+
+    private int
+    getHostInFlightLocked(String host) {
+        Integer n = mHostInFlight.get(host);
+        return null == n? 0: n;
+    }
+
+    private boolean
+    canAdmitLocked(Permit p) {
+        return mInFlight < Policy.NETWORK_ADMIT_MAX_TOTAL
+               && mClassInFlight[p._mClass.ordinal()] < p._mClass._mMaxInFlight
+               && getHostInFlightLocked(p._mHost) < Policy.NETWORK_ADMIT_MAX_PER_HOST;
+    }
+
+    /**
+     * Admit waiting requests as many as possible.
+     */
+    private void
+    dispatchLocked() {
+        boolean admitted = false;
+        while (mInFlight < Policy.NETWORK_ADMIT_MAX_TOTAL) {
+            Permit next = null;
+            for (Permit p : mWaitQ) {
+                if (canAdmitLocked(p)
+                    && (null == next || p._mFinish < next._mFinish))
+                    next = p;
+            }
+            if (null == next)
+                break;
+
+            mWaitQ.remove(next);
+            next._mWaiting = false;
+            next._mAdmitted = true;
+            mVTime = next._mStart;
+            mInFlight++;
+            mClassWaiting[next._mClass.ordinal()]--;
+            mClassInFlight[next._mClass.ordinal()]++;
+            mHostInFlight.put(next._mHost, getHostInFlightLocked(next._mHost) + 1);
+            admitted = true;
+        }
+        if (admitted)
+            notifyAll();
+    }
+
+    private synchronized boolean
+    acquire(Permit p) throws InterruptedException {
+        if (p._mReleased)
+            return false;
+        eAssert(!p._mWaiting && !p._mAdmitted);
+
+        int ci = p._mClass.ordinal();
+        p._mStart = Math.max(mVTime, mClassFinish[ci]);
+        p._mFinish = p._mStart + 1.0 / p._mClass._mWeight;
+        mClassFinish[ci] = p._mFinish;
+        p._mWaiting = true;
+        mClassWaiting[ci]++;
+        mWaitQ.addLast(p);
+        dispatchLocked();
+
+        try {
+            while (p._mWaiting)
+                wait();
+        } catch (InterruptedException e) {
+            release(p);
+            throw e;
+        }
+        if (DBG) P.v("Admitted : " + p._mClass.name() + " : " + p._mHost);
+        return p._mAdmitted;
+    }
+
+    private synchronized void
+    release(Permit p) {
+        if (p._mReleased)
+            return;
+        p._mReleased = true;
+
+        int ci = p._mClass.ordinal();
+        if (p._mWaiting) {
+            mWaitQ.remove(p);
+            p._mWaiting = false;
+            mClassWaiting[ci]--;
+            // Wake up thread waiting for this permit.
+            notifyAll();
+        } else if (p._mAdmitted) {
+            mInFlight--;
+            mClassInFlight[ci]--;
+            int n = getHostInFlightLocked(p._mHost) - 1;
+            if (n > 0)
+                mHostInFlight.put(p._mHost, n);
+            else
+                mHostInFlight.remove(p._mHost);
+            dispatchLocked();
+        }
+    }
+
+    Permit
+    newPermit(TrafficClass tclass, String host) {
+        return new Permit(tclass, host);
+    }
+
+    /**
+     * Back-pressure signal to producers of requests.
+     * Producer of requests that can be postponed, should check this before issuing new request.
+     * @return
+     *   true if requests of higher class are waiting
+     *     or too many requests of given class are already waiting.
+     */
+    public synchronized boolean
+    isCongested(TrafficClass tclass) {
+        for (TrafficClass tc : TrafficClass.values()) {
+            if (tc._mWeight > tclass._mWeight
+                && mClassWaiting[tc.ordinal()] > 0)
+                return true;
+        }
+        return mClassWaiting[tclass.ordinal()] >= Policy.NETWORK_ADMIT_CONGESTION_BACKLOG;
+    }
+
+    @Override
+    public synchronized String
+    dump(UnexpectedExceptionHandler.DumpLevel lvl) {
+        StringBuilder sbldr = new StringBuilder(this.getClass().getName());
+        sbldr.append("\n  in-flight : ").append(mInFlight)
+             .append(" (hosts : ").append(mHostInFlight.size()).append(")");
+        for (TrafficClass tc : TrafficClass.values()) {
+            sbldr.append("\n  ").append(tc.name())
+                 .append(" : in-flight=").append(mClassInFlight[tc.ordinal()])
+                 .append(" waiting=").append(mClassWaiting[tc.ordinal()]);
+        }
+        return sbldr.toString();
+    }
+}
@@ -22,20 +22,34 @@ package free.yhc.netmbuddy.model;
 
 import static free.yhc.netmbuddy.utils.Utils.eAssert;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.params.CookiePolicy;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
@@ -43,12 +57,43 @@ import org.apache.http.params.HttpProtocolParams;
 import android.net.Uri;
 import free.yhc.netmbuddy.utils.Utils;
 
+// NOTE
+// All NetLoader instances share one HttpClient that has thread-safe connection pool.
+// So, NetLoader itself is just a light-weight handle of http requests.
+// Closing NetLoader aborts only it's in-flight request - connection pool is not affected.
+//
+// Request is sent after it is admitted by NetAdmission.
+// Permit is held until response is consumed - stream reaches EOF, or is closed or aborted -,
+//   next request is issued or NetLoader is closed.
+//
+// NetLoader can be opened with CancelToken of the operation that uses it.
+// Cancelling the token has same effect with closing loader -
+//   in-flight request is aborted, and blocked read of response stream fails immediately.
 public class NetLoader {
     private static final boolean DBG = false;
     private static final Utils.Logger P = new Utils.Logger(NetLoader.class);
 
-    private boolean         mUserClose  = false;
-    private HttpClient      mHttpClient = null;
+    private static HttpClient   sHttpClient     = null;
+    private static long         sLastEvictTime  = 0;
+
+    private final NetAdmission.TrafficClass mClass;
+    private volatile boolean    mUserClose  = false;
+    // Cancel token given at open(). Can be null.
+    private volatile CancelToken mToken     = null;
+    private boolean             mOpened     = false;
+    // In-flight request.
+    private volatile HttpGet    mReq        = null;
+    // Permit of in-flight request.
+    private volatile NetAdmission.Permit mPermit = null;
+
+    private final CancelToken.OnCancelListener mOnCancel = new CancelToken.OnCancelListener() {
+        @Override
+        public void
+        onCancel(CancelToken token) {
+            if (DBG) P.v("Cancelled by token : " + token.getName());
+            abortInFlight();
+        }
+    };
 
     public static enum Err {
         NO_ERR,
@@ -84,40 +129,207 @@ public class NetLoader {
         }
     }
 
+    // Return permit when response is consumed.
+    private static class PermitInputStream extends FilterInputStream {
+        private final NetAdmission.Permit _mPermit;
+
+        PermitInputStream(InputStream in, NetAdmission.Permit permit) {
+            super(in);
+            _mPermit = permit;
+        }
+
+        @Override
+        public int
+        read() throws IOException {
+            int b = super.read();
+            if (b < 0)
+                _mPermit.release();
+            return b;
+        }
+
+        @Override
+        public int
+        read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0)
+                _mPermit.release();
+            return n;
+        }
+
+        @Override
+        public void
+        close() throws IOException {
+            _mPermit.release();
+            super.close();
+        }
+    }
+
     public static class HttpRespContent {
         public int         stcode; // status code
         public InputStream stream;
         public String      type;
-        HttpRespContent(int aStcode, InputStream aStream, String aType) {
+        private final HttpUriRequest _mReq;
+        private final HttpResponse   _mResp;
+        private final NetAdmission.Permit _mPermit;
+        // Bytes received from network - compressed.
+        private final CountingInputStream _mWire;
+        // Bytes given to user - decompressed.
+        private final CountingInputStream _mContent;
+        HttpRespContent(HttpUriRequest aReq,
+                        HttpResponse aResp,
+                        NetAdmission.Permit aPermit,
+                        int aStcode,
+                        CountingInputStream aWire,
+                        CountingInputStream aContent,
+                        String aType) {
+            _mReq = aReq;
+            _mResp = aResp;
+            _mPermit = aPermit;
+            _mWire = aWire;
+            _mContent = aContent;
             stcode = aStcode;
-            stream = aStream;
+            stream = null == aContent? null: new PermitInputStream(aContent, aPermit);
             type = aType;
         }
+
+        /**
+         * @return
+         *   null if there is no such header.
+         */
+        public String
+        getHeader(String name) {
+            Header h = _mResp.getFirstHeader(name);
+            return null == h? null: h.getValue();
+        }
+
+        /**
+         * @return
+         *   Number of bytes - of message body - received from network until now.
+         */
+        public long
+        getWireBytes() {
+            return null == _mWire? 0: _mWire.getBytes();
+        }
+
+        /**
+         * @return
+         *   Number of bytes - after decompression - read by user until now.
+         */
+        public long
+        getContentBytes() {
+            return null == _mContent? 0: _mContent.getBytes();
+        }
+
+        /**
+         * Stop receiving contents without reading remaining data.
+         * Connection used for this content is not reused.
+         */
+        public void
+        abort() {
+            _mReq.abort();
+            _mPermit.release();
+        }
     }
 
-    private boolean
+    private static boolean
     isValidProxyAddr(String proxy) {
         return null != proxy && !proxy.isEmpty();
     }
 
-    private HttpClient
-    newHttpClient(String proxyAddr) {
-        if (isValidProxyAddr(proxyAddr)) {
-            // TODO
-            // Not supported yet.
-            eAssert(false);
-            return null;
-        }
-        HttpClient hc = new DefaultHttpClient();
-        HttpParams params = hc.getParams();
+    private static HttpClient
+    newHttpClient() {
+        HttpParams params = new BasicHttpParams();
         HttpConnectionParams.setConnectionTimeout(params, Policy.NETWORK_CONN_TIMEOUT);
         HttpConnectionParams.setSoTimeout(params, Policy.NETWORK_CONN_TIMEOUT);
-        HttpProtocolParams.setUserAgent(hc.getParams(), Policy.HTTP_UASTRING);
+        HttpProtocolParams.setUserAgent(params, Policy.HTTP_UASTRING);
         params.setParameter(ClientPNames.COOKIE_POLICY, CookiePolicy.RFC_2109);
-        return hc;
+
+        ConnManagerParams.setMaxTotalConnections(params, Policy.NETWORK_POOL_MAX_TOTAL);
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                                                    new ConnPerRouteBean(Policy.NETWORK_POOL_MAX_PER_ROUTE));
+        // Time to wait for free connection in the pool.
+        ConnManagerParams.setTimeout(params, Policy.NETWORK_CONN_TIMEOUT);
+
+        SchemeRegistry sr = new SchemeRegistry();
+        sr.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        sr.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        return new DefaultHttpClient(new ThreadSafeClientConnManager(params, sr), params);
     }
 
-    public NetLoader() {
+    /**
+     * Get shared http client.
+     * Idle connections in the pool are evicted here - whenever client is used.
+     * So, extra thread is not required for it.
+     */
+    private static synchronized HttpClient
+    getHttpClient() {
+        if (null == sHttpClient)
+            sHttpClient = newHttpClient();
+
+        long now = System.currentTimeMillis();
+        if (now - sLastEvictTime > Policy.NETWORK_POOL_EVICT_INTERVAL) {
+            ClientConnectionManager cm = sHttpClient.getConnectionManager();
+            cm.closeExpiredConnections();
+            cm.closeIdleConnections(Policy.NETWORK_POOL_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+            sLastEvictTime = now;
+        }
+        return sHttpClient;
+    }
+
+    // To pass classified error to retry logic.
+    private static class RetryableException extends Exception {
+        static final long serialVersionUID = 0; // to make compiler be happy
+
+        final RetryPolicy.Cause cause;
+        final LocalException    failure;
+        RetryableException(RetryPolicy.Cause aCause, LocalException aFailure) {
+            cause = aCause;
+            failure = aFailure;
+        }
+    }
+
+    /**
+     * Parse 'Retry-After' header. Only 'delay-seconds' form is supported.
+     * @return
+     *   0 if there is no valid header.
+     */
+    private static long
+    parseRetryAfter(HttpResponse resp) {
+        Header h = resp.getFirstHeader("Retry-After");
+        if (null == h)
+            return 0;
+        try {
+            long sec = Long.parseLong(h.getValue().trim());
+            return sec > 0? sec * 1000: 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private synchronized void
+    waitRetry(long delay)
+            throws LocalException {
+        long until = System.currentTimeMillis() + delay;
+        long remain = delay;
+        try {
+            // close() wakes up waiting thread.
+            while (!isCancelled() && remain > 0) {
+                wait(remain);
+                remain = until - System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            throw new LocalException(Err.INTERRUPTED);
+        }
+        if (isCancelled())
+            throw new LocalException(Err.INTERRUPTED);
+    }
+
+    /**
+     * @param tclass
+     *   Traffic class of requests. See NetAdmission.
+     */
+    public NetLoader(NetAdmission.TrafficClass tclass) {
+        mClass = tclass;
     }
 
     public NetLoader
@@ -127,29 +339,112 @@ public class NetLoader {
 
     public NetLoader
     open(String proxy) {
+        return open(proxy, null);
+    }
+
+    /**
+     * @param token
+     *   Cancel token of operation that uses this loader. Can be null.
+     *   Loader is aborted when token is cancelled.
+     */
+    public NetLoader
+    open(String proxy, CancelToken token) {
+        if (isValidProxyAddr(proxy)) {
+            // TODO
+            // Not supported yet.
+            eAssert(false);
+        }
+        eAssert(!mOpened);
         mUserClose = false;
-        eAssert(null == mHttpClient);
-        if (null == proxy)
-            proxy = "";
-        mHttpClient = newHttpClient(proxy);
+        mOpened = true;
+        mToken = token;
+        if (null != token)
+            token.addOnCancelListener(mOnCancel);
         return this;
     }
 
     public void
     close() {
         mUserClose = true;
+        mOpened = false;
+        CancelToken token = mToken;
+        if (null != token)
+            token.removeOnCancelListener(mOnCancel);
+        abortInFlight();
+    }
+
+    private boolean
+    isCancelled() {
+        CancelToken token = mToken;
+        return mUserClose
+               || (null != token && token.isCancelled());
+    }
+
+    private void
+    abortInFlight() {
         // Kind of hack!
         // There is no fast-way to cancel running-java thread.
-        // So, make input-stream closed by force to stop loading/DOM-parsing etc.
-        if (null != mHttpClient)
-            mHttpClient.getConnectionManager().shutdown();
-        mHttpClient = null;
+        // So, abort in-flight request to stop loading/DOM-parsing etc.
+        // Connection used by this request is closed and removed from the pool.
+        HttpGet req = mReq;
+        if (null != req)
+            req.abort();
+        // This also wakes up thread waiting for admission.
+        releasePermit();
+        synchronized (this) {
+            // Wake up thread waiting for retry.
+            notifyAll();
+        }
+    }
+
+    private void
+    releasePermit() {
+        NetAdmission.Permit permit = mPermit;
+        if (null != permit)
+            permit.release();
+    }
+
+    /**
+     * Wait until request to the host is admitted.
+     * Previous request of this loader is regarded as done.
+     */
+    private NetAdmission.Permit
+    acquirePermit(String host)
+            throws LocalException {
+        releasePermit();
+        NetAdmission.Permit permit = NetAdmission.get().newPermit(mClass, host);
+        mPermit = permit;
+        try {
+            // close() may be called just before permit is set.
+            if (isCancelled()
+                || !permit.acquire())
+                throw new LocalException(Err.INTERRUPTED);
+        } catch (InterruptedException e) {
+            throw new LocalException(Err.INTERRUPTED);
+        }
+        return permit;
     }
 
     public void
     readHttpData(OutputStream outs, Uri uri)
             throws LocalException {
-        eAssert(null != mHttpClient);
+        readHttpData(outs, uri, false);
+    }
+
+    /**
+     * @param cache
+     *   Use http cache.
+     *   Content is stored at disk cache, and it is used if server says that it's not modified.
+     *   This is for small text contents - like feeds - that may be requested repeatedly.
+     */
+    public void
+    readHttpData(OutputStream outs, Uri uri, boolean cache)
+            throws LocalException {
+        eAssert(mOpened);
+        if (cache) {
+            readHttpDataCached(outs, uri);
+            return;
+        }
         // Proxy is not supported yet.
         HttpRespContent content = getHttpContent(uri, false);
         // 256K is experimental value small enough to contains most feed text.
@@ -159,16 +454,118 @@ public class NetLoader {
             while(-1 != (bytes = content.stream.read(rbuf)))
                 outs.write(rbuf, 0, bytes);
             content.stream.close();
+            if (DBG) P.v("Read http data : wire(" + content.getWireBytes()
+                         + ") content(" + content.getContentBytes() + ") : " + uri.toString());
         } catch (IOException e) {
+            content.abort();
             throw new LocalException(Err.IO_NET);
         }
     }
 
+    private void
+    readHttpDataCached(OutputStream outs, Uri uri)
+            throws LocalException {
+        String url = uri.toString();
+        HttpCache.Entry ce = HttpCache.get().get(url);
+
+        Header[] condHdrs = null;
+        if (null != ce) {
+            condHdrs = new Header[] {
+                new BasicHeader("If-None-Match", ce.etag),
+                new BasicHeader("If-Modified-Since", ce.lastModified),
+            };
+            if (ce.etag.isEmpty())
+                condHdrs = new Header[] { condHdrs[1] };
+            else if (ce.lastModified.isEmpty())
+                condHdrs = new Header[] { condHdrs[0] };
+        }
+
+        HttpRespContent content = getHttpContent(uri, false, true, condHdrs);
+        try {
+            if (HttpUtils.SC_NOT_MODIFIED == content.stcode) {
+                if (DBG) P.v("Http cache hit : " + url);
+                outs.write(ce.body);
+                return;
+            }
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            if (null != content.stream) {
+                byte[] rbuf = new byte[16 * 1024];
+                int bytes;
+                while(-1 != (bytes = content.stream.read(rbuf)))
+                    baos.write(rbuf, 0, bytes);
+                content.stream.close();
+            }
+            byte[] body = baos.toByteArray();
+            if (DBG) P.v("Read http data : wire(" + content.getWireBytes()
+                         + ") content(" + content.getContentBytes() + ") : " + url);
+            outs.write(body);
+            if (HttpUtils.SC_OK == content.stcode)
+                HttpCache.get().put(new HttpCache.Entry(url,
+                                                        content.getHeader("ETag"),
+                                                        content.getHeader("Last-Modified"),
+                                                        content.type,
+                                                        body));
+        } catch (IOException e) {
+            content.abort();
+            throw new LocalException(Err.IO_NET);
+        }
+    }
+
+    /**
+     * Compressed response is requested.
+     */
     public HttpRespContent
     getHttpContent(Uri uri, boolean source)
             throws LocalException  {
-        if (null == mHttpClient) {
-            if (DBG) P.v("NetLoader Fail to get HttpClient");
+        return getHttpContent(uri, source, true);
+    }
+
+    /**
+     * @param compress
+     *   request compressed response (gzip, deflate) - useful for text contents.
+     *   Response is decompressed transparently.
+     *   For already-compressed contents like video stream, this SHOULD be false.
+     */
+    public HttpRespContent
+    getHttpContent(Uri uri, boolean source, boolean compress)
+            throws LocalException  {
+        return getHttpContent(uri, source, compress, null);
+    }
+
+    /**
+     * Request contents from given offset - to resume downloading.
+     * Server may ignore range. So, caller SHOULD check status code.
+     *   SC_PARTIAL_CONTENT : contents from offset.
+     *   SC_OK : whole contents.
+     * Compression is not requested.
+     * @param ifRange
+     *   Validator(ETag) of contents that partial data came from. Can be null.
+     *   If contents are changed, server sends whole contents(SC_OK) instead of range.
+     */
+    public HttpRespContent
+    getHttpContent(Uri uri, long offset, String ifRange)
+            throws LocalException  {
+        Header[] hdrs = null;
+        if (offset > 0) {
+            Header range = new BasicHeader("Range", "bytes=" + offset + "-");
+            hdrs = null == ifRange?
+                   new Header[] { range }:
+                   new Header[] { range, new BasicHeader("If-Range", ifRange) };
+        }
+        return getHttpContent(uri, false, false, hdrs);
+    }
+
+    /**
+     * @param condHdrs
+     *   Headers for conditional or range request.
+     *   If not null, '304 Not Modified' is also allowed as response.
+     */
+    private HttpRespContent
+    getHttpContent(Uri uri, boolean source, boolean compress, Header[] condHdrs)
+            throws LocalException  {
+        if (!mOpened) {
+            if (DBG) P.v("NetLoader is not opened");
             throw new LocalException(Err.UNKNOWN);
         }
 
@@ -179,25 +576,52 @@ public class NetLoader {
         if (source)
             uriString = uriString.replace(uri.getScheme() + "://" + uri.getHost(), "");
 
-        int retry = Policy.NETOWRK_CONN_RETRY;
-        while (0 < retry--) {
+        RetryPolicy retry = RetryPolicy.newNetworkPolicy();
+        while (true) {
+            RetryPolicy.Cause cause;
+            long minDelay = 0;
+            LocalException failure;
+            HttpGet httpGet = null;
+            NetAdmission.Permit permit = acquirePermit(uri.getHost());
+            // Permit is kept only if response has message body to be read by user.
+            boolean keepPermit = false;
             try {
-                HttpGet httpGet = new HttpGet(uriString);
-                HttpHost httpTarget = new HttpHost(uri.getHost());
+                httpGet = new HttpGet(uriString);
+                // Port is -1 if url doesn't have it. Then default port of scheme is used.
+                HttpHost httpTarget = new HttpHost(uri.getHost(), uri.getPort());
+                if (compress)
+                    httpGet.addHeader("Accept-Encoding", "gzip, deflate");
+                if (null != condHdrs) {
+                    for (Header h : condHdrs)
+                        httpGet.addHeader(h);
+                }
+                mReq = httpGet;
+                // close() may be called just before in-flight request is set.
+                if (isCancelled())
+                    throw new LocalException(Err.INTERRUPTED);
 
                 if (DBG) P.v("executing request: " + httpGet.getRequestLine().toString());
                 //logI("uri: " + httpGet.getURI().toString());
                 //logI("target: " + httpTarget.getHostName());
 
-                HttpResponse httpResp = mHttpClient.execute(httpTarget, httpGet);
+                HttpResponse httpResp = getHttpClient().execute(httpTarget, httpGet);
                 if (DBG) P.v("NetLoader HTTP response status line : " + httpResp.getStatusLine().toString());
 
                 // TODO
                 // Need more case-handling-code.
                 // Ex. Redirection etc.
                 int statusCode = httpResp.getStatusLine().getStatusCode();
+                if (HttpUtils.SC_NOT_MODIFIED == statusCode
+                    && null != condHdrs) {
+                    // There is no message body. Connection can be reused.
+                    if (null != httpResp.getEntity())
+                        httpResp.getEntity().consumeContent();
+                    return new HttpRespContent(httpGet, httpResp, permit, statusCode, null, null, null);
+                }
+
                 switch (statusCode) {
                 case HttpUtils.SC_OK:
+                case HttpUtils.SC_PARTIAL_CONTENT:
                 case HttpUtils.SC_NO_CONTENT:
                     ;// expected response. let's move forward
                     break;
@@ -205,10 +629,17 @@ public class NetLoader {
                 default:
                     // Unexpected response
                     if (DBG) P.w("Unexpected Response  status code : " + httpResp.getStatusLine().getStatusCode());
-                    throw new LocalException(Err.HTTPGET, statusCode);
+                    cause = RetryPolicy.classify(statusCode);
+                    if (null == cause)
+                        cause = RetryPolicy.Cause.UNKNOWN;
+                    minDelay = parseRetryAfter(httpResp);
+                    // Connection SHOULD be returned to the pool.
+                    httpGet.abort();
+                    throw new RetryableException(cause, new LocalException(Err.HTTPGET, statusCode));
                 }
 
-                InputStream contentStream = null;
+                CountingInputStream wireStream = null;
+                CountingInputStream contentStream = null;
                 String      contentType = null;
                 if (HttpUtils.SC_NO_CONTENT == statusCode) {
                     ;
@@ -219,17 +650,25 @@ public class NetLoader {
                         if (DBG) P.w("Unexpected NULL entity");
                         throw new LocalException(Err.HTTPGET, statusCode);
                     }
-                    contentStream = httpEntity.getContent();
+                    wireStream = new CountingInputStream(httpEntity.getContent());
                     try {
                         contentType = httpResp.getFirstHeader("Content-Type").getValue().toLowerCase();
                     } catch (NullPointerException e) {
                         // Unexpected response data.
                         if (DBG) P.v("NetLoader IOException : " + e.getMessage());
+                        httpGet.abort();
                         throw new LocalException(Err.IO_NET);
                     }
+                    Header ench = httpEntity.getContentEncoding();
+                    contentStream = new CountingInputStream(
+                            ContentDecoder.decode(null == ench? null: ench.getValue(), wireStream));
                 }
 
-                return new HttpRespContent(statusCode, contentStream, contentType);
+                keepPermit = null != contentStream;
+                return new HttpRespContent(httpGet, httpResp, permit, statusCode, wireStream, contentStream, contentType);
+            } catch (RetryableException e) {
+                cause = e.cause;
+                failure = e.failure;
             } catch (ClientProtocolException e) {
                 if (DBG) P.v("NetLoader ClientProtocolException : " + e.getMessage());
                 throw new LocalException(Err.UNKNOWN);
@@ -237,30 +676,31 @@ public class NetLoader {
                 if (DBG) P.v("Illegal Argument Exception : " + e.getMessage() + "\n"
                      + "URI : " + uriString);
                 throw new LocalException(Err.IO_NET);
-            } catch (UnknownHostException e) {
-                if (DBG) P.v("NetLoader UnknownHostException : Maybe timeout?" + e.getMessage());
-                if (mUserClose)
-                    throw new LocalException(Err.INTERRUPTED);
-
-                if (0 >= retry)
-                    throw new LocalException(Err.IO_NET);
-
-                ; // continue next retry after some time.
-                try {
-                    Thread.sleep(300);
-                } catch (InterruptedException ie) {
-                    throw new LocalException(Err.INTERRUPTED);
-                }
-                throw new LocalException(Err.IO_NET);
             } catch (IOException e) {
                 if (DBG) P.v("NetLoader IOException : " + e.getMessage());
-                throw new LocalException(Err.IO_NET);
+                // Connection of failed request SHOULD NOT be reused.
+                if (null != httpGet)
+                    httpGet.abort();
+                if (isCancelled())
+                    throw new LocalException(Err.INTERRUPTED);
+                cause = RetryPolicy.classify(e);
+                failure = new LocalException(Err.IO_NET);
             } catch (IllegalStateException e) {
                 if (DBG) P.v("NetLoader IllegalStateException : " + e.getMessage());
                 throw new LocalException(Err.UNKNOWN);
+            } finally {
+                // Slot SHOULD NOT be held while waiting retry.
+                if (!keepPermit)
+                    permit.release();
             }
+
+            // NOTE
+            // Only 'GET' is used at NetLoader. So, request is always idempotent.
+            long delay = retry.nextDelay(cause, true, minDelay);
+            if (delay < 0
+                || !Utils.isNetworkAvailable())
+                throw failure;
+            waitRetry(delay);
         }
-        eAssert(false);
-        return null;
     }
 }
@@ -0,0 +1,438 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+package free.yhc.netmbuddy.model;
+
+import static free.yhc.netmbuddy.utils.Utils.eAssert;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.wifi.WifiManager;
+import android.net.wifi.WifiManager.WifiLock;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import free.yhc.netmbuddy.db.ColPlaylist;
+import free.yhc.netmbuddy.db.ColVideo;
+import free.yhc.netmbuddy.db.DB;
+import free.yhc.netmbuddy.utils.Utils;
+
+// Store of videos of playlists pinned for offline playback.
+//
+// Pinned videos are downloaded to Policy.APPDATA_VIDDIR in background.
+// This directory is never touched by cache eviction of YTPlayer.
+// And player prefers file at this store to network and cache.
+//
+// Downloading
+//   - is done only if constraints - Wi-Fi, charging - are met. See Policy.OFFLINE_XXX.
+//   - is resumed from partially downloaded data - ex. after Wi-Fi is lost or app is restarted.
+//   - verifies file before it is moved to the store.
+// Pinned state is kept at DB. So, store is synced with DB at app start.
+//
+// NOTE
+// All functions SHOULD be called at UI thread.
+public class OfflineStore implements
+UnexpectedExceptionHandler.Evidence {
+    private static final boolean DBG = false;
+    private static final Utils.Logger P = new Utils.Logger(OfflineStore.class);
+
+    private static final String WLTAG = "OfflineStore";
+    private static final String FILE_EXT = ".mp4";
+
+    private static OfflineStore sInstance = null;
+
+    private final DB            mDb = DB.get();
+    // Videos to be downloaded - in order of download.
+    private final LinkedList<String>            mPending = new LinkedList<String>();
+    // Downloads in progress. Key : ytvid
+    private final HashMap<String, YTDownloader> mRunning = new HashMap<String, YTDownloader>();
+    // Number of failures of each video since last sync.
+    private final HashMap<String, Integer>      mFailures = new HashMap<String, Integer>();
+
+    private WakeLock            mWl         = null;
+    private WifiLock            mWfl        = null;
+    // Constraints are not met.
+    private boolean             mSuspended  = false;
+
+    // Incremented at every sync. Removing unpinned files of older sync is stopped.
+    // Protected by mRemoveLock.
+    private int                 mSyncGen    = 0;
+    private final Object        mRemoveLock = new Object();
+
+    // Statistics since last sync.
+    private int                 mNrDone     = 0;
+    private int                 mNrGiveUp   = 0;
+
+    private final Runnable mRecheck = new Runnable() {
+        @Override
+        public void
+        run() {
+            if (mDb.isPlaylistTableUpdated(OfflineStore.this))
+                // Pinned playlists may be changed - ex. videos are added or playlist is deleted.
+                sync();
+            else
+                schedule();
+        }
+    };
+
+    private OfflineStore() {
+        UnexpectedExceptionHandler.get().registerModule(this);
+        mDb.registerToPlaylistTableWatcher(this);
+    }
+
+    public static OfflineStore
+    get() {
+        if (null == sInstance)
+            sInstance = new OfflineStore();
+        return sInstance;
+    }
+
+    private static File
+    getFile(String ytvid) {
+        return new File(Policy.APPDATA_VIDDIR + ytvid + FILE_EXT);
+    }
+
+    /**
+     * Thread safe.
+     * @return
+     *   null if video is not stored.
+     */
+    public static File
+    getStoredFile(String ytvid) {
+        File f = getFile(ytvid);
+        return f.exists() && f.canRead()? f: null;
+    }
+
+    private static boolean
+    canDownload() {
+        return Utils.isNetworkAvailable()
+               && (!Policy.OFFLINE_WIFI_ONLY || Utils.isWifiConnected())
+               && (!Policy.OFFLINE_CHARGING_ONLY || Utils.isCharging());
+    }
+
+    private void
+    acquireLocks() {
+        if (null != mWl)
+            return; // already locked nothing to do
+
+        eAssert(null == mWfl);
+        mWl = ((PowerManager)Utils.getAppContext().getSystemService(Context.POWER_SERVICE))
+                .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, WLTAG);
+        // Downloading may be continued for hours with screen off.
+        mWfl = ((WifiManager)Utils.getAppContext().getSystemService(Context.WIFI_SERVICE))
+                .createWifiLock(WifiManager.WIFI_MODE_FULL, WLTAG);
+        mWl.acquire();
+        mWfl.acquire();
+    }
+
+    private void
+    releaseLocks() {
+        if (null == mWl)
+            return;
+
+        eAssert(null != mWfl);
+        mWl.release();
+        mWfl.release();
+
+        mWl = null;
+        mWfl = null;
+    }
+
+    /**
+     * @return
+     *   ytvids of videos in pinned playlists - in order of playlist title and video title.
+     */
+    private LinkedHashSet<String>
+    loadPinnedVideos() {
+        LinkedHashSet<String> ytvids = new LinkedHashSet<String>();
+        Cursor c = mDb.queryPlaylist(new ColPlaylist[] { ColPlaylist.ID, ColPlaylist.PINNED });
+        try {
+            if (!c.moveToFirst())
+                return ytvids;
+            do {
+                if (0 == c.getLong(1))
+                    continue;
+                Cursor vc = mDb.queryVideos(c.getLong(0),
+                                            new ColVideo[] { ColVideo.VIDEOID },
+                                            ColVideo.TITLE,
+                                            true);
+                try {
+                    if (vc.moveToFirst()) {
+                        do {
+                            ytvids.add(vc.getString(0));
+                        } while (vc.moveToNext());
+                    }
+                } finally {
+                    vc.close();
+                }
+            } while (c.moveToNext());
+        } finally {
+            c.close();
+        }
+        return ytvids;
+    }
+
+    /**
+     * Files of videos that are not pinned anymore, are removed.
+     * Partially downloaded data is also removed.
+     * @param gen
+     *   sync generation that 'pinned' is taken at.
+     *   Newer sync may pin the video again and restart downloading it. Then, it's files SHOULD be kept.
+     */
+    private void
+    removeUnpinnedFilesAsync(final HashSet<String> pinned, final int gen) {
+        TaskExecutor.get().execute(TaskExecutor.Lane.BULK, new Runnable() {
+            @Override
+            public void
+            run() {
+                File[] fs = new File(Policy.APPDATA_VIDDIR).listFiles();
+                if (null == fs)
+                    return;
+                for (File f : fs) {
+                    // ex. "<ytvid>.mp4" or "<ytvid>.mp4.part"
+                    String name = f.getName();
+                    int i = name.indexOf('.');
+                    if (i < 0
+                        || !pinned.contains(name.substring(0, i))) {
+                        // Checking and deleting are done under lock.
+                        // So, newer sync never starts downloading before stale file is deleted.
+                        synchronized (mRemoveLock) {
+                            if (gen != mSyncGen)
+                                return;
+                            if (DBG) P.v("Remove unpinned : " + name);
+                            f.delete();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private void
+    stopDownload(String ytvid) {
+        YTDownloader dnr = mRunning.remove(ytvid);
+        if (null != dnr)
+            // Partially downloaded data is kept to be resumed.
+            dnr.close();
+    }
+
+    /**
+     * @return
+     *   false if download cannot be started. Video is pushed back to pending queue in this case.
+     */
+    private boolean
+    startDownload(final String ytvid, long delay) {
+        YTDownloader dnr = new YTDownloader(NetAdmission.TrafficClass.IMPORT);
+        dnr.open("", new YTDownloader.DownloadDoneReceiver() {
+            @Override
+            public void
+            downloadDone(YTDownloader downloader, YTDownloader.DnArg arg, YTDownloader.Err err) {
+                downloader.close();
+                if (mRunning.get(ytvid) != downloader)
+                    return; // Already stopped.
+                mRunning.remove(ytvid);
+                onDownloadDone(ytvid, err);
+            }
+        });
+        mRunning.put(ytvid, dnr);
+        // Muxed stream is stored. So, it can be played at both video and audio mode.
+        YTDownloader.Err err = dnr.downloadResumable(ytvid,
+                                                     getFile(ytvid),
+                                                     YTPlayer.mapPrefToQScore(Utils.getPrefQuality()),
+                                                     delay);
+        if (YTDownloader.Err.NO_ERR != err) {
+            // Network is lost in the meantime. Try again later.
+            stopDownload(ytvid);
+            mPending.addFirst(ytvid);
+            return false;
+        }
+        return true;
+    }
+
+    private void
+    onDownloadDone(String ytvid, YTDownloader.Err err) {
+        if (DBG) P.v("Download done : " + ytvid + " : " + err.name());
+        switch (err) {
+        case NO_ERR:
+            mNrDone++;
+            mFailures.remove(ytvid);
+            break;
+
+        case NETWORK_UNAVAILABLE:
+        case INTERRUPTED:
+            // Not a problem of this video. Try again when constraints are met.
+            mPending.addFirst(ytvid);
+            break;
+
+        default:
+            Integer n = mFailures.get(ytvid);
+            n = null == n? 1: n + 1;
+            mFailures.put(ytvid, n);
+            if (n < Policy.OFFLINE_MAX_RETRY) {
+                long delay = RetryPolicy.backoffDelay(n - 1,
+                                                      Policy.OFFLINE_RETRY_BASE_DELAY,
+                                                      Policy.OFFLINE_RETRY_MAX_DELAY);
+                if (DBG) P.v("Retry " + ytvid + " after " + delay + "ms");
+                startDownload(ytvid, delay);
+            } else {
+                if (DBG) P.w("Give up : " + ytvid);
+                mNrGiveUp++;
+            }
+        }
+        schedule();
+    }
+
+    private void
+    schedule() {
+        Utils.getUiHandler().removeCallbacks(mRecheck);
+        if (mPending.isEmpty()
+            && mRunning.isEmpty()) {
+            releaseLocks();
+            return;
+        }
+
+        if (!canDownload()) {
+            if (DBG && !mSuspended) P.v("Suspended : constraints are not met");
+            mSuspended = true;
+            String[] ytvids = mRunning.keySet().toArray(new String[0]);
+            for (int i = ytvids.length - 1; i >= 0; i--) {
+                stopDownload(ytvids[i]);
+                mPending.addFirst(ytvids[i]);
+            }
+            releaseLocks();
+        } else {
+            mSuspended = false;
+            acquireLocks();
+            while (mRunning.size() < Policy.OFFLINE_MAX_CONCURRENT
+                   && !mPending.isEmpty()) {
+                String ytvid = mPending.removeFirst();
+                if (!mRunning.containsKey(ytvid)
+                    && !getFile(ytvid).exists()
+                    && !startDownload(ytvid, 0))
+                    break;
+            }
+        }
+        // Constraints may be changed while downloading.
+        Utils.getUiHandler().postDelayed(mRecheck, Policy.OFFLINE_RECHECK_INTERVAL);
+    }
+
+    // ========================================================================
+    //
+    //
+    //
+    // ========================================================================
+    /**
+     * Re-build download queue from pinned playlists of DB.
+     * Files of videos that are not pinned anymore, are removed.
+     */
+    public void
+    sync() {
+        eAssert(Utils.isUiThread());
+        // This also clears 'updated' flag.
+        mDb.registerToPlaylistTableWatcher(this);
+        LinkedHashSet<String> pinned = loadPinnedVideos();
+        int gen;
+        synchronized (mRemoveLock) {
+            gen = ++mSyncGen;
+        }
+
+        Iterator<String> iter = mRunning.keySet().iterator();
+        while (iter.hasNext()) {
+            String ytvid = iter.next();
+            if (!pinned.contains(ytvid)) {
+                mRunning.get(ytvid).close();
+                iter.remove();
+            }
+        }
+
+        mPending.clear();
+        mFailures.clear();
+        mNrDone = 0;
+        mNrGiveUp = 0;
+        for (String ytvid : pinned) {
+            if (!mRunning.containsKey(ytvid)
+                && !getFile(ytvid).exists())
+                mPending.addLast(ytvid);
+        }
+        if (DBG) P.v("Sync : pinned " + pinned.size() + ", to download " + mPending.size());
+        removeUnpinnedFilesAsync(new HashSet<String>(pinned), gen);
+        schedule();
+    }
+
+    public boolean
+    isPinned(long plid) {
+        Long v = (Long)mDb.getPlaylistInfo(plid, ColPlaylist.PINNED);
+        return null != v && 0 != v;
+    }
+
+    /**
+     * Videos of pinned playlist are downloaded to the store in background.
+     * If playlist is unpinned, files of it's videos are removed - unless other pinned playlist has it.
+     */
+    public void
+    setPinned(long plid, boolean pinned) {
+        eAssert(Utils.isUiThread());
+        mDb.updatePlaylist(plid, ColPlaylist.PINNED, pinned? 1L: 0L);
+        sync();
+    }
+
+    /**
+     * Stored file is broken - ex. it cannot be played.
+     * It is removed and downloaded again.
+     * @param f
+     *   Ignored if it is not a file of the store.
+     */
+    public void
+    invalidate(File f) {
+        eAssert(Utils.isUiThread());
+        if (!f.getAbsolutePath().startsWith(new File(Policy.APPDATA_VIDDIR).getAbsolutePath()))
+            return;
+        if (DBG) P.w("Invalidate : " + f.getAbsolutePath());
+        f.delete();
+        sync();
+    }
+
+    /**
+     * Called when network state is changed. Downloading is suspended or resumed.
+     */
+    public void
+    onNetworkChanged() {
+        eAssert(Utils.isUiThread());
+        schedule();
+    }
+
+    @Override
+    public String
+    dump(UnexpectedExceptionHandler.DumpLevel lvl) {
+        return this.getClass().getName() + "\n"
+               + "  running : " + mRunning.size() + "\n"
+               + "  pending : " + mPending.size() + "\n"
+               + "  suspended : " + mSuspended + "\n"
+               + "  done : " + mNrDone + "\n"
+               + "  give up : " + mNrGiveUp;
+    }
+}
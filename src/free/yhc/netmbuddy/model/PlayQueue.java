@@ -0,0 +1,441 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+package free.yhc.netmbuddy.model;
+
+import static free.yhc.netmbuddy.utils.Utils.eAssert;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import free.yhc.netmbuddy.utils.Utils;
+
+// Video queue of player.
+//
+// Videos are stored at fixed-size chunks. So, inserting or removing one video
+//   moves at most one chunk - not whole queue.
+// Start index of each chunk is cached and recalculated lazily.
+// So, index lookup is binary search over chunks.
+//   - append           : O(1)
+//   - get(index)       : O(log(n / CHUNK_SIZE))
+//   - insert / remove  : O(CHUNK_SIZE + n / CHUNK_SIZE)
+//   - lookup by ytvid  : O(1) (map of ytvid -> entries)
+//
+// Video may be queued only with it's DB id and ytvid.
+// Other information of it(title, volume and so on) is loaded from DB on demand,
+//   in a window around requested index. See Loader.
+// So, huge list can be queued without reading all information of it.
+//
+// NOTE
+// This is NOT thread-safe. Owner should take care of it.
+class PlayQueue {
+    private static final boolean DBG = false;
+    private static final Utils.Logger P = new Utils.Logger(PlayQueue.class);
+
+    private static final int CHUNK_SIZE = 256;
+    private static final int LOAD_WINDOW = Policy.YTPLAYER_QUEUE_LOAD_WINDOW;
+
+    private final Loader            mLoader;
+
+    private final ArrayList<Chunk>  mChunks = new ArrayList<Chunk>();
+    // ytvid -> entries having the ytvid. (Same video may be in queue several times.)
+    private final HashMap<String, ArrayList<Entry>> mVidMap
+        = new HashMap<String, ArrayList<Entry>>();
+    // mStarts[i] : index of first video in mChunks[i].
+    // Only mStarts[0, mNrValidStarts) is valid.
+    private int[]               mStarts = new int[16];
+    private int                 mNrValidStarts = 0;
+    private int                 mSize = 0;
+
+    interface Loader {
+        /**
+         * @param ids
+         *   DB ids of videos
+         * @return
+         *   Same order with 'ids'. null element if video doesn't exist at DB anymore.
+         */
+        YTPlayer.Video[] load(long[] ids);
+    }
+
+    private static class Entry {
+        final String            ytvid;
+        final long              dbid;   // -1 if video is not loaded from DB.
+        YTPlayer.Video          v;      // null if it's not loaded yet.
+        Chunk                   chunk = null;
+        Entry(YTPlayer.Video aV) {
+            ytvid = aV.ytvid;
+            dbid = -1;
+            v = aV;
+        }
+
+        Entry(String aYtvid, long aDbid, YTPlayer.Video aV) {
+            ytvid = aYtvid;
+            dbid = aDbid;
+            v = aV;
+        }
+    }
+
+    private static class Chunk {
+        final Entry[]   es = new Entry[CHUNK_SIZE];
+        int             n = 0;
+        int             idx; // index at mChunks
+        Chunk(int aIdx) {
+            idx = aIdx;
+        }
+    }
+
+    PlayQueue(Loader loader) {
+        mLoader = loader;
+    }
+
+    // ------------------------------------------------------------------------
+    //
+    // ------------------------------------------------------------------------
+    private void
+    invalidateStarts(int chunki) {
+        // Start index of chunk 'chunki' itself is not changed.
+        mNrValidStarts = Math.min(mNrValidStarts, chunki + 1);
+    }
+
+    private void
+    ensureStarts() {
+        int nrChunks = mChunks.size();
+        if (mStarts.length < nrChunks)
+            mStarts = Arrays.copyOf(mStarts, Math.max(nrChunks, mStarts.length * 2));
+        for (int i = mNrValidStarts; i < nrChunks; i++)
+            mStarts[i] = 0 == i? 0: mStarts[i - 1] + mChunks.get(i - 1).n;
+        mNrValidStarts = nrChunks;
+    }
+
+    private void
+    renumberChunks(int from) {
+        for (int i = from; i < mChunks.size(); i++)
+            mChunks.get(i).idx = i;
+    }
+
+    /**
+     * @return
+     *   index of chunk having video at 'index'.
+     */
+    private int
+    locate(int index) {
+        eAssert(0 <= index && index < mSize);
+        ensureStarts();
+        int lo = 0;
+        int hi = mChunks.size() - 1;
+        // Find last chunk whose start is not larger than index.
+        // Empty chunk is never exists except for the case that queue is empty.
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mStarts[mid] <= index)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    private Chunk
+    addChunk(int chunki) {
+        Chunk c = new Chunk(chunki);
+        mChunks.add(chunki, c);
+        renumberChunks(chunki + 1);
+        invalidateStarts(chunki);
+        return c;
+    }
+
+    /**
+     * Move upper half of chunk to new chunk.
+     */
+    private void
+    splitChunk(int chunki) {
+        Chunk c = mChunks.get(chunki);
+        Chunk nc = addChunk(chunki + 1);
+        int half = c.n / 2;
+        nc.n = c.n - half;
+        System.arraycopy(c.es, half, nc.es, 0, nc.n);
+        Arrays.fill(c.es, half, c.n, null);
+        c.n = half;
+        for (int i = 0; i < nc.n; i++)
+            nc.es[i].chunk = nc;
+        invalidateStarts(chunki);
+    }
+
+    private void
+    mapAdd(Entry e) {
+        ArrayList<Entry> es = mVidMap.get(e.ytvid);
+        if (null == es) {
+            es = new ArrayList<Entry>(1);
+            mVidMap.put(e.ytvid, es);
+        }
+        es.add(e);
+    }
+
+    private void
+    mapRemove(Entry e) {
+        ArrayList<Entry> es = mVidMap.get(e.ytvid);
+        // NOTE : Entry doesn't override 'equals'. So, it is removed by identity.
+        es.remove(e);
+        if (es.isEmpty())
+            mVidMap.remove(e.ytvid);
+    }
+
+    private int
+    indexOf(Entry e) {
+        ensureStarts();
+        Chunk c = e.chunk;
+        for (int i = 0; i < c.n; i++) {
+            if (c.es[i] == e)
+                return mStarts[c.idx] + i;
+        }
+        eAssert(false);
+        return -1;
+    }
+
+    private Entry
+    entryAt(int index) {
+        int chunki = locate(index);
+        return mChunks.get(chunki).es[index - mStarts[chunki]];
+    }
+
+    /**
+     * Load videos around 'index' at once.
+     */
+    private void
+    loadWindow(int index) {
+        int from = Math.max(0, index - LOAD_WINDOW / 4);
+        int to = Math.min(mSize, from + LOAD_WINDOW);
+        ArrayList<Entry> es = new ArrayList<Entry>(to - from);
+        for (int i = from; i < to; i++) {
+            Entry e = entryAt(i);
+            if (null == e.v)
+                es.add(e);
+        }
+        long[] ids = new long[es.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = es.get(i).dbid;
+
+        YTPlayer.Video[] vs = mLoader.load(ids);
+        for (int i = 0; i < ids.length; i++) {
+            Entry e = es.get(i);
+            if (null != vs[i])
+                e.v = vs[i];
+            else {
+                // Deleted from DB after it's queued. It can still be played.
+                if (DBG) P.w("Video is not in DB : " + e.ytvid);
+                e.v = new YTPlayer.Video(e.ytvid, "", "", Policy.DEFAULT_VIDEO_VOLUME, 0, 0);
+            }
+        }
+    }
+
+    private void
+    insertOne(int index, Entry e) {
+        int chunki;
+        int off;
+        if (mChunks.isEmpty())
+            addChunk(0);
+
+        if (index == mSize) {
+            chunki = mChunks.size() - 1;
+            off = mChunks.get(chunki).n;
+        } else {
+            chunki = locate(index);
+            off = index - mStarts[chunki];
+        }
+
+        Chunk c = mChunks.get(chunki);
+        if (CHUNK_SIZE == c.n) {
+            if (CHUNK_SIZE == off) {
+                // Appending to full chunk.
+                chunki++;
+                c = addChunk(chunki);
+                off = 0;
+            } else {
+                splitChunk(chunki);
+                if (off > c.n) {
+                    off -= c.n;
+                    chunki++;
+                    c = mChunks.get(chunki);
+                }
+            }
+        }
+
+        System.arraycopy(c.es, off, c.es, off + 1, c.n - off);
+        c.es[off] = e;
+        c.n++;
+        e.chunk = c;
+        mSize++;
+        invalidateStarts(chunki);
+        mapAdd(e);
+    }
+
+    // ------------------------------------------------------------------------
+    //
+    // ------------------------------------------------------------------------
+    int
+    size() {
+        return mSize;
+    }
+
+    boolean
+    isEmpty() {
+        return 0 == mSize;
+    }
+
+    YTPlayer.Video
+    get(int index) {
+        Entry e = entryAt(index);
+        if (null == e.v)
+            loadWindow(index);
+        eAssert(null != e.v);
+        return e.v;
+    }
+
+    /**
+     * @return
+     *   -1 if video is not in DB.
+     */
+    long
+    getDbid(int index) {
+        return entryAt(index).dbid;
+    }
+
+    /**
+     * Unlike get(), this never loads video from DB.
+     */
+    String
+    getYtvid(int index) {
+        return entryAt(index).ytvid;
+    }
+
+    boolean
+    contains(String ytvid) {
+        return mVidMap.containsKey(ytvid);
+    }
+
+    /**
+     * @return
+     *   sorted indexes of videos having 'ytvid'. Empty array if there is no such video.
+     */
+    int[]
+    indexesOf(String ytvid) {
+        ArrayList<Entry> es = mVidMap.get(ytvid);
+        if (null == es)
+            return new int[0];
+        int[] r = new int[es.size()];
+        for (int i = 0; i < r.length; i++)
+            r[i] = indexOf(es.get(i));
+        Arrays.sort(r);
+        return r;
+    }
+
+    /**
+     * @return
+     *   index of first video at or after 'from' that is NOT 'ytvid'. -1 if fail to find.
+     */
+    int
+    indexOfExcept(int from, String ytvid) {
+        eAssert(0 <= from && from <= mSize);
+        if (!contains(ytvid))
+            return from < mSize? from: -1;
+
+        for (int i = from; i < mSize; i++) {
+            if (!ytvid.equals(getYtvid(i)))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @param index
+     *   position where first video is inserted at. 'size()' to append.
+     */
+    void
+    insert(int index, YTPlayer.Video[] vs) {
+        eAssert(0 <= index && index <= mSize);
+        for (YTPlayer.Video v : vs)
+            insertOne(index++, new Entry(v));
+    }
+
+    /**
+     * Videos are loaded from DB later when they are used.
+     * @param ids
+     *   DB ids of videos. -1 if video is not in DB.
+     * @param ytvids
+     *   ytvids of videos
+     * @param vs
+     *   Already loaded videos. null element if it's not loaded yet.
+     *   Video that is not in DB SHOULD be given.
+     *   'vs' itself can be null if there is no loaded video.
+     */
+    void
+    insert(int index, long[] ids, String[] ytvids, YTPlayer.Video[] vs) {
+        eAssert(0 <= index && index <= mSize && ids.length == ytvids.length);
+        for (int i = 0; i < ids.length; i++) {
+            YTPlayer.Video v = null == vs? null: vs[i];
+            eAssert(ids[i] >= 0 || null != v);
+            insertOne(index++, new Entry(ytvids[i], ids[i], v));
+        }
+    }
+
+    void
+    append(YTPlayer.Video[] vs) {
+        insert(mSize, vs);
+    }
+
+    void
+    remove(int index) {
+        int chunki = locate(index);
+        Chunk c = mChunks.get(chunki);
+        int off = index - mStarts[chunki];
+        Entry e = c.es[off];
+        System.arraycopy(c.es, off + 1, c.es, off, c.n - off - 1);
+        c.es[--c.n] = null;
+        mSize--;
+        mapRemove(e);
+        if (0 == c.n) {
+            mChunks.remove(chunki);
+            renumberChunks(chunki);
+        }
+        invalidateStarts(chunki);
+    }
+
+    void
+    clear() {
+        mChunks.clear();
+        mVidMap.clear();
+        mNrValidStarts = 0;
+        mSize = 0;
+    }
+
+    /**
+     * @return
+     *   at most 'nr' videos starting from 'from'.
+     */
+    YTPlayer.Video[]
+    toArray(int from, int nr) {
+        eAssert(0 <= from && from <= mSize && nr >= 0);
+        YTPlayer.Video[] vs = new YTPlayer.Video[Math.min(nr, mSize - from)];
+        for (int i = 0; i < vs.length; i++)
+            vs[i] = get(from + i);
+        return vs;
+    }
+}
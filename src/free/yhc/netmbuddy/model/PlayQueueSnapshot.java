@@ -0,0 +1,488 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+package free.yhc.netmbuddy.model;
+
+import static free.yhc.netmbuddy.utils.Utils.eAssert;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import free.yhc.netmbuddy.utils.Utils;
+
+// Persistent snapshot of play queue and playing position.
+// This is used to resume playing after process is killed.
+//
+// File is journal of records.
+//   - First record is always full list of queue (RESET).
+//   - Changes of queue and position are appended as small records.
+//   - If appended records become large, file is compacted - re-written with one RESET record.
+// So, each change costs only small append. And whole state is read by one sequential read.
+//
+// Record : [type(1)][payload length(4)][payload]
+// Incomplete record at the end - ex. process is killed while writing - is ignored.
+//
+// NOTE
+// Public interfaces, except for load(), SHOULD be called at UI thread - same thread that owns play queue.
+// All file IOs are done at dedicated thread in order.
+class PlayQueueSnapshot {
+    private static final boolean DBG = false;
+    private static final Utils.Logger P = new Utils.Logger(PlayQueueSnapshot.class);
+
+    private static final int    FILE_MAGIC      = 0x50515353; // 'PQSS'
+    private static final int    FILE_VERSION    = 1;
+
+    private static final byte   REC_RESET       = 1;
+    private static final byte   REC_INSERT      = 2;
+    private static final byte   REC_REMOVE      = 3;
+    private static final byte   REC_POSITION    = 5;
+
+    private static PlayQueueSnapshot sInstance = null;
+
+    private final File          mFile;
+    private final Handler       mHandler;
+
+    // Bytes of RESET record at last compaction, and bytes appended after it.
+    // Accessed only at UI thread.
+    private long                mBaseBytes      = 0;
+    private long                mAppendedBytes  = 0;
+
+    // Used only at writer thread.
+    private FileOutputStream    mFos = null;
+
+    static class State {
+        final long[]            ids;
+        final String[]          ytvids;
+        final YTPlayer.Video[]  vs;     // null element if video is in DB.
+        final int               index;  // active video index
+        final int               pos;    // ms
+        final int               vol;
+        State(long[] aIds, String[] aYtvids, YTPlayer.Video[] aVs,
+              int aIndex, int aPos, int aVol) {
+            ids = aIds;
+            ytvids = aYtvids;
+            vs = aVs;
+            index = aIndex;
+            pos = aPos;
+            vol = aVol;
+        }
+    }
+
+    // Queue item at restoring.
+    private static class Item {
+        final long              id;
+        final String            ytvid;
+        final YTPlayer.Video    v;
+        Item(long aId, String aYtvid, YTPlayer.Video aV) {
+            id = aId;
+            ytvid = aYtvid;
+            v = aV;
+        }
+    }
+
+    private PlayQueueSnapshot(File file) {
+        mFile = file;
+        HandlerThread thd = new HandlerThread("PlayQueueSnapshot",
+                                              Process.THREAD_PRIORITY_BACKGROUND);
+        thd.start();
+        mHandler = new Handler(thd.getLooper());
+    }
+
+    static PlayQueueSnapshot
+    get() {
+        if (null == sInstance)
+            sInstance = new PlayQueueSnapshot(new File(Policy.YTPLAYER_PLAYQ_SNAPSHOT_FILE));
+        return sInstance;
+    }
+
+    // ------------------------------------------------------------------------
+    // Serialization
+    // ------------------------------------------------------------------------
+    private static void
+    writeItems(DataOutputStream dos, long[] ids, String[] ytvids, YTPlayer.Video[] vs)
+            throws IOException {
+        dos.writeInt(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            dos.writeLong(ids[i]);
+            dos.writeUTF(ytvids[i]);
+            if (ids[i] < 0) {
+                // Not in DB. So, all information should be kept.
+                dos.writeUTF(null == vs[i].title? "": vs[i].title);
+                dos.writeUTF(null == vs[i].author? "": vs[i].author);
+                dos.writeInt(vs[i].volume);
+                dos.writeInt(vs[i].playtime);
+            }
+        }
+    }
+
+    private static void
+    readItems(DataInputStream dis, ArrayList<Item> items, int index)
+            throws IOException {
+        int nr = dis.readInt();
+        if (nr < 0)
+            throw new IOException("Invalid item count");
+        ArrayList<Item> newItems = new ArrayList<Item>(nr);
+        for (int i = 0; i < nr; i++) {
+            long id = dis.readLong();
+            String ytvid = dis.readUTF();
+            YTPlayer.Video v = null;
+            if (id < 0)
+                v = new YTPlayer.Video(ytvid, dis.readUTF(), dis.readUTF(),
+                                       dis.readInt(), dis.readInt(), 0);
+            newItems.add(new Item(id, ytvid, v));
+        }
+        items.addAll(index, newItems);
+    }
+
+    /**
+     * Copy videos at [from, to) of queue.
+     * Videos in DB are not loaded from DB.
+     */
+    private static void
+    copyItems(PlayQueue q, int from, int to,
+              long[] ids, String[] ytvids, YTPlayer.Video[] vs) {
+        for (int i = from; i < to; i++) {
+            ids[i - from] = q.getDbid(i);
+            ytvids[i - from] = q.getYtvid(i);
+            // Video that is not in DB is always loaded.
+            if (ids[i - from] < 0)
+                vs[i - from] = q.get(i);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Writer thread
+    // ------------------------------------------------------------------------
+    private void
+    closeFileW() {
+        if (null == mFos)
+            return;
+        try {
+            mFos.close();
+        } catch (IOException ignored) { }
+        mFos = null;
+    }
+
+    private void
+    appendW(byte[] rec) {
+        try {
+            if (null == mFos) {
+                if (!mFile.exists())
+                    return; // There is no base snapshot. Appending is meaningless.
+                mFos = new FileOutputStream(mFile, true);
+            }
+            mFos.write(rec);
+        } catch (IOException e) {
+            if (DBG) P.w("Fail to append snapshot : " + e.getMessage());
+            // Broken snapshot is worse than nothing.
+            closeFileW();
+            mFile.delete();
+        }
+    }
+
+    private void
+    rewriteW(byte[] reset, byte[] position) {
+        closeFileW();
+        File tmpf = new File(mFile.getAbsolutePath() + "-tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmpf);
+            DataOutputStream dos = new DataOutputStream(fos);
+            dos.writeInt(FILE_MAGIC);
+            dos.writeInt(FILE_VERSION);
+            dos.write(reset);
+            dos.write(position);
+            dos.flush();
+            fos.close();
+            fos = null;
+            if (!tmpf.renameTo(mFile))
+                mFile.delete();
+        } catch (IOException e) {
+            if (DBG) P.w("Fail to write snapshot : " + e.getMessage());
+            mFile.delete();
+        } finally {
+            if (null != fos)
+                try {
+                    fos.close();
+                } catch (IOException ignored) { }
+            tmpf.delete();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Records
+    // ------------------------------------------------------------------------
+    private static byte[]
+    record(byte type, byte[] payload) {
+        byte[] rec = new byte[5 + payload.length];
+        rec[0] = type;
+        rec[1] = (byte)(payload.length >>> 24);
+        rec[2] = (byte)(payload.length >>> 16);
+        rec[3] = (byte)(payload.length >>> 8);
+        rec[4] = (byte)payload.length;
+        System.arraycopy(payload, 0, rec, 5, payload.length);
+        return rec;
+    }
+
+    private static byte[]
+    intsRecord(byte type, int... vs) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(vs.length * 4);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int v : vs)
+                dos.writeInt(v);
+        } catch (IOException e) {
+            eAssert(false); // never happen with byte array stream.
+        }
+        return record(type, baos.toByteArray());
+    }
+
+    private static byte[]
+    itemsRecord(byte type, int index, long[] ids, String[] ytvids, YTPlayer.Video[] vs) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(ids.length * 24 + 8);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(index);
+            writeItems(dos, ids, ytvids, vs);
+        } catch (IOException e) {
+            eAssert(false); // never happen with byte array stream.
+        }
+        return record(type, baos.toByteArray());
+    }
+
+    private void
+    append(final byte[] rec) {
+        mAppendedBytes += rec.length;
+        mHandler.post(new Runnable() {
+            @Override
+            public void
+            run() {
+                appendW(rec);
+            }
+        });
+    }
+
+    private boolean
+    needCompaction() {
+        return mAppendedBytes > Math.max(mBaseBytes, Policy.YTPLAYER_PLAYQ_SNAPSHOT_MIN_COMPACT);
+    }
+
+    // ------------------------------------------------------------------------
+    // Interfaces
+    // ------------------------------------------------------------------------
+    /**
+     * Whole queue is written. Snapshot is removed if queue is empty.
+     */
+    void
+    putQueue(PlayQueue q, int index, int pos, int vol) {
+        eAssert(Utils.isUiThread());
+        if (q.isEmpty()) {
+            clear();
+            return;
+        }
+
+        final long[] ids = new long[q.size()];
+        final String[] ytvids = new String[ids.length];
+        final YTPlayer.Video[] vs = new YTPlayer.Video[ids.length];
+        copyItems(q, 0, ids.length, ids, ytvids, vs);
+        final byte[] posrec = intsRecord(REC_POSITION, index, pos, vol);
+        mBaseBytes = ids.length * 24; // rough estimation.
+        mAppendedBytes = 0;
+        // Serialization of large queue is done at writer thread, too.
+        mHandler.post(new Runnable() {
+            @Override
+            public void
+            run() {
+                rewriteW(itemsRecord(REC_RESET, 0, ids, ytvids, vs), posrec);
+            }
+        });
+    }
+
+    /**
+     * @return
+     *   false if whole queue should be written by putQueue() - compaction is required.
+     */
+    boolean
+    putInserted(PlayQueue q, int from, int to) {
+        eAssert(Utils.isUiThread());
+        if (needCompaction())
+            return false;
+        long[] ids = new long[to - from];
+        String[] ytvids = new String[ids.length];
+        YTPlayer.Video[] vs = new YTPlayer.Video[ids.length];
+        copyItems(q, from, to, ids, ytvids, vs);
+        append(itemsRecord(REC_INSERT, from, ids, ytvids, vs));
+        return true;
+    }
+
+    /**
+     * See putInserted()
+     */
+    boolean
+    putRemoved(int from, int to) {
+        eAssert(Utils.isUiThread());
+        if (needCompaction())
+            return false;
+        append(intsRecord(REC_REMOVE, from, to));
+        return true;
+    }
+
+    /**
+     * See putInserted()
+     */
+    boolean
+    putPosition(int index, int pos, int vol) {
+        eAssert(Utils.isUiThread());
+        if (needCompaction())
+            return false;
+        append(intsRecord(REC_POSITION, index, pos, vol));
+        return true;
+    }
+
+    void
+    clear() {
+        eAssert(Utils.isUiThread());
+        mBaseBytes = 0;
+        mAppendedBytes = 0;
+        mHandler.post(new Runnable() {
+            @Override
+            public void
+            run() {
+                closeFileW();
+                mFile.delete();
+            }
+        });
+    }
+
+    /**
+     * File is read at once and replayed on memory.
+     * This can be called at any thread.
+     * @return
+     *   null if there is no valid snapshot.
+     */
+    State
+    load() {
+        if (!mFile.exists())
+            return null;
+
+        byte[] data;
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(mFile);
+            long len = mFile.length();
+            if (len > Integer.MAX_VALUE)
+                return null;
+            data = new byte[(int)len];
+            int off = 0;
+            while (off < data.length) {
+                int n = fis.read(data, off, data.length - off);
+                if (n < 0)
+                    break;
+                off += n;
+            }
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (null != fis)
+                try {
+                    fis.close();
+                } catch (IOException ignored) { }
+        }
+
+        ArrayList<Item> items = new ArrayList<Item>();
+        int index = 0, pos = 0, vol = Policy.DEFAULT_VIDEO_VOLUME;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (FILE_MAGIC != dis.readInt()
+                || FILE_VERSION != dis.readInt())
+                return null;
+
+            while (dis.available() >= 5) {
+                byte type = dis.readByte();
+                int plen = dis.readInt();
+                if (plen < 0
+                    || plen > dis.available())
+                    break; // incomplete record.
+
+                switch (type) {
+                case REC_RESET:
+                    items.clear();
+                    dis.readInt();
+                    readItems(dis, items, 0);
+                    break;
+
+                case REC_INSERT: {
+                    int at = dis.readInt();
+                    if (at < 0 || at > items.size())
+                        throw new IOException("Invalid insert position");
+                    readItems(dis, items, at);
+                } break;
+
+                case REC_REMOVE: {
+                    int from = dis.readInt();
+                    int to = dis.readInt();
+                    if (from < 0 || to > items.size() || from > to)
+                        throw new IOException("Invalid remove range");
+                    items.subList(from, to).clear();
+                } break;
+
+                case REC_POSITION:
+                    index = dis.readInt();
+                    pos = dis.readInt();
+                    vol = dis.readInt();
+                    break;
+
+                default:
+                    // Unknown record. Skip it.
+                    dis.skipBytes(plen);
+                }
+            }
+        } catch (IOException e) {
+            if (DBG) P.w("Broken snapshot : " + e.getMessage());
+            return null;
+        }
+
+        if (items.isEmpty())
+            return null;
+
+        long[] ids = new long[items.size()];
+        String[] ytvids = new String[ids.length];
+        YTPlayer.Video[] vs = new YTPlayer.Video[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            Item it = items.get(i);
+            ids[i] = it.id;
+            ytvids[i] = it.ytvid;
+            vs[i] = it.v;
+        }
+        if (index < 0 || index >= ids.length)
+            index = 0;
+        return new State(ids, ytvids, vs, index, pos, vol);
+    }
+}
@@ -33,8 +33,17 @@ public class Policy {
     public static final String  APPDATA_TMPDIR          = APPDATA_DIR + "tmp/";
     public static final String  APPDATA_LOGDIR          = APPDATA_DIR + "logs/";
     public static final String  APPDATA_CACHEDIR        = APPDATA_DIR + "cache/";
+    // Http cache is kept across app restarts - unlike APPDATA_CACHEDIR.
+    public static final String  APPDATA_HTTPCACHEDIR    = APPDATA_DIR + "httpcache/";
     // Downloaded video directory
     public static final String  APPDATA_VIDDIR          = APPDATA_DIR + "videos/";
+    // Videos that are likely to be played. Kept across app restarts. See CacheWarmer.
+    public static final String  APPDATA_WARMDIR         = APPDATA_DIR + "warm/";
+    // Broken cached files are moved here instead of being played. See CacheIndex.
+    // Cleared at app start - like APPDATA_TMPDIR.
+    public static final String  APPDATA_QUARANTINEDIR   = APPDATA_DIR + "quarantine/";
+    // Time of last checksum verification of cached files. See CacheIndex.
+    public static final String  APPDATA_CACHE_VERIFIED  = APPDATA_DIR + "cacheverified";
     public static final String  APPDATA_ERRLOG          = APPDATA_LOGDIR + "last_error";
     public static final String  EXTERNAL_DBFILE         = APPDATA_DIR + APPBASENAME + ".db";
 
@@ -64,8 +73,50 @@ public class Policy {
     // The problem is, there is no way to know exact expire time even if there is 'expire' token is html source.
     // (It's totally dependent on server-side-implementation.)
     // So, this is just experimental value!
+    // This is used only when stream url doesn't have 'expire' parameter.
     public static final int     YTHACK_REUSE_TIMEOUT    = 5 * 60 * 1000; // 5 minutes
-    public static final int     YTHACK_CACHE_SIZE       = 10; // large enough to hit cache for current active video.
+    // Stream url is regarded as expired this much earlier than 'expire' parameter in url.
+    public static final int     YTHACK_EXPIRE_MARGIN    = 60 * 1000; // 1 minute
+    // Persistent stream cache.
+    // Each entry is about 2~4 KB (several stream urls).
+    public static final String  YTHACK_STREAM_CACHE_FILE    = APPDATA_DIR + "streamcache";
+    public static final int     YTHACK_STREAM_CACHE_ENTRIES = 200;
+    public static final long    YTHACK_STREAM_CACHE_BYTES   = 512 * 1024;
+
+    // Streams of this number of upcoming videos are resolved in advance.
+    public static final int     YTPREFETCH_NR_NEXT      = 3;
+    // Prefetched stream is re-resolved this much time before it is expired.
+    public static final long    YTPREFETCH_REFRESH_AHEAD        = 2 * 60 * 1000; // 2 minutes
+    public static final long    YTPREFETCH_MIN_REFRESH_INTERVAL = 60 * 1000; // 1 minute
+
+    // Offline store of pinned playlists. See OfflineStore.
+    // Number of videos downloaded at the same time.
+    public static final int     OFFLINE_MAX_CONCURRENT      = 2;
+    // Videos are downloaded only via Wi-Fi - regardless of 'use wifi only' preference.
+    public static final boolean OFFLINE_WIFI_ONLY           = true;
+    // Videos are downloaded only while device is charging.
+    public static final boolean OFFLINE_CHARGING_ONLY       = false;
+    // Video that fails this number of times is skipped until next sync.
+    public static final int     OFFLINE_MAX_RETRY           = 5;
+    public static final long    OFFLINE_RETRY_BASE_DELAY    = 5 * 1000; // 5 seconds
+    public static final long    OFFLINE_RETRY_MAX_DELAY     = 5 * 60 * 1000; // 5 minutes
+    // Constraints - network, charging - are checked with this interval while there is work to do.
+    public static final long    OFFLINE_RECHECK_INTERVAL    = 60 * 1000; // 1 minute
+
+    // Cache warming of videos predicted from play history. See CacheWarmer.
+    // Total size of warmed files.
+    public static final long    CACHEWARM_MAX_BYTES         = 200 * 1024 * 1024; // 200MB
+    // Videos played at least this number of times are regarded as frequently played ones.
+    public static final int     CACHEWARM_MIN_NRPLAYED      = 3;
+    public static final int     CACHEWARM_NR_FREQUENT       = 10;
+    // First videos of this number of recently played playlists are warmed.
+    public static final int     CACHEWARM_NR_PLAYLISTS      = 3;
+    public static final int     CACHEWARM_NR_PLAYLIST_HEAD  = 2;
+    public static final boolean CACHEWARM_WIFI_ONLY         = true;
+    public static final boolean CACHEWARM_CHARGING_ONLY     = true;
+    // Prediction is refreshed with this interval.
+    public static final long    CACHEWARM_INTERVAL          = 6 * 60 * 60 * 1000; // 6 hours
+    public static final long    CACHEWARM_RECHECK_INTERVAL  = 5 * 60 * 1000; // 5 minutes
 
     // --------------------------------------------------------------------
     // Youtube Player
@@ -89,11 +140,52 @@ public class Policy {
     // At the beginning of streaming, device is very busy.
     // So, caching need to be started with delay.
     public static final long    YTPLAYER_CACHING_DELAY  = 10000; // 10 seconds.
+    // Cached file of other quality - than user's preference - is also played instead of streaming.
+    // So, changing quality preference doesn't lead to downloading same video again.
+    // Higher quality is always fine if it's already cached.
+    // Lower quality is used only if network is not available - better than nothing.
+    public static final boolean YTPLAYER_CACHE_ACCEPT_HIGHER        = true;
+    public static final boolean YTPLAYER_CACHE_ACCEPT_LOWER         = false;
+    public static final boolean YTPLAYER_CACHE_ACCEPT_LOWER_OFFLINE = true;
+    // Throughput of caching next video while current video is streamed (bytes per second).
+    // Caching is limited to INIT rate when streaming starts.
+    // Rate is halved - not below MIN - while player is buffering or lead of buffered stream is lower than LOW.
+    // Rate is increased by STEP while lead is between LOW and HIGH,
+    //   and limit is removed when lead is higher than HIGH.
+    public static final long    YTPLAYER_CACHING_RATE_MIN   = 16 * 1024;
+    public static final long    YTPLAYER_CACHING_RATE_INIT  = 64 * 1024;
+    public static final long    YTPLAYER_CACHING_RATE_STEP  = 32 * 1024;
+    // Lead - buffered position minus playing position - of streaming video (ms).
+    public static final long    YTPLAYER_CACHING_LEAD_LOW   = 20000;
+    public static final long    YTPLAYER_CACHING_LEAD_HIGH  = 60000;
     public static final long    YTPLAYER_DOUBLE_TOUCH_INTERVAL  = 500;
 
     // Time before/after TTS start/end.
     public static final long    YTPLAYER_TTS_SPARE_TIME = 300; // ms
 
+    // Information of queued videos is loaded from DB by this number of videos at once.
+    public static final int     YTPLAYER_QUEUE_LOAD_WINDOW = 32;
+
+    // Snapshot of play queue to resume playing after process is killed.
+    public static final String  YTPLAYER_PLAYQ_SNAPSHOT_FILE        = APPDATA_DIR + "playq";
+    // Snapshot is compacted if appended records are larger than max(this, size of queue).
+    public static final long    YTPLAYER_PLAYQ_SNAPSHOT_MIN_COMPACT = 64 * 1024;
+    // Playing position is saved with this interval.
+    public static final long    YTPLAYER_PLAYQ_SNAPSHOT_POS_INTERVAL = 10000; // ms
+
+    // Adaptive quality.
+    // Stream whose bitrate is less than (estimated bandwidth * this ratio) is selected.
+    public static final float   YTPLAYER_BANDWIDTH_USABLE_RATIO = 0.7f;
+    // Half-life of moving averages for bandwidth estimation (seconds of transfer).
+    public static final double  BWEST_FAST_HALFLIFE     = 2.0;
+    public static final double  BWEST_SLOW_HALFLIFE     = 5.0;
+    // Transfer smaller than this is not used as sample - latency dominates it.
+    public static final long    BWEST_MIN_SAMPLE_BYTES  = 64 * 1024;
+    // Download is split into samples of this size.
+    public static final long    BWEST_SAMPLE_BYTES      = 256 * 1024;
+    // Estimation is not used until this amount of data is transferred.
+    public static final long    BWEST_MIN_TOTAL_BYTES   = 512 * 1024;
+
     // --------------------------------------------------------------------
     // Network access
     // --------------------------------------------------------------------
@@ -104,6 +196,47 @@ public class Policy {
     // Too short : fails on bad network condition.
     public static final int     NETWORK_CONN_TIMEOUT    = 5000;
     public static final int     NETOWRK_CONN_RETRY      = 3;
+    // Delay before retrying grows exponentially from base delay - with random jitter.
+    public static final long    NETWORK_RETRY_BASE_DELAY    = 300; // ms
+    public static final long    NETWORK_RETRY_MAX_DELAY     = 4000; // ms
+    // Request - including retries - is never continued after this time.
+    public static final long    NETWORK_REQUEST_DEADLINE    = 20 * 1000; // 20 seconds
+    // Connection pool shared by all NetLoaders.
+    // Thumbnail loading uses up to YTSEARCH_MAX_LOAD_THUMBNAIL_THREAD connections to same host.
+    public static final int     NETWORK_POOL_MAX_TOTAL      = 16;
+    public static final int     NETWORK_POOL_MAX_PER_ROUTE  = 6;
+    public static final long    NETWORK_POOL_IDLE_TIMEOUT   = 30 * 1000; // 30 seconds
+    public static final long    NETWORK_POOL_EVICT_INTERVAL = 10 * 1000; // 10 seconds
+    // Admission control of requests. See NetAdmission.
+    // Request holds a slot until its response is consumed.
+    public static final int     NETWORK_ADMIT_MAX_TOTAL         = 8;
+    public static final int     NETWORK_ADMIT_MAX_PER_HOST      = 4;
+    // Limit of each background class - prefetch, import.
+    public static final int     NETWORK_ADMIT_MAX_BACKGROUND    = 2;
+    // Class is regarded as congested if this number of its requests are waiting.
+    public static final int     NETWORK_ADMIT_CONGESTION_BACKLOG = 4;
+    // Producer postpones request for this time if network is congested.
+    public static final long    NETWORK_ADMIT_BACKOFF           = 2000; // ms
+    // Disk cache of http contents validated by ETag/Last-Modified - for feeds.
+    public static final long    HTTPCACHE_MAX_BYTES         = 4 * 1024 * 1024; // 4MB
+    // Token bucket of RateLimiter can be filled up to amount of data for this time.
+    public static final long    RATELIMIT_BURST_TIME        = 1000; // ms
+    // Thread waiting for tokens checks cancellation with this interval.
+    public static final long    RATELIMIT_MAX_WAIT_SLICE    = 200; // ms
+
+    // --------------------------------------------------------------------
+    // Background task executor
+    // --------------------------------------------------------------------
+    // Number of threads of each lane of TaskExecutor.
+    // Running more CPU/IO-bound threads than cores just adds contention.
+    // But UI and BULK lanes have at least two threads because their tasks usually wait network response.
+    public static final int     NR_CORES                = Runtime.getRuntime().availableProcessors();
+    public static final int     EXECUTOR_UI_THREADS         = Math.max(2, NR_CORES);
+    public static final int     EXECUTOR_PLAYBACK_THREADS   = 2;
+    public static final int     EXECUTOR_PREFETCH_THREADS   = Math.max(1, NR_CORES / 2);
+    public static final int     EXECUTOR_BULK_THREADS       = Math.max(2, NR_CORES);
+    // Idle thread is terminated after this time.
+    public static final long    EXECUTOR_KEEPALIVE          = 30 * 1000; // 30 seconds
 
     // --------------------------------------------------------------------
     // Video Player
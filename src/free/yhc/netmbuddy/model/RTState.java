@@ -22,9 +22,9 @@ package free.yhc.netmbuddy.model;
 
 import static free.yhc.netmbuddy.utils.Utils.eAssert;
 
+import java.io.File;
 import java.util.HashMap;
 
-import android.support.v4.util.LruCache;
 import free.yhc.netmbuddy.utils.Utils;
 
 public class RTState implements
@@ -38,7 +38,10 @@ UnexpectedExceptionHandler.Evidence {
     // Proxy string should be changed if user changes proxy setting.
     private String  mProxy          = "";
     private HashMap<String, MapValue>   mOverridingPref = new HashMap<String, MapValue>();
-    private LruCache<String, YTHacker>  mHackerCache    = new LruCache(Policy.YTHACK_CACHE_SIZE);
+    private final YTStreamCache         mStreamCache
+        = new YTStreamCache(new File(Policy.YTHACK_STREAM_CACHE_FILE),
+                            Policy.YTHACK_STREAM_CACHE_ENTRIES,
+                            Policy.YTHACK_STREAM_CACHE_BYTES);
 
     private static class MapValue {
         Object  owner;
@@ -54,6 +57,7 @@ UnexpectedExceptionHandler.Evidence {
         mProxy = System.getenv("http_proxy");
         if (null == mProxy)
             mProxy = "";
+        mStreamCache.loadAsync();
     }
 
     @Override
@@ -82,12 +86,25 @@ UnexpectedExceptionHandler.Evidence {
     public void
     cachingYtHacker(YTHacker hacker) {
         eAssert(hacker.hasHackedResult());
-        mHackerCache.put(hacker.getYtvid(), hacker);
+        mStreamCache.put(hacker.toStreamCacheEntry());
     }
 
+    /**
+     * Thread safe.
+     * @param ytvid
+     * @return
+     *   null if there is no cached stream information or it is expired.
+     *   Otherwise, successfully hacked object restored from cache.
+     */
     public YTHacker
     getCachedYtHacker(String ytvid) {
-        return mHackerCache.get(ytvid);
+        YTStreamCache.Entry e = mStreamCache.get(ytvid);
+        return null == e? null: YTHacker.restore(e);
+    }
+
+    public void
+    invalidateCachedYtHacker(String ytvid) {
+        mStreamCache.remove(ytvid);
     }
 
     public void
@@ -0,0 +1,129 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+package free.yhc.netmbuddy.model;
+
+import android.os.SystemClock;
+import free.yhc.netmbuddy.utils.Utils;
+
+// Token bucket to limit throughput of data transfer.
+//
+// Tokens - bytes - are filled at given rate, up to amount of Policy.RATELIMIT_BURST_TIME.
+// Transfer loop calls acquire() after each read.
+// If bucket is in debt, it waits until debt is paid back.
+// While loop doesn't read, TCP receive window is filled and server slows down sending.
+//
+// Rate can be changed at any time - from any thread - even if transfer is in progress.
+public class RateLimiter {
+    private static final boolean DBG = false;
+    private static final Utils.Logger P = new Utils.Logger(RateLimiter.class);
+
+    public static final long    UNLIMITED   = 0;
+
+    private final String    mName;
+
+    // Below values are protected by 'this'.
+    private long            mRate       = UNLIMITED; // bytes per second.
+    private double          mTokens     = 0;
+    private long            mLastFill   = 0;
+    // Statistics.
+    private long            mWaitTime   = 0; // ms
+
+    public RateLimiter(String name) {
+        mName = name;
+    }
+
+    private void
+    fillLocked() {
+        long now = SystemClock.elapsedRealtime();
+        if (UNLIMITED != mRate) {
+            double burst = (double)mRate * Policy.RATELIMIT_BURST_TIME / 1000;
+            mTokens = Math.min(burst, mTokens + (double)mRate * (now - mLastFill) / 1000);
+        }
+        mLastFill = now;
+    }
+
+    /**
+     * @param rate
+     *   bytes per second. UNLIMITED to remove limit.
+     */
+    public synchronized void
+    setRate(long rate) {
+        if (rate < 0)
+            rate = UNLIMITED;
+        if (rate == mRate)
+            return;
+        if (DBG) P.v(mName + " : rate " + mRate + " => " + rate);
+        // Tokens filled with old rate.
+        fillLocked();
+        if (UNLIMITED == mRate)
+            // Start with empty bucket.
+            mTokens = 0;
+        mRate = rate;
+        // Waiting thread re-calculates time to wait.
+        notifyAll();
+    }
+
+    public synchronized long
+    getRate() {
+        return mRate;
+    }
+
+    /**
+     * Consume tokens for data that is just transferred.
+     * Caller is blocked while bucket is in debt.
+     * @param token
+     *   waiting is stopped if this is cancelled. Can be null.
+     * @return
+     *   time waited (ms). 0 if transfer isn't throttled.
+     */
+    public synchronized long
+    acquire(int bytes, CancelToken token) throws InterruptedException {
+        if (UNLIMITED == mRate)
+            return 0;
+
+        long start = SystemClock.elapsedRealtime();
+        fillLocked();
+        mTokens -= bytes;
+        while (UNLIMITED != mRate
+               && mTokens < 0) {
+            if (null != token && token.isCancelled())
+                throw new InterruptedException();
+            long wait = (long)Math.ceil(-mTokens * 1000 / mRate);
+            // Token is polled with this interval.
+            wait(Math.max(1, Math.min(wait, Policy.RATELIMIT_MAX_WAIT_SLICE)));
+            fillLocked();
+        }
+        long waited = SystemClock.elapsedRealtime() - start;
+        mWaitTime += waited;
+        return waited;
+    }
+
+    /**
+     * For debugging.
+     */
+    public synchronized String
+    dump() {
+        return "[" + mName + "]\n"
+               + "  rate : " + (UNLIMITED == mRate? "unlimited": mRate + " B/s") + "\n"
+               + "  throttled : " + mWaitTime + " ms";
+    }
+}
@@ -0,0 +1,196 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+package free.yhc.netmbuddy.model;
+
+import static free.yhc.netmbuddy.utils.Utils.eAssert;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import free.yhc.netmbuddy.utils.Utils;
+
+// Retry policy shared by network operations.
+//
+// Delay between attempts grows exponentially and 'full jitter' is applied.
+//   delay = random(0, min(maxDelay, baseDelay * 2^attempt))
+// So, several clients failed at the same time doesn't retry at the same time.
+// And retrying is never continued over deadline.
+//
+// NOTE
+// One object is used for one operation (ex. one http request). It is NOT thread-safe.
+public class RetryPolicy {
+    private static final boolean DBG = false;
+    private static final Utils.Logger P = new Utils.Logger(RetryPolicy.class);
+
+    private static final Random sRandom = new Random();
+
+    private final int   mMaxAttempts;
+    private final long  mBaseDelay;
+    private final long  mMaxDelay;
+    private final long  mDeadline;  // absolute time (ms)
+
+    private int         mAttempt = 0;
+
+    public static enum Cause {
+        DNS,            // Fail to resolve host name.
+        CONNECT,        // Fail to connect - including connect timeout.
+        TIMEOUT,        // Read timeout.
+        IO,             // Other IO errors - ex. connection reset.
+        SERVER,         // http 5xx
+        THROTTLED,      // http 429
+        CLIENT,         // http 4xx except for 429. Retrying is useless.
+        UNKNOWN,
+    }
+
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, long timeout) {
+        eAssert(maxAttempts > 0 && baseDelay >= 0 && maxDelay >= baseDelay);
+        mMaxAttempts = maxAttempts;
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mDeadline = System.currentTimeMillis() + timeout;
+    }
+
+    /**
+     * Default policy for one network request.
+     */
+    public static RetryPolicy
+    newNetworkPolicy() {
+        return new RetryPolicy(Policy.NETOWRK_CONN_RETRY,
+                               Policy.NETWORK_RETRY_BASE_DELAY,
+                               Policy.NETWORK_RETRY_MAX_DELAY,
+                               Policy.NETWORK_REQUEST_DEADLINE);
+    }
+
+    /**
+     * Exponential backoff with full jitter.
+     * This can be used by modules that counts attempts by itself.
+     * @param attempt
+     *   number of attempts already failed. (0 for first retry)
+     */
+    public static long
+    backoffDelay(int attempt, long baseDelay, long maxDelay) {
+        if (attempt < 0)
+            attempt = 0;
+        // Avoid overflow.
+        long cap = attempt >= 30? maxDelay: Math.min(maxDelay, baseDelay << attempt);
+        if (cap <= 0)
+            return 0;
+        synchronized (sRandom) {
+            return (long)(sRandom.nextDouble() * cap);
+        }
+    }
+
+    public static Cause
+    classify(IOException e) {
+        // NOTE : order is important. Some of them are sub-classes of others.
+        if (e instanceof UnknownHostException)
+            return Cause.DNS;
+        else if (e instanceof ConnectTimeoutException
+                 || e instanceof ConnectException
+                 || e instanceof NoRouteToHostException)
+            return Cause.CONNECT;
+        else if (e instanceof SocketTimeoutException
+                 || e instanceof InterruptedIOException)
+            return Cause.TIMEOUT;
+        return Cause.IO;
+    }
+
+    /**
+     * @return
+     *   null if status code is not an error.
+     */
+    public static Cause
+    classify(int httpStatus) {
+        if (httpStatus < 400)
+            return null;
+        else if (429 == httpStatus)
+            return Cause.THROTTLED;
+        else if (httpStatus >= 500)
+            return Cause.SERVER;
+        return Cause.CLIENT;
+    }
+
+    /**
+     * Is it meaningful to retry?
+     * @param idempotent
+     *   If request is not idempotent, it is retried only when request is never sent to server.
+     */
+    public static boolean
+    isRetryable(Cause cause, boolean idempotent) {
+        switch (cause) {
+        case DNS:
+        case CONNECT:
+        case THROTTLED:
+            // Request is not handled by server.
+            return true;
+
+        case TIMEOUT:
+        case IO:
+        case SERVER:
+            return idempotent;
+
+        default:
+            return false;
+        }
+    }
+
+    public int
+    getAttempt() {
+        return mAttempt;
+    }
+
+    public long
+    getDeadline() {
+        return mDeadline;
+    }
+
+    /**
+     * Consume one attempt and get delay before next try.
+     * @param cause
+     * @param idempotent
+     * @param minDelay
+     *   Delay requested by server (ex. 'Retry-After' header). 0 if there is no such request.
+     * @return
+     *   delay(ms) before next try. -1 if operation SHOULD NOT be retried.
+     */
+    public long
+    nextDelay(Cause cause, boolean idempotent, long minDelay) {
+        mAttempt++;
+        if (mAttempt >= mMaxAttempts
+            || !isRetryable(cause, idempotent))
+            return -1;
+
+        long delay = Math.max(minDelay, backoffDelay(mAttempt - 1, mBaseDelay, mMaxDelay));
+        if (System.currentTimeMillis() + delay >= mDeadline) {
+            if (DBG) P.v("Retry is stopped by deadline : " + cause.name());
+            return -1;
+        }
+        if (DBG) P.v("Retry(" + mAttempt + ") after " + delay + "ms : " + cause.name());
+        return delay;
+    }
+}
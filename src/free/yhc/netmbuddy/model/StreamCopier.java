@@ -0,0 +1,91 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+package free.yhc.netmbuddy.model;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Copy stream - ex. body of http response - to file.
+//
+// Copying is stopped as soon as it is cancelled.
+// Owner of stream SHOULD abort it at cancel - ex. NetLoader aborts request when token is cancelled.
+// Then, blocked read fails immediately instead of waiting data from slow or stalled server.
+//
+// NOTE
+// This class SHOULD depend only on JAVA standard library - not on Android or Utils.
+// So, it can be tested at JVM. See tests/src/free/yhc/netmbuddy/model/StreamCopierTest.java
+class StreamCopier {
+    private static final int    BUFSZ   = 16 * 1024;
+
+    interface Callback {
+        boolean isCancelled();
+
+        /**
+         * Called whenever 'len' bytes are written. ex. sampling throughput or throttling.
+         */
+        void onWritten(int len) throws InterruptedException;
+    }
+
+    private StreamCopier() {
+    }
+
+    /**
+     * @param expected
+     *   size of whole contents. -1 if unknown.
+     * @param deleteOnFail
+     *   file is deleted if stream is not copied completely - ex. cancelled or connection is broken.
+     * @return
+     *   false if stream ends before whole contents are received.
+     * @throws InterruptedException
+     *   cancelled.
+     */
+    static boolean
+    copyToFile(InputStream is, File f, boolean append, long expected, boolean deleteOnFail, Callback cb)
+            throws IOException, InterruptedException {
+        boolean done = false;
+        FileOutputStream fos = new FileOutputStream(f, append);
+        try {
+            byte buf[] = new byte[BUFSZ];
+            int len;
+            while ((len = is.read(buf)) > 0) {
+                if (cb.isCancelled())
+                    throw new InterruptedException();
+                fos.write(buf, 0, len);
+                cb.onWritten(len);
+            }
+            fos.close();
+            // Connection may be closed before whole contents are received.
+            done = expected < 0 || f.length() == expected;
+        } finally {
+            if (!done) {
+                try {
+                    fos.close();
+                } catch (IOException e) {}
+                if (deleteOnFail)
+                    f.delete();
+            }
+        }
+        return done;
+    }
+}
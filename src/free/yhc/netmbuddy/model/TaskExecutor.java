@@ -0,0 +1,237 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+package free.yhc.netmbuddy.model;
+
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+import android.os.SystemClock;
+import free.yhc.netmbuddy.utils.Utils;
+
+// Thread pools shared by all background tasks.
+//
+// Creating thread per task is expensive, and too many runnable threads
+//   at the same time just compete each other - ex. while browsing search pages.
+// Tasks are grouped into lanes by its priority.
+// Each lane has bounded number of threads.
+// So, bulk jobs can never starve UI-critical ones.
+//
+// NOTE
+// Task SHOULD NOT wait for other task in same lane. It may lead to deadlock.
+// ex. DiagAsyncTask(UI lane) may wait for jobs of MultiThreadRunner(BULK lane).
+public class TaskExecutor implements
+UnexpectedExceptionHandler.Evidence {
+    private static final boolean DBG = false;
+    private static final Utils.Logger P = new Utils.Logger(TaskExecutor.class);
+
+    private static TaskExecutor sInstance = null;
+
+    private final LaneExecutor[]    mLanes;
+
+    public enum Lane {
+        // User is waiting for the result. ex. loading search page, task with modal dialog.
+        UI          (Policy.EXECUTOR_UI_THREADS,        Process.THREAD_PRIORITY_DEFAULT),
+        // Playing video depends on the result.
+        PLAYBACK    (Policy.EXECUTOR_PLAYBACK_THREADS,  Process.THREAD_PRIORITY_DEFAULT),
+        // Result will be used in near future. ex. resolving or caching next videos.
+        PREFETCH    (Policy.EXECUTOR_PREFETCH_THREADS,  Process.THREAD_PRIORITY_BACKGROUND),
+        // Nobody waits for the result. ex. importing, updating DB, writing files.
+        BULK        (Policy.EXECUTOR_BULK_THREADS,      Process.THREAD_PRIORITY_BACKGROUND
+                                                        + Process.THREAD_PRIORITY_LESS_FAVORABLE);
+
+        private final int   _mNrThreads;
+        private final int   _mThreadPriority;
+
+        Lane(int nrThreads, int threadPriority) {
+            _mNrThreads = nrThreads;
+            _mThreadPriority = threadPriority;
+        }
+    }
+
+    private static class LaneExecutor extends ThreadPoolExecutor {
+        private final Lane          _mLane;
+
+        // Statistics.
+        private final AtomicInteger _mNrSubmitted   = new AtomicInteger(0);
+        private final AtomicInteger _mNrCompleted   = new AtomicInteger(0);
+        private final AtomicInteger _mNrRemoved     = new AtomicInteger(0);
+        private final AtomicInteger _mMaxQueued     = new AtomicInteger(0);
+        private final AtomicLong    _mWaitTime      = new AtomicLong(0);
+        private final AtomicLong    _mMaxWaitTime   = new AtomicLong(0);
+        private final AtomicLong    _mRunTime       = new AtomicLong(0);
+
+        LaneExecutor(final Lane lane) {
+            super(lane._mNrThreads,
+                  lane._mNrThreads,
+                  Policy.EXECUTOR_KEEPALIVE,
+                  TimeUnit.MILLISECONDS,
+                  new LinkedBlockingQueue<Runnable>(),
+                  new ThreadFactory() {
+                      private final AtomicInteger _mSeq = new AtomicInteger(0);
+                      @Override
+                      public Thread
+                      newThread(final Runnable r) {
+                          return new Thread("TaskExecutor." + lane.name() + "#" + _mSeq.incrementAndGet()) {
+                              @Override
+                              public void
+                              run() {
+                                  Process.setThreadPriority(lane._mThreadPriority);
+                                  r.run();
+                              }
+                          };
+                      }
+                  });
+            _mLane = lane;
+            // Threads are not kept if lane is idle.
+            allowCoreThreadTimeOut(true);
+        }
+
+        private static void
+        updateMax(AtomicInteger max, int v) {
+            int cur;
+            while (v > (cur = max.get())) {
+                if (max.compareAndSet(cur, v))
+                    return;
+            }
+        }
+
+        private static void
+        updateMax(AtomicLong max, long v) {
+            long cur;
+            while (v > (cur = max.get())) {
+                if (max.compareAndSet(cur, v))
+                    return;
+            }
+        }
+
+        void
+        submitTask(final Runnable r) {
+            _mNrSubmitted.incrementAndGet();
+            execute(new TimedRunnable(r));
+            updateMax(_mMaxQueued, getQueue().size());
+        }
+
+        boolean
+        removeTask(Runnable r) {
+            Iterator<Runnable> iter = getQueue().iterator();
+            while (iter.hasNext()) {
+                Runnable qr = iter.next();
+                if (((TimedRunnable)qr)._mR != r)
+                    continue;
+                // Runnable may be taken by worker thread in the meantime.
+                if (getQueue().remove(qr)) {
+                    _mNrRemoved.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+            return false;
+        }
+
+        String
+        dump() {
+            int completed = _mNrCompleted.get();
+            return _mLane.name() + " : "
+                   + "threads=" + getPoolSize() + "/" + getMaximumPoolSize()
+                   + " active=" + getActiveCount()
+                   + " queued=" + getQueue().size() + "(max " + _mMaxQueued.get() + ")"
+                   + " submitted=" + _mNrSubmitted.get()
+                   + " completed=" + completed
+                   + " removed=" + _mNrRemoved.get()
+                   + " wait(avg/max)=" + (completed > 0? _mWaitTime.get() / completed: 0)
+                                + "/" + _mMaxWaitTime.get() + "ms"
+                   + " run(avg)=" + (completed > 0? _mRunTime.get() / completed: 0) + "ms";
+        }
+
+        private class TimedRunnable implements Runnable {
+            private final Runnable  _mR;
+            private final long      _mQueuedTm = SystemClock.elapsedRealtime();
+
+            TimedRunnable(Runnable r) {
+                _mR = r;
+            }
+
+            @Override
+            public void
+            run() {
+                long startTm = SystemClock.elapsedRealtime();
+                long wait = startTm - _mQueuedTm;
+                _mWaitTime.addAndGet(wait);
+                updateMax(_mMaxWaitTime, wait);
+                try {
+                    _mR.run();
+                } finally {
+                    _mRunTime.addAndGet(SystemClock.elapsedRealtime() - startTm);
+                    _mNrCompleted.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private TaskExecutor() {
+        UnexpectedExceptionHandler.get().registerModule(this);
+        Lane[] lanes = Lane.values();
+        mLanes = new LaneExecutor[lanes.length];
+        for (Lane l : lanes)
+            mLanes[l.ordinal()] = new LaneExecutor(l);
+    }
+
+    public static synchronized TaskExecutor
+    get() {
+        if (null == sInstance)
+            sInstance = new TaskExecutor();
+        return sInstance;
+    }
+
+    @Override
+    public String
+    dump(UnexpectedExceptionHandler.DumpLevel lvl) {
+        StringBuilder sbldr = new StringBuilder(this.getClass().getName());
+        for (LaneExecutor le : mLanes)
+            sbldr.append("\n  ").append(le.dump());
+        return sbldr.toString();
+    }
+
+    /**
+     * Runnable is run at one of threads of the lane.
+     */
+    public void
+    execute(Lane lane, Runnable r) {
+        if (DBG) P.v("execute at " + lane.name());
+        mLanes[lane.ordinal()].submitTask(r);
+    }
+
+    /**
+     * Remove runnable that is not started yet.
+     * @return
+     *   false if runnable is already started or it is not submitted to the lane.
+     */
+    public boolean
+    remove(Lane lane, Runnable r) {
+        return mLanes[lane.ordinal()].removeTask(r);
+    }
+}
@@ -22,9 +22,12 @@ package free.yhc.netmbuddy.model;
 
 import static free.yhc.netmbuddy.utils.Utils.eAssert;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 
 import android.net.Uri;
@@ -33,6 +36,8 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
+import free.yhc.netmbuddy.utils.Mp4Utils;
 import free.yhc.netmbuddy.utils.Utils;
 
 public class YTDownloader {
@@ -42,10 +47,16 @@ public class YTDownloader {
     private static final int MSG_WHAT_CLOSE     = 0;
     private static final int MSG_WHAT_DOWNLOAD  = 1;
 
+    static final String PARTIAL_FILE_EXT = ".part";
+    private static final String PARTIAL_INFO_EXT = ".info";
+
     private String                      mProxy      = null;
     private DownloadDoneReceiver        mDnDoneRcvr = null;
     private BGHandler                   mBgHandler  = null;
     private Object                      mUserTag    = null; // user tag value
+    private final NetAdmission.TrafficClass mClass;
+    // Throughput of download is limited by this. null for no limit.
+    private volatile RateLimiter        mRateLimiter = null;
 
     public interface DownloadDoneReceiver {
         void downloadDone(YTDownloader downloader, DnArg arg, Err err);
@@ -66,11 +77,21 @@ public class YTDownloader {
         String  ytvid;
         File    outf;
         int     qscore;
+        // Download audio-only stream (AAC/M4A) instead of video.
+        boolean audioOnly;
+        // Partially downloaded data is kept to be resumed at next try.
+        // And downloaded file is verified before it is moved to 'outf'.
+        boolean resumable = false;
 
-        public DnArg(String aYtvid, File aOutf, int aQscore) {
+        public DnArg(String aYtvid, File aOutf, int aQscore, boolean aAudioOnly) {
             ytvid = aYtvid;
             outf = aOutf;
             qscore = aQscore;
+            audioOnly = aAudioOnly;
+        }
+
+        public DnArg(String aYtvid, File aOutf, int aQscore) {
+            this(aYtvid, aOutf, aQscore, false);
         }
     }
 
@@ -88,9 +109,11 @@ public class YTDownloader {
     private static class BGHandler extends Handler {
         private final YTDownloader          _mYtDownloader;
 
-        private NetLoader       _mLoader    = new NetLoader();
-        private File            _mTmpF      = null;
         private volatile File   _mCurOutF   = null;
+        // Token of download in progress.
+        private volatile CancelToken _mToken = null;
+        // Set by close() - at owner's context.
+        private volatile boolean _mClosing  = false;
         private boolean         _mClosed    = false;
 
         BGHandler(Looper                looper,
@@ -121,40 +144,121 @@ public class YTDownloader {
         handleDownload(DnArg arg) {
             // assigning object reference is atomic operation in JAVA
             _mCurOutF = arg.outf;
-
-            if (null != _mTmpF)
-                _mTmpF.delete();
+            CancelToken token = new CancelToken("YTDownloader : " + arg.ytvid);
+            _mToken = token;
+            // close() may be called just before token is set.
+            if (_mClosing)
+                token.cancel();
 
             if (DBG) P.v("Start Download : " + arg.ytvid + " => " + arg.outf.getAbsolutePath());
-            YTHacker hack = new YTHacker(arg.ytvid, null, null);
-            FileOutputStream fos = null;
+            // Player or prefetcher may already resolve(or be resolving) same video.
+            // Background downloads SHOULD NOT occupy lane for resolving videos to be played.
+            final YTResolver.Request req
+                = YTResolver.get().resolveAsync(arg.ytvid, null, null,
+                                                NetAdmission.TrafficClass.PLAYBACK == _mYtDownloader.getTrafficClass()?
+                                                TaskExecutor.Lane.PLAYBACK:
+                                                TaskExecutor.Lane.PREFETCH,
+                                                _mYtDownloader.getTrafficClass());
+            // Resolving is shared with other modules.
+            // So, cancelling request doesn't affect others.
+            token.addOnCancelListener(new CancelToken.OnCancelListener() {
+                @Override
+                public void
+                onCancel(CancelToken t) {
+                    YTResolver.get().cancel(req);
+                }
+            });
+            NetLoader loader = new NetLoader(_mYtDownloader.getTrafficClass()).open(null, token);
+            NetLoader.HttpRespContent content = null;
+            File tmpf = null;
+            File infof = null;
             try {
-                YTHacker.Err hkerr = hack.start();
+                YTHacker.Err hkerr = req.waitDone();
                 if (YTHacker.Err.NO_ERR != hkerr) {
                     sendResult(arg, map(hkerr));
                     return;
                 }
-                _mLoader = hack.getNetLoader();
-                YTHacker.YtVideo vid = hack.getVideo(arg.qscore, false);
+                YTHacker.YtVideo vid = arg.audioOnly?
+                                       req.getHack().getAudio(arg.qscore):
+                                       req.getHack().getVideo(arg.qscore, false);
                 if (null == vid) {
                     sendResult(arg, Err.UNSUPPORTED_VIDFORMAT);
                     return;
                 }
 
-                NetLoader.HttpRespContent content = _mLoader.getHttpContent(Uri.parse(vid.url), false);
+                long offset = 0;
+                PartialInfo pinfo = null;
+                if (arg.resumable) {
+                    tmpf = getPartialFile(arg.outf);
+                    infof = getPartialInfoFile(arg.outf);
+                    pinfo = PartialInfo.read(infof);
+                    if (tmpf.exists()
+                        && null != pinfo
+                        && pinfo.tag.equals(vid.tag))
+                        offset = tmpf.length();
+                    else {
+                        // Partial data of unknown or different stream(format) is useless.
+                        tmpf.delete();
+                        infof.delete();
+                        pinfo = null;
+                    }
+                } else
+                    // Download to temp file.
+                    tmpf = File.createTempFile(arg.ytvid, null, new File(Policy.APPDATA_TMPDIR));
+
+                content = loader.getHttpContent(Uri.parse(vid.url), offset,
+                                                offset > 0? pinfo.validator: null);
                 if (HttpUtils.SC_NO_CONTENT == content.stcode) {
                     sendResult(arg, Err.IO_NET);
                     return;
                 }
 
-                // Download to temp file.
-                _mTmpF = File.createTempFile(arg.ytvid, null, new File(Policy.APPDATA_TMPDIR));
-                fos = new FileOutputStream(_mTmpF);
-                Utils.copy(fos, content.stream);
-                fos.close();
-                fos = null;
+                // Server may ignore range request. Then, whole contents are received.
+                boolean append = offset > 0 && HttpUtils.SC_PARTIAL_CONTENT == content.stcode;
+                if (DBG && offset > 0) P.v("Resume download : " + arg.ytvid + " from " + offset + " : " + append);
+                long expected = getExpectedFileSize(content);
+                if (append
+                    && expected != pinfo.length) {
+                    // Contents are changed even if range is honored - ex. there is no validator.
+                    // Appending to partial data breaks file. Start from scratch at next try.
+                    if (DBG) P.w("Contents changed : " + arg.ytvid + " : " + pinfo.length + " => " + expected);
+                    tmpf.delete();
+                    infof.delete();
+                    sendResult(arg, Err.IO_NET);
+                    return;
+                }
+                if (arg.resumable
+                    && !append)
+                    // Identity of stream SHOULD be recorded before any data is written to partial file.
+                    new PartialInfo(vid.tag, getValidator(content), expected).write(infof);
+                Sampler sampler = new Sampler(token, _mYtDownloader.getRateLimiter());
+                boolean completed = StreamCopier.copyToFile(content.stream, tmpf, append, expected,
+                                                            !arg.resumable, sampler);
+                sampler.flush();
+                if (!completed) {
+                    if (DBG) P.w("Incomplete download : " + tmpf.length() + " / " + expected);
+                    sendResult(arg, Err.IO_NET);
+                    return;
+                }
+
                 // file returned by YTHacker is mpeg format!
-                _mTmpF.renameTo(arg.outf);
+                try {
+                    Mp4Utils.verify(tmpf);
+                } catch (Mp4Utils.FormatException e) {
+                    if (DBG) P.w("Broken file : " + arg.ytvid + " : " + e.getMessage());
+                    // Partial data is useless. Start from scratch at next try.
+                    tmpf.delete();
+                    if (null != infof)
+                        infof.delete();
+                    sendResult(arg, Err.PROTOCOL);
+                    return;
+                }
+                // File without index record is regarded as broken one.
+                // So, failure of commit is reported as IO_FILE below.
+                CacheIndex.commit(tmpf, arg.outf);
+                tmpf = null;
+                if (null != infof)
+                    infof.delete();
                 sendResult(arg, Err.NO_ERR);
                 if (DBG) P.v("Download Done : " + arg.ytvid);
             } catch (FileNotFoundException e) {
@@ -163,22 +267,36 @@ public class YTDownloader {
                 if (DBG) P.v("Download Interrupted!");
                 sendResult(arg, Err.INTERRUPTED);
             } catch (IOException e) {
+                // Aborting request by token makes blocked read fail with IOException.
                 if (DBG) P.v("Download IOException!");
-                sendResult(arg, Err.IO_FILE);
+                sendResult(arg, token.isCancelled()? Err.INTERRUPTED: Err.IO_FILE);
             } catch (NetLoader.LocalException e) {
                 if (DBG) P.v("NetLoader Exception!");
+                // Partial data is larger than contents or contents are changed.
+                if (null != tmpf
+                    && arg.resumable
+                    && NetLoader.Err.HTTPGET == e.error()
+                    && Integer.valueOf(HttpUtils.SC_RANGE_NOT_SATISFIABLE).equals(e.extra())) {
+                    tmpf.delete();
+                    infof.delete();
+                }
                 sendResult(arg, map(e.error()));
             } finally {
-                _mLoader.close();
+                // Cancelling request that is already done is harmless.
+                YTResolver.get().cancel(req);
+                loader.close();
 
-                if (null != fos)
-                    try {
-                        fos.close();
-                    } catch (IOException e) {}
+                // Partially downloaded file is removed at this thread before next download starts.
+                if (null != tmpf
+                    && !arg.resumable)
+                    tmpf.delete();
 
-                if (null != _mTmpF)
-                    _mTmpF.delete();
+                if (DBG && token.isCancelled())
+                    P.v("Download stopped " + (SystemClock.elapsedRealtime() - token.getCancelTime())
+                        + "ms after cancel : wire bytes received "
+                        + (null == content? 0: content.getWireBytes()));
 
+                _mToken = null;
                 // assigning object reference is atomic operation in JAVA
                 _mCurOutF = null;
             }
@@ -195,7 +313,12 @@ public class YTDownloader {
 
         void
         close() {
+            _mClosing = true;
             removeMessages(MSG_WHAT_DOWNLOAD);
+            // Download in progress is stopped immediately - doesn't wait until it is finished.
+            CancelToken token = _mToken;
+            if (null != token)
+                token.cancel();
             sendEmptyMessage(MSG_WHAT_CLOSE);
         }
 
@@ -208,8 +331,6 @@ public class YTDownloader {
             switch (msg.what) {
             case MSG_WHAT_CLOSE:
                 _mClosed = true;
-                if (null != _mLoader)
-                    _mLoader.close();
                 ((HandlerThread)getLooper().getThread()).quit();
                 break;
 
@@ -243,6 +364,170 @@ public class YTDownloader {
         }
     }
 
+    /**
+     * Throughput of copying is sampled for bandwidth estimation. And it is throttled by limiter.
+     * Copying is stopped as soon as token is cancelled.
+     */
+    private static class Sampler implements StreamCopier.Callback {
+        private final CancelToken           _mToken;
+        private final RateLimiter           _mLimiter; // can be null.
+        private final BandwidthEstimator    _mBwe = BandwidthEstimator.get();
+        private long                        _mBytes = 0;
+        private long                        _mStart = SystemClock.elapsedRealtime();
+
+        Sampler(CancelToken token, RateLimiter limiter) {
+            _mToken = token;
+            _mLimiter = limiter;
+        }
+
+        @Override
+        public boolean
+        isCancelled() {
+            return _mToken.isCancelled();
+        }
+
+        @Override
+        public void
+        onWritten(int len) throws InterruptedException {
+            _mBytes += len;
+            if (null != _mLimiter
+                && _mLimiter.acquire(len, _mToken) > 0) {
+                // Throughput of throttled transfer is not bandwidth of network.
+                // So, current sample is discarded.
+                _mBytes = 0;
+                _mStart = SystemClock.elapsedRealtime();
+                return;
+            }
+            if (_mBytes >= Policy.BWEST_SAMPLE_BYTES) {
+                long now = SystemClock.elapsedRealtime();
+                _mBwe.addSample(_mBytes, now - _mStart);
+                _mBytes = 0;
+                _mStart = now;
+            }
+        }
+
+        void
+        flush() {
+            // Last partial sample. Too small one is ignored by estimator.
+            _mBwe.addSample(_mBytes, SystemClock.elapsedRealtime() - _mStart);
+            _mBytes = 0;
+        }
+    }
+
+    /**
+     * Format : one value per line - itag, total length and validator(optional).
+     */
+    private static class PartialInfo {
+        final String    tag;
+        final String    validator;
+        final long      length;
+
+        PartialInfo(String aTag, String aValidator, long aLength) {
+            tag = aTag;
+            validator = aValidator;
+            length = aLength;
+        }
+
+        /**
+         * @return
+         *   null if there is no valid info.
+         */
+        static PartialInfo
+        read(File f) {
+            if (!f.exists())
+                return null;
+            BufferedReader br = null;
+            try {
+                br = new BufferedReader(new FileReader(f));
+                String tag = br.readLine();
+                String len = br.readLine();
+                String validator = br.readLine();
+                if (null == tag
+                    || null == len)
+                    return null;
+                return new PartialInfo(tag, validator, Long.parseLong(len));
+            } catch (IOException e) {
+                return null;
+            } catch (NumberFormatException e) {
+                return null;
+            } finally {
+                if (null != br)
+                    try {
+                        br.close();
+                    } catch (IOException e) {}
+            }
+        }
+
+        void
+        write(File f) throws IOException {
+            FileWriter fw = new FileWriter(f);
+            try {
+                fw.write(tag + "\n" + length + "\n" + (null == validator? "": validator + "\n"));
+            } finally {
+                fw.close();
+            }
+        }
+    }
+
+    /**
+     * Partially downloaded data is kept at the same directory with target file.
+     * So, it can be moved to target file atomically.
+     */
+    static File
+    getPartialFile(File outf) {
+        return new File(outf.getAbsolutePath() + PARTIAL_FILE_EXT);
+    }
+
+    /**
+     * Identity of stream that partial file came from.
+     * Partial data is appended only to data of same stream.
+     */
+    static File
+    getPartialInfoFile(File outf) {
+        return new File(outf.getAbsolutePath() + PARTIAL_FILE_EXT + PARTIAL_INFO_EXT);
+    }
+
+    static boolean
+    isPartialFile(File f) {
+        return f.getName().endsWith(PARTIAL_FILE_EXT)
+               || f.getName().endsWith(PARTIAL_FILE_EXT + PARTIAL_INFO_EXT);
+    }
+
+    /**
+     * @return
+     *   validator that can be used at 'If-Range'. null if there is no usable one.
+     */
+    private static String
+    getValidator(NetLoader.HttpRespContent content) {
+        String v = content.getHeader("ETag");
+        // Weak entity tag SHOULD NOT be used at 'If-Range' (RFC 2616 14.27)
+        if (null != v
+            && !v.startsWith("W/"))
+            return v;
+        return content.getHeader("Last-Modified");
+    }
+
+    /**
+     * @return
+     *   size of whole contents. -1 if unknown.
+     */
+    private static long
+    getExpectedFileSize(NetLoader.HttpRespContent content) {
+        String v;
+        try {
+            if (HttpUtils.SC_PARTIAL_CONTENT == content.stcode) {
+                // ex. "bytes 1000-9999/10000"
+                v = content.getHeader("Content-Range");
+                return null == v? -1: Long.parseLong(v.substring(v.lastIndexOf('/') + 1).trim());
+            }
+            v = content.getHeader("Content-Length");
+            return null == v? -1: Long.parseLong(v.trim());
+        } catch (NumberFormatException e) {
+            // ex. "bytes 1000-9999/*"
+            return -1;
+        }
+    }
+
     private static Err
     map(NetLoader.Err err) {
         switch (err) {
@@ -266,12 +551,30 @@ public class YTDownloader {
         return mDnDoneRcvr;
     }
 
+    RateLimiter
+    getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    NetAdmission.TrafficClass
+    getTrafficClass() {
+        return mClass;
+    }
+
     // ======================================================================
     //
     //
     //
     // ======================================================================
+    /**
+     * Video is downloaded to be cached - to be played in near future.
+     */
     public YTDownloader() {
+        this(NetAdmission.TrafficClass.PREFETCH);
+    }
+
+    public YTDownloader(NetAdmission.TrafficClass tclass) {
+        mClass = tclass;
     }
 
     public void
@@ -279,6 +582,16 @@ public class YTDownloader {
         mUserTag = tag;
     }
 
+    /**
+     * Limiter is applied to downloads started after this call.
+     * @param limiter
+     *   null to remove limit.
+     */
+    public void
+    setRateLimiter(RateLimiter limiter) {
+        mRateLimiter = limiter;
+    }
+
     public Object
     getTag() {
         return mUserTag;
@@ -298,18 +611,44 @@ public class YTDownloader {
      */
     public Err
     download(final String ytvid, final File outf, final int qscore, final long delay) {
+        return download(ytvid, outf, qscore, false, delay);
+    }
+
+    /**
+     * @param audioOnly
+     *   true to download audio-only stream.
+     *   UNSUPPORTED_VIDFORMAT is notified if video doesn't have audio-only stream.
+     */
+    public Err
+    download(final String ytvid, final File outf, final int qscore,
+             final boolean audioOnly, final long delay) {
+        return download(new DnArg(ytvid, outf, qscore, audioOnly), delay);
+    }
+
+    /**
+     * Partially downloaded data is kept if download fails,
+     *   and it is resumed at next download of same file.
+     * Downloaded file is verified before it is moved to target file.
+     */
+    public Err
+    downloadResumable(final String ytvid, final File outf, final int qscore, final long delay) {
+        DnArg arg = new DnArg(ytvid, outf, qscore, false);
+        arg.resumable = true;
+        return download(arg, delay);
+    }
+
+    private Err
+    download(final DnArg arg, final long delay) {
         eAssert(Utils.isUiThread());
 
-        if (outf.exists()) {
+        if (arg.outf.exists()) {
             if (null != mDnDoneRcvr) {
                 // already downloaded.
                 Utils.getUiHandler().post(new Runnable() {
                     @Override
                     public void
                     run() {
-                        mDnDoneRcvr.downloadDone(YTDownloader.this,
-                                                 new DnArg(ytvid, outf, qscore),
-                                                 Err.NO_ERR);
+                        mDnDoneRcvr.downloadDone(YTDownloader.this, arg, Err.NO_ERR);
                     }
                 });
             }
@@ -317,8 +656,7 @@ public class YTDownloader {
         }
 
         if (Utils.isNetworkAvailable()) {
-            Message msg = mBgHandler.obtainMessage(MSG_WHAT_DOWNLOAD,
-                                                   new DnArg(ytvid, outf, qscore));
+            Message msg = mBgHandler.obtainMessage(MSG_WHAT_DOWNLOAD, arg);
             mBgHandler.sendMessageDelayed(msg, delay);
             return Err.NO_ERR;
         }
@@ -335,12 +673,12 @@ public class YTDownloader {
         mBgHandler = new BGHandler(hThread.getLooper(), this);
     }
 
+    /**
+     * Download in progress is cancelled immediately.
+     * Partially downloaded file is removed at background thread.
+     */
     public void
     close() {
-        // TODO
-        // Stop running thread!
-        // Need to check that below code works as expected perfectly.
-        // "interrupting thread" is quite annoying and unpredictable job!
         if (null != mBgHandler)
             mBgHandler.close();
     }
@@ -22,14 +22,12 @@ package free.yhc.netmbuddy.model;
 
 import static free.yhc.netmbuddy.utils.Utils.eAssert;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -56,6 +54,26 @@ public class YTHacker {
 
     private static final int    YTQSCORE_INVALID        = -1;
 
+    // Rough bitrate(bps) of stream of each quality level - including audio.
+    // This is used to select quality that network can afford.
+    // NOTE : Ordered by quality score - from highest.
+    private static final int[]  YTQSCORE_LEVELS = new int[] {
+        YTQUALITY_SCORE_HIGHEST,
+        YTQUALITY_SCORE_HIGH,
+        YTQUALITY_SCORE_MIDHIGH,
+        YTQUALITY_SCORE_MIDLOW,
+        YTQUALITY_SCORE_LOW,
+        YTQUALITY_SCORE_LOWEST,
+    };
+    private static final long[] YTQSCORE_BITRATES = new long[] {
+        4500000,    // 1080p
+        2500000,    // 720p
+        1200000,    // 480p
+        700000,     // 360p
+        250000,     // 240p (3gpp)
+        100000,     // 144p (3gpp)
+    };
+
     // TODO
     // This is from experimental result and hacking script code.
     // Need to verify below tags again!
@@ -78,23 +96,17 @@ public class YTHacker {
     private static final int    YTSTREAMTAG_FLV_360p    = 34;
     private static final int    YTSTREAMTAG_FLV_240p    = 5;
 
-    private static final Pattern    sYtUrlStreamMapPattern
-        = Pattern.compile(".*\"url_encoded_fmt_stream_map\": \"([^\"]+)\".*");
-
-    // [ Small talk... ]
-    // Why "generate_204"?
-    // 204 is http response code that means "No Content".
-    // Interestingly, if GET is requested to url that includes "generate_204",
-    //   204 (No Content) response comes.
-    // So, this URL is a kind of special URL that creates 204 response
-    //   and notify to server that preparing real-contents.
-    private static final Pattern    sYtUrlGenerate204Pattern
-        = Pattern.compile(".*\"(http\\:.+\\/generate_204[^\"]*)\".*");
+    // Audio-only streams in adaptive formats (DASH). AAC in MPEG-4 container (m4a).
+    private static final int    YTSTREAMTAG_AAC_48k     = 139;
+    private static final int    YTSTREAMTAG_AAC_128k    = 140;
+    private static final int    YTSTREAMTAG_AAC_256k    = 141;
 
-    private final NetLoader     mLoader = new NetLoader();;
+    private final NetLoader     mLoader;
     private final String        mYtvid;
     private final Object        mUser;
     private final YtHackListener mListener;
+    // Cancelling this aborts network operation of hacking immediately.
+    private final CancelToken   mToken;
     // NOTE
     // mBgTask used as "private final" to avoid synchronizing issue.
     // If not, 'mBgTask' should be initialized with 'null'.
@@ -104,7 +116,6 @@ public class YTHacker {
     private final AsyncTask<Void, Void, Err> mBgTask;
 
     private YtVideoHtmlResult   mYtr = null;
-    private boolean             mCancelled = false;
 
     public interface YtHackListener {
         public void onPreHack(YTHacker ythack, String ytvid, Object user);
@@ -139,9 +150,11 @@ public class YTHacker {
     public static class YtVideo {
         public final String   url;
         public final String   type; // mime
-        YtVideo(String aUrl, String aType) {
+        public final String   tag;  // itag - format of the stream
+        YtVideo(String aUrl, String aType, String aTag) {
             url = aUrl;
             type = aType;
+            tag = aTag;
         }
     }
 
@@ -154,9 +167,34 @@ public class YTHacker {
         // This value is guesses from 'tag'
         // -1 means "invalid, so, DO NOT use this video".
         int     qscore      = YTQSCORE_INVALID;
+        // Quality score as audio-only stream.
+        // -1 means "this is not audio-only stream".
+        int     aqscore     = YTQSCORE_INVALID;
 
         private YtVideoElem() {} // DO NOT CREATE DIRECTLY
 
+        private static int
+        getAudioQualityScore(String tag) {
+            int v = -1;
+            try {
+                v = Integer.parseInt(tag);
+            } catch (NumberFormatException e) {
+                eAssert(false);
+            }
+
+            // Only AAC is used. Vorbis/Opus in WebM is not supported by Android's MediaPlayer.
+            switch (v) {
+            case YTSTREAMTAG_AAC_256k:
+                return YTQUALITY_SCORE_HIGHEST;
+            case YTSTREAMTAG_AAC_128k:
+                return YTQUALITY_SCORE_MIDHIGH;
+            case YTSTREAMTAG_AAC_48k:
+                return YTQUALITY_SCORE_LOWEST;
+            default:
+                return YTQSCORE_INVALID;
+            }
+        }
+
         private static int
         getQuailityScore(String tag) {
             int v = -1;
@@ -191,38 +229,59 @@ public class YTHacker {
         }
 
 
-        static YtVideoElem
-        parse(String ytString) {
-            YtVideoElem ve = new YtVideoElem();
+        private static String
+        decode(String s) {
             try {
-                ytString = URLDecoder.decode(ytString, "UTF-8");
+                return URLDecoder.decode(s, "UTF-8");
             } catch (UnsupportedEncodingException e) {
                 eAssert(false);
             }
+            return s;
+        }
 
+        /**
+         * @param ytString
+         *   one element of stream map - fields separated by '\u0026'(literally).
+         *   Only values of fields that are used, are url-decoded.
+         */
+        static YtVideoElem
+        parse(String ytString) {
+            YtVideoElem ve = new YtVideoElem();
+            final String sep = "\\u0026";
             String   sig = null;
-            String[] elems = ytString.split("\\\\u0026");
-            for (String e : elems) {
+            int i = 0;
+            while (i <= ytString.length()) {
+                int ei = ytString.indexOf(sep, i);
+                if (ei < 0)
+                    ei = ytString.length();
+                String e = ytString.substring(i, ei);
+                i = ei + sep.length();
+
                 if (e.startsWith("itag="))
-                    ve.tag = e.substring("itag=".length());
+                    ve.tag = decode(e.substring("itag=".length()));
                 else if (e.startsWith("url="))
-                    ve.url = e.substring("url=".length());
+                    ve.url = decode(e.substring("url=".length()));
                 else if (e.startsWith("type=")) {
-                    String type = e.substring("type=".length());
+                    String type = decode(e.substring("type=".length()));
                     int idx = type.indexOf(';');
                     if (idx >= 0)
                         type = type.substring(0, idx);
                     ve.type = type;
                 } else if (e.startsWith("quality="))
-                    ve.quality = e.substring("quality=".length());
+                    ve.quality = decode(e.substring("quality=".length()));
                 else if (e.startsWith("sig="))
-                    sig = e.substring("sig=".length());
+                    sig = decode(e.substring("sig=".length()));
             }
 
             if (ve.url.isEmpty()
                 || ve.tag.isEmpty()
-                || ve.type.isEmpty()
-                || ve.quality.isEmpty())
+                || ve.type.isEmpty())
+                return null; // Not supported video.
+
+            ve.aqscore = getAudioQualityScore(ve.tag);
+            // Audio-only stream of adaptive formats doesn't have 'quality' field.
+            if (ve.quality.isEmpty()
+                && YTQSCORE_INVALID == ve.aqscore)
                 return null; // Not supported video.
 
             if (null != sig)
@@ -233,6 +292,17 @@ public class YTHacker {
             return ve;
         }
 
+        static YtVideoElem
+        restore(YTStreamCache.Stream s) {
+            YtVideoElem ve = new YtVideoElem();
+            ve.tag = s.tag;
+            ve.url = s.url;
+            ve.type = s.type;
+            ve.qscore = getQuailityScore(ve.tag);
+            ve.aqscore = getAudioQualityScore(ve.tag);
+            return ve;
+        }
+
         static String
         dump(YtVideoElem e) {
             return "[Video Elem]\n"
@@ -240,12 +310,14 @@ public class YTHacker {
                     + "  url=" + e.url + "\n"
                     + "  type=" + e.type + "\n"
                     + "  quality=" + e.quality + "\n"
-                    + "  qscore=" + e.qscore;
+                    + "  qscore=" + e.qscore + "\n"
+                    + "  aqscore=" + e.aqscore;
         }
     }
 
     private static class YtVideoHtmlResult {
         long            tmstamp = 0; // System time in milli.
+        long            expire  = 0; // System time in milli. Urls are NOT valid after this time.
         String          generate_204_url = ""; // url including generate 204
         YtVideoElem[]   vids = new YtVideoElem[0];
     }
@@ -279,57 +351,81 @@ public class YTHacker {
         return "www.youtube.com";
     }
 
+    /**
+     * Expire time is guessed from 'expire' parameter of stream urls.
+     * If there is no 'expire' parameter, experimental timeout value is used.
+     */
+    private static long
+    guessExpireTime(YtVideoHtmlResult ytr) {
+        long expire = Long.MAX_VALUE;
+        for (YtVideoElem e : ytr.vids) {
+            long t = YTStreamCache.parseUrlExpire(e.url);
+            if (t > 0 && t * 1000 < expire)
+                expire = t * 1000;
+        }
+
+        if (Long.MAX_VALUE == expire)
+            return ytr.tmstamp + Policy.YTHACK_REUSE_TIMEOUT;
+        // Youtube server may have different clock. So, margin is required.
+        return expire - Policy.YTHACK_EXPIRE_MARGIN;
+    }
+
     private static boolean
     verifyYtVideoHtmlResult(YtVideoHtmlResult ytr) {
-        return ytr.vids.length > 0
+        boolean hasMuxed = false;
+        for (YtVideoElem e : ytr.vids) {
+            if (YTQSCORE_INVALID == e.aqscore)
+                hasMuxed = true;
+        }
+        return hasMuxed
                && Utils.isValidValue(ytr.generate_204_url);
     }
 
+    private static YtVideoElem[]
+    parseStreamMap(String map) {
+        ArrayList<YtVideoElem> al = new ArrayList<YtVideoElem>();
+        int i = 0;
+        while (i < map.length()) {
+            int ei = map.indexOf(',', i);
+            if (ei < 0)
+                ei = map.length();
+            YtVideoElem ve = YtVideoElem.parse(map.substring(i, ei));
+            if (null != ve)
+                al.add(ve);
+            i = ei + 1;
+        }
+        return al.toArray(new YtVideoElem[0]);
+    }
+
+    /**
+     * See YTPageScanner.
+     */
     private static YtVideoHtmlResult
-    parseYtVideoHtml(BufferedReader brdr)
+    parseYtVideoHtml(Reader rdr)
             throws LocalException {
-        YtVideoHtmlResult result = new YtVideoHtmlResult();
-        String line = "";
-        while (null != line) {
-            try {
-                line = brdr.readLine();
-            } catch (IOException e) {
-                throw new LocalException(Err.IO_NET);
-            }
-
-            if (null == line)
-                break;
-
-            if (line.contains("/generate_204")) {
-                Matcher m = sYtUrlGenerate204Pattern.matcher(line);
-                if (m.matches()) {
-                    line = m.group(1);
-                    line = line.replaceAll("\\\\u0026", "&");
-                    line = line.replaceAll("\\\\", "");
-                    result.generate_204_url = line;
-                }
-            } else if (line.contains("\"url_encoded_fmt_stream_map\":")) {
-                Matcher m = sYtUrlStreamMapPattern.matcher(line);
-                if (m.matches()) {
-                    line = m.group(1);
-                    String[] vidElemUrls = line.split(",");
-                    ArrayList<YtVideoElem> al = new ArrayList<YtVideoElem>(vidElemUrls.length);
-                    for (String s : vidElemUrls) {
-                        YtVideoElem ve = YtVideoElem.parse(s);
-                        if (null != ve)
-                            al.add(ve);
-                    }
-                    result.vids = al.toArray(new YtVideoElem[0]);
-                }
-            }
+        YTPageScanner.Result sr;
+        try {
+            sr = YTPageScanner.scan(rdr);
+        } catch (IOException e) {
+            throw new LocalException(Err.IO_NET);
         }
+        YtVideoHtmlResult result = new YtVideoHtmlResult();
+        if (null != sr.generate204Url)
+            result.generate_204_url = sr.generate204Url;
+        YtVideoElem[] vids = null == sr.streamMap? new YtVideoElem[0]: parseStreamMap(sr.streamMap);
+        YtVideoElem[] avids = null == sr.adaptiveMap? new YtVideoElem[0]: parseStreamMap(sr.adaptiveMap);
+        // Muxed streams first. Audio-only streams are distinguished by 'aqscore'.
+        result.vids = new YtVideoElem[vids.length + avids.length];
+        System.arraycopy(vids, 0, result.vids, 0, vids.length);
+        System.arraycopy(avids, 0, result.vids, vids.length, avids.length);
         result.tmstamp = System.currentTimeMillis();
+        result.expire = guessExpireTime(result);
         return result;
     }
 
     private void
     preExecute() {
-        mLoader.open();
+        mLoader.open(null, mToken);
         if (null != mListener)
             mListener.onPreHack(this, mYtvid, mUser);
     }
@@ -347,7 +443,9 @@ public class YTHacker {
                 // Read and parse html web page of video.
                 content = mLoader.getHttpContent(Uri.parse(getYtVideoPageUrl(mYtvid)), true);
                 eAssert(content.type.toLowerCase().startsWith("text/html"));
-                ytr = parseYtVideoHtml(new BufferedReader(new InputStreamReader(content.stream)));
+                ytr = parseYtVideoHtml(new InputStreamReader(content.stream));
+                // Rest of page is not required. Stop receiving it.
+                content.abort();
                 if (!verifyYtVideoHtmlResult(ytr)) {
                     // this is invalid result value.
                     // Ignore this result.
@@ -389,7 +487,7 @@ public class YTHacker {
 
     private void
     postExecute(Err result) {
-        if (mCancelled) {
+        if (mToken.isCancelled()) {
             mLoader.close();
 
             if (null != mListener)
@@ -431,6 +529,22 @@ public class YTHacker {
                 score;
     }
 
+    /**
+     * Get highest quality score whose stream can be played without stall under given bandwidth.
+     * @param bps
+     *   available bandwidth (bits per second).
+     * @return
+     *   YTQUALITY_SCORE_LOWEST if there is no quality fit for the bandwidth.
+     */
+    public static int
+    getQScoreForBandwidth(long bps) {
+        for (int i = 0; i < YTQSCORE_LEVELS.length; i++) {
+            if (YTQSCORE_BITRATES[i] <= bps)
+                return YTQSCORE_LEVELS[i];
+        }
+        return YTQUALITY_SCORE_LOWEST;
+    }
+
     public static int
     getQScorePreferHigh(int qscore) {
         int score = qscore + 1;
@@ -439,12 +553,18 @@ public class YTHacker {
                 score;
     }
 
+    /**
+     * @param tclass
+     *   Traffic class of loading web page. ex. PREFETCH for caching videos.
+     */
     public YTHacker(String ytvid, Object user,
-                    YtHackListener hackListener) {
+                    YtHackListener hackListener, NetAdmission.TrafficClass tclass) {
         // loader should "opened loader"
+        mLoader = new NetLoader(tclass);
         mYtvid = ytvid;
         mUser = user;
         mListener = hackListener;
+        mToken = new CancelToken("YTHacker : " + ytvid);
         mBgTask = new AsyncTask<Void, Void, Err>() {
             @Override
             protected void
@@ -467,12 +587,53 @@ public class YTHacker {
             @Override
             public void
             onCancelled() {
+                mLoader.close();
                 if (null != mListener)
                     mListener.onHackCancelled(YTHacker.this, mYtvid, mUser);
             }
         };
     }
 
+    /**
+     * Web page is loaded with PLAYBACK traffic class.
+     * Resolving stream is on critical path of starting video.
+     */
+    public YTHacker(String ytvid, Object user,
+                    YtHackListener hackListener) {
+        this(ytvid, user, hackListener, NetAdmission.TrafficClass.PLAYBACK);
+    }
+
+    /**
+     * Create hacker that already has hacked result restored from stream cache.
+     */
+    static YTHacker
+    restore(YTStreamCache.Entry e) {
+        YtVideoHtmlResult ytr = new YtVideoHtmlResult();
+        ytr.tmstamp = e.tmstamp;
+        ytr.expire = e.expire;
+        ytr.vids = new YtVideoElem[e.streams.length];
+        for (int i = 0; i < ytr.vids.length; i++)
+            ytr.vids[i] = YtVideoElem.restore(e.streams[i]);
+
+        YTHacker hacker = new YTHacker(e.ytvid, null, null);
+        hacker.mYtr = ytr;
+        return hacker;
+    }
+
+    /**
+     * Only stream information - itag, url and type - is kept in cache entry.
+     */
+    YTStreamCache.Entry
+    toStreamCacheEntry() {
+        eAssert(hasHackedResult());
+        YTStreamCache.Stream[] ss = new YTStreamCache.Stream[mYtr.vids.length];
+        for (int i = 0; i < ss.length; i++)
+            ss[i] = new YTStreamCache.Stream(mYtr.vids[i].tag,
+                                             mYtr.vids[i].url,
+                                             mYtr.vids[i].type);
+        return new YTStreamCache.Entry(mYtvid, mYtr.tmstamp, mYtr.expire, ss);
+    }
+
     public NetLoader
     getNetLoader() {
         return mLoader;
@@ -494,6 +655,22 @@ public class YTHacker {
         return mYtr.tmstamp;
     }
 
+    /**
+     * @return
+     *   absolute time(ms) after which hacked stream urls are not valid anymore.
+     */
+    public long
+    getHackExpireTime() {
+        eAssert(hasHackedResult());
+        return mYtr.expire;
+    }
+
+    public boolean
+    isHackExpired() {
+        return !hasHackedResult()
+               || System.currentTimeMillis() >= mYtr.expire;
+    }
+
     /**
      *
      * @param quality
@@ -527,7 +704,34 @@ public class YTHacker {
             || (exact && 0 != curgap))
             return null;
         else
-            return new YtVideo(ve.url, ve.type);
+            return new YtVideo(ve.url, ve.type, ve.tag);
+    }
+
+    /**
+     * Select audio-only stream (AAC/M4A) whose quality is closest to given score.
+     * @param quality
+     * @return
+     *   null if there is no audio-only stream.
+     */
+    public YtVideo
+    getAudio(int quality) {
+        eAssert(0 <= quality && quality <= 100);
+        if (null == mYtr)
+            return null;
+
+        YtVideoElem ve = null;
+        int curgap = -1;
+        for (YtVideoElem e : mYtr.vids) {
+            if (YTQSCORE_INVALID != e.aqscore) {
+                int qgap = quality - e.aqscore;
+                qgap = qgap < 0? -qgap: qgap;
+                if (null == ve || qgap < curgap) {
+                    ve = e;
+                    curgap = qgap;
+                }
+            }
+        }
+        return null == ve? null: new YtVideo(ve.url, ve.type, ve.tag);
     }
 
     public Err
@@ -545,8 +749,10 @@ public class YTHacker {
 
     public void
     forceCancel() {
-        mCancelled = true;
-        mLoader.close();
+        // NOTE
+        // Loader is closed at postExecute() - at the thread running hack.
+        // Cancelling token just aborts in-flight request of it.
+        mToken.cancel();
         mBgTask.cancel(true);
     }
 }
@@ -0,0 +1,256 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+package free.yhc.netmbuddy.model;
+
+import java.io.IOException;
+import java.io.Reader;
+
+// Scanner that picks up stream maps and generate_204 url from youtube watch page.
+//
+// Page is scanned character by character - page may have very long lines.
+// Values are in JSON of player configuration in '<script>' element.
+// So, quoted strings are tracked only inside '<script>' elements.
+// Quotes in html text - ex. 6" display - don't affect scanning.
+//
+// NOTE
+// This class SHOULD depend only on JAVA standard library - not on Android or Utils.
+// So, it can be tested at JVM. See tests/src/free/yhc/netmbuddy/model/YTPageScannerTest.java
+class YTPageScanner {
+    // Value of stream map starts just after this marker, and ends at next quote.
+    private static final String MARKER_STREAM_MAP   = "\"url_encoded_fmt_stream_map\": \"";
+    // Same format with stream map. But, audio and video are separated.
+    private static final String MARKER_ADAPTIVE_MAP = "\"adaptive_fmts\": \"";
+    // [ Small talk... ]
+    // Why "generate_204"?
+    // 204 is http response code that means "No Content".
+    // Interestingly, if GET is requested to url that includes "generate_204",
+    //   204 (No Content) response comes.
+    // So, this URL is a kind of special URL that creates 204 response
+    //   and notify to server that preparing real-contents.
+    // Quoted string - starting with 'http:' - that has this marker, is url for generate_204.
+    private static final String MARKER_GENERATE_204 = "/generate_204";
+    // Compared in lower case.
+    private static final String MARKER_SCRIPT_OPEN  = "<script";
+    private static final String MARKER_SCRIPT_CLOSE = "</script";
+
+    // Adaptive formats map may not exist in page.
+    // So, after all others are found, only this number of characters are scanned more to find it.
+    // (In general, it is placed near stream map.)
+    static final int    ADAPTIVE_SCAN_LIMIT = 64 * 1024;
+    // Quoted string longer than this, is not regarded as generate_204 url.
+    static final int    MAX_URL_LENGTH      = 4096;
+    static final int    READ_BUFSZ          = 8 * 1024;
+
+    private enum Region {
+        TEXT,   // html outside of script element.
+        TAG,    // in '<script ...>' tag.
+        SCRIPT, // contents of script element.
+    }
+
+    static class Result {
+        // null if not found.
+        String  streamMap       = null;
+        String  adaptiveMap     = null;
+        String  generate204Url  = null;
+    }
+
+    // Simple streaming matcher for fixed string (KMP).
+    private static class MarkerMatcher {
+        private final char[]    _mMarker;
+        private final int[]     _mFail;
+        private int             _mMatched = 0;
+
+        MarkerMatcher(String marker) {
+            _mMarker = marker.toCharArray();
+            _mFail = new int[_mMarker.length];
+            int k = 0;
+            for (int i = 1; i < _mMarker.length; i++) {
+                while (k > 0 && _mMarker[i] != _mMarker[k])
+                    k = _mFail[k - 1];
+                if (_mMarker[i] == _mMarker[k])
+                    k++;
+                _mFail[i] = k;
+            }
+        }
+
+        /**
+         * @return
+         *   true if marker is matched just at this character.
+         */
+        boolean
+        feed(char c) {
+            while (_mMatched > 0 && c != _mMarker[_mMatched])
+                _mMatched = _mFail[_mMatched - 1];
+            if (c == _mMarker[_mMatched])
+                _mMatched++;
+            if (_mMarker.length == _mMatched) {
+                _mMatched = _mFail[_mMatched - 1];
+                return true;
+            }
+            return false;
+        }
+
+        void
+        reset() {
+            _mMatched = 0;
+        }
+    }
+
+    private YTPageScanner() {
+    }
+
+    private static String
+    refineGenerate204Url(String url) {
+        url = url.replace("\\u0026", "&");
+        return url.replace("\\", "");
+    }
+
+    /**
+     * Scanning is stopped as soon as all values are found.
+     * So, remaining part of page is NOT read.
+     */
+    static Result
+    scan(Reader rdr) throws IOException {
+        Result result = new Result();
+        MarkerMatcher scriptOpen = new MarkerMatcher(MARKER_SCRIPT_OPEN);
+        MarkerMatcher scriptClose = new MarkerMatcher(MARKER_SCRIPT_CLOSE);
+        MarkerMatcher mapMatcher = new MarkerMatcher(MARKER_STREAM_MAP);
+        MarkerMatcher adaptiveMatcher = new MarkerMatcher(MARKER_ADAPTIVE_MAP);
+        MarkerMatcher g204Matcher = new MarkerMatcher(MARKER_GENERATE_204);
+        Region region = Region.TEXT;
+        // Contents of current quoted string.
+        StringBuilder str = new StringBuilder();
+        // Quote character of current string. 0 if not in string.
+        char strQuote = 0;
+        boolean escaped = false;
+        boolean strHas204 = false;
+        // Value of stream map being collected.
+        StringBuilder map = null;
+        boolean mapIsAdaptive = false;
+        // Number of characters scanned after stream map and generate_204 url are found.
+        int extraScanned = 0;
+        boolean done = false;
+
+        char[] buf = new char[READ_BUFSZ];
+        int len;
+        while (!done
+               && -1 != (len = rdr.read(buf))) {
+            for (int i = 0; i < len && !done; i++) {
+                char c = buf[i];
+
+                if (null == map
+                    && null != result.streamMap
+                    && null != result.generate204Url) {
+                    extraScanned++;
+                    if (extraScanned > ADAPTIVE_SCAN_LIMIT) {
+                        done = true;
+                        break;
+                    }
+                }
+
+                if (Region.TEXT == region) {
+                    if (scriptOpen.feed(Character.toLowerCase(c)))
+                        region = Region.TAG;
+                    continue;
+                } else if (Region.TAG == region) {
+                    if ('>' == c) {
+                        region = Region.SCRIPT;
+                        strQuote = 0;
+                        escaped = false;
+                        scriptClose.reset();
+                        mapMatcher.reset();
+                        adaptiveMatcher.reset();
+                    }
+                    continue;
+                }
+
+                boolean quoteEnd = 0 != strQuote && strQuote == c && !escaped;
+                escaped = 0 != strQuote && '\\' == c && !escaped;
+
+                if (null != map) {
+                    // Collecting value of stream map.
+                    if (quoteEnd) {
+                        if (mapIsAdaptive)
+                            result.adaptiveMap = map.toString();
+                        else
+                            result.streamMap = map.toString();
+                        map = null;
+                        strQuote = 0;
+                    } else
+                        map.append(c);
+                    done = null != result.streamMap
+                           && null != result.generate204Url
+                           && null != result.adaptiveMap;
+                    continue;
+                }
+
+                // Script element ends here regardless of quotes. (See html spec.)
+                if (scriptClose.feed(Character.toLowerCase(c))) {
+                    region = Region.TEXT;
+                    scriptOpen.reset();
+                    strQuote = 0;
+                    escaped = false;
+                    continue;
+                }
+
+                if (0 == strQuote) {
+                    if ('"' == c || '\'' == c) {
+                        strQuote = c;
+                        str.setLength(0);
+                        strHas204 = false;
+                        g204Matcher.reset();
+                    }
+                } else if (quoteEnd) {
+                    if (strHas204
+                        && str.length() < MAX_URL_LENGTH
+                        && 0 == str.indexOf("http:"))
+                        result.generate204Url = refineGenerate204Url(str.toString());
+                    strQuote = 0;
+                } else {
+                    if (str.length() < MAX_URL_LENGTH)
+                        str.append(c);
+                    if (null == result.generate204Url
+                        && g204Matcher.feed(c))
+                        strHas204 = true;
+                }
+
+                // Marker ends with opening quote of value.
+                if (null == result.streamMap
+                    && mapMatcher.feed(c)) {
+                    map = new StringBuilder();
+                    mapIsAdaptive = false;
+                }
+
+                if (null == result.adaptiveMap
+                    && adaptiveMatcher.feed(c)) {
+                    map = new StringBuilder();
+                    mapIsAdaptive = true;
+                }
+
+                done = null != result.streamMap
+                       && null != result.generate204Url
+                       && null != result.adaptiveMap;
+            }
+        }
+        return result;
+    }
+}
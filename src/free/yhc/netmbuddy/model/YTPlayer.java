@@ -24,11 +24,11 @@ import static free.yhc.netmbuddy.utils.Utils.eAssert;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Random;
 
 import android.app.Activity;
@@ -46,6 +46,8 @@ import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.WifiLock;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.speech.tts.TextToSpeech;
 import android.telephony.TelephonyManager;
@@ -60,6 +62,7 @@ import free.yhc.netmbuddy.db.DB;
 import free.yhc.netmbuddy.model.YTDownloader.DnArg;
 import free.yhc.netmbuddy.model.YTDownloader.DownloadDoneReceiver;
 import free.yhc.netmbuddy.utils.FileUtils;
+import free.yhc.netmbuddy.utils.Mp4Utils;
 import free.yhc.netmbuddy.utils.Utils;
 
 public class YTPlayer implements
@@ -88,26 +91,24 @@ UnexpectedExceptionHandler.Evidence {
     private static final String WLTAG               = "YTPlayer";
     private static final int    PLAYER_ERR_RETRY    = Policy.YTPLAYER_RETRY_ON_ERROR;
 
-    private static final Comparator<NrElem> sNrElemComparator = new Comparator<NrElem>() {
-        @Override
-        public int
-        compare(NrElem o1, NrElem o2) {
-            if (o1.n > o2.n)
-                return 1;
-            else if (o1.n < o2.n)
-                return -1;
-            else
-                return 0;
-        }
-    };
-
-    private static final Comparator<Video> sVideoTitleComparator = new Comparator<Video>() {
-        @Override
-        public int
-        compare(Video o1, Video o2) {
-            return o1.title.compareTo(o2.title);
-        }
-    };
+    // MediaPlayer.setNextMediaPlayer() is available from API 16.
+    // null if it's not supported.
+    private static final Method sSetNextMediaPlayer = getSetNextMediaPlayerMethod();
+
+    // Columns to load queued videos.
+    private static final ColVideo[] sVideoProjectionToLoad
+        = new ColVideo[] { ColVideo.ID,
+                           ColVideo.VIDEOID,
+                           ColVideo.TITLE,
+                           ColVideo.AUTHOR,
+                           ColVideo.VOLUME,
+                           ColVideo.PLAYTIME };
+    private static final int COLI_VID_ID        = 0;
+    private static final int COLI_VID_YTVID     = 1;
+    private static final int COLI_VID_TITLE     = 2;
+    private static final int COLI_VID_AUTHOR    = 3;
+    private static final int COLI_VID_VOLUME    = 4;
+    private static final int COLI_VID_PLAYTIME  = 5;
 
     private static File     sCacheDir = new File(Policy.APPDATA_CACHEDIR);
 
@@ -120,6 +121,18 @@ UnexpectedExceptionHandler.Evidence {
     private final YTPlayerUI            mUi         = new YTPlayerUI(this); // for UI control
     private final AutoStop              mAutoStop   = new AutoStop();
     private final StartVideoRecovery    mStartVideoRecovery = new StartVideoRecovery();
+    private final PlayQueueSnapshot     mSnapshot   = PlayQueueSnapshot.get();
+    // Playing position is saved to snapshot periodically while playing.
+    private final Runnable              mSnapshotPosRunnable = new Runnable() {
+        @Override
+        public void
+        run() {
+            putSnapshotPosition();
+            Utils.getUiHandler().postDelayed(this, Policy.YTPLAYER_PLAYQ_SNAPSHOT_POS_INTERVAL);
+        }
+    };
+    private final YTStreamPrefetcher    mPrefetcher = new YTStreamPrefetcher();
+    private final StreamStats           mStreamStats = new StreamStats();
     private final YTPlayerVideoListManager  mVlm;
 
     // ------------------------------------------------------------------------
@@ -129,6 +142,14 @@ UnexpectedExceptionHandler.Evidence {
     private WakeLock            mWl         = null;
     private WifiLock            mWfl        = null;
     private MediaPlayer         mMp         = null;
+    // Blocking MediaPlayer functions are executed at engine thread.
+    // See MediaPlayerEngine.
+    private final MediaPlayerEngine mEngine = new MediaPlayerEngine("YTPlayer.MP",
+                                                                    Process.THREAD_PRIORITY_AUDIO);
+    // Engine for next media player.
+    // Preparing next player SHOULD NOT delay commands to active player.
+    private final MediaPlayerEngine mNextEngine = new MediaPlayerEngine("YTPlayer.NextMP",
+                                                                        Process.THREAD_PRIORITY_BACKGROUND);
     // Video Player Session Id.
     // Whenever new video - even if it is same video with previous one - is started,
     //   session id is increased.
@@ -140,10 +161,30 @@ UnexpectedExceptionHandler.Evidence {
     private boolean             mSurfReady  = false;
     private boolean             mVSzReady   = false;
     private int                 mMpVol      = Policy.DEFAULT_VIDEO_VOLUME; // Current volume of media player.
-    private YTHacker            mYtHack     = null;
-    private NetLoader           mLoader     = null;
+    // Values lastly read from media player.
+    // These are used while media player is busy at engine thread.
+    private int                 mMpPos      = 0;
+    private int                 mMpDur      = 0;
+    private int                 mMpVWidth   = 0;
+    private int                 mMpVHeight  = 0;
+    // On-going request to resolve stream of active video.
+    private YTResolver.Request  mYtResolveReq = null;
+    // Media player prepared in advance for next video - for gapless transition.
+    private MediaPlayer         mNextMp     = null;
+    private String              mNextMpYtvid = null;
+    private boolean             mNextMpPrepared = false;
+    // mNextMp is prepared with cached file - not with stream url.
+    private boolean             mNextMpFromFile = false;
+    // Media player to which mNextMp is set as next player by 'setNextMediaPlayer'.
+    private MediaPlayer         mNextMpLinkedTo = null;
+    // On-going request to resolve stream of next video - for next media player.
+    private YTResolver.Request  mNextMpResolveReq = null;
     // assign dummy instance to remove "if (null != mYtDnr)"
     private YTDownloader        mYtDnr      = new YTDownloader();
+    // Throughput of caching is adjusted not to starve streaming of current video.
+    private final RateLimiter   mCachingLimiter = new RateLimiter("YTPlayer.Caching");
+    // Is current video streamed from network? - not played from cached file.
+    private boolean             mMpStreaming = false;
     private TextToSpeech        mTts        = null;
     private TTSState            mTtsState   = TTSState.NOTUSED;
 
@@ -153,6 +194,8 @@ UnexpectedExceptionHandler.Evidence {
     private int                     mErrRetry = PLAYER_ERR_RETRY;
     private YTPState                mYtpS   = YTPState.IDLE;
     private PlayerState             mStoredPState = null;
+    // Time(elapsed realtime) when user requests new video. 0 if audio is already started.
+    private long                    mStartRequestTm = 0;
 
     // ------------------------------------------------------------------------
     // Listeners
@@ -248,12 +291,38 @@ UnexpectedExceptionHandler.Evidence {
         }
     }
 
-    private static class NrElem {
-        public int      n;
-        public Object   tag;
-        NrElem(int aN, Object aTag) {
-            n = aN;
-            tag = aTag;
+    // Statistics to see effect of resolving streams in advance.
+    private static class StreamStats {
+        int     nrLookup        = 0; // # of stream lookups at the moment of starting streaming.
+        int     nrHit           = 0; // # of lookups served from stream cache.
+        int     nrStart         = 0; // # of measured starts.
+        long    lastStartTm     = 0; // ms from start request to first audio.
+        long    maxStartTm      = 0;
+        long    totalStartTm    = 0;
+
+        void
+        onLookup(boolean hit) {
+            nrLookup++;
+            if (hit)
+                nrHit++;
+        }
+
+        void
+        onStarted(long tm) {
+            nrStart++;
+            lastStartTm = tm;
+            totalStartTm += tm;
+            if (tm > maxStartTm)
+                maxStartTm = tm;
+        }
+
+        String
+        dump() {
+            return "[Stream Stats]\n"
+                   + "  hit rate : " + nrHit + "/" + nrLookup + "\n"
+                   + "  start time(ms) : last=" + lastStartTm
+                   + ", avg=" + (nrStart > 0? totalStartTm / nrStart: 0)
+                   + ", max=" + maxStartTm;
         }
     }
 
@@ -315,6 +384,10 @@ UnexpectedExceptionHandler.Evidence {
             if (null != ni
                 && ni.isConnected()) {
                 if (DBG) P.v("Network connected : " + ni.getType());
+                // Measured throughput is meaningless at new network.
+                BandwidthEstimator.get().reset();
+                OfflineStore.get().onNetworkChanged();
+                CacheWarmer.get().onNetworkChanged();
                 switch (ni.getType()) {
                 case ConnectivityManager.TYPE_WIFI:
                     if (DBG) P.v("Network connected : WIFI");
@@ -323,8 +396,11 @@ UnexpectedExceptionHandler.Evidence {
                     if (DBG) P.v("Network connected : MOBILE");
                     break;
                 }
-            } else
+            } else {
                 if (DBG) P.v("Network lost");
+                OfflineStore.get().onNetworkChanged();
+                CacheWarmer.get().onNetworkChanged();
+            }
         }
     }
 
@@ -418,11 +494,16 @@ UnexpectedExceptionHandler.Evidence {
         }
 
         // USE THIS FUNCTION
+        // Delay grows as recovery is failed repeatedly.
         void
-        executeRecoveryStart(Video v, long delays) {
+        executeRecoveryStart(Video v, long minDelay) {
             eAssert(Utils.isUiThread());
             cancel();
             _mV = v;
+            long delays = RetryPolicy.backoffDelay(PLAYER_ERR_RETRY - mErrRetry,
+                                                   Policy.NETWORK_RETRY_BASE_DELAY,
+                                                   Policy.NETWORK_RETRY_MAX_DELAY);
+            delays = Math.max(minDelay, delays);
             if (delays > 0)
                 Utils.getUiHandler().postDelayed(this, delays);
             else
@@ -550,12 +631,23 @@ UnexpectedExceptionHandler.Evidence {
         mp.setOnPreparedListener(this);
     }
 
+    private void
+    mpClearCachedValues() {
+        mMpPos = 0;
+        mMpDur = 0;
+        mMpVWidth = 0;
+        mMpVHeight = 0;
+    }
+
     private void
     mpNewInstance() {
+        // NOTE
+        // Instance SHOULD be created at UI thread to get callbacks at UI thread.
         mMp = new MediaPlayer();
         mMpSessId++;
         mMpSurfAttached = false;
         mMpVol = Policy.DEFAULT_VIDEO_VOLUME;
+        mpClearCachedValues();
         initMediaPlayer(mMp);
         mpSetState(MPState.IDLE);
         mpSetStateFlag(MPSTATE_FLAG_IDLE);
@@ -566,14 +658,33 @@ UnexpectedExceptionHandler.Evidence {
         return mMp;
     }
 
+    /**
+     * @param onFail
+     *   Called at UI thread if data source cannot be set.
+     */
     private void
-    mpSetDataSource(String path) throws IOException {
+    mpSetDataSource(final String path, final Runnable onFail) {
         if (null == mMp)
             return;
 
         switch (mpGetState()) {
         case IDLE:
-            mMp.setDataSource(path);
+            mEngine.execute(mMp, new MediaPlayerEngine.Command("setDataSource") {
+                @Override
+                void
+                run(MediaPlayer mp) throws IOException {
+                    mp.setDataSource(path);
+                }
+
+                @Override
+                void
+                onFailed(MediaPlayer mp, Exception e) {
+                    if (DBG) P.w("YTPlayer SetDataSource fails : " + e.getMessage());
+                    if (mp != mpGet())
+                        return; // player is already changed.
+                    onFail.run();
+                }
+            });
             mpSetState(MPState.INITIALIZED);
             return;
 
@@ -593,7 +704,13 @@ UnexpectedExceptionHandler.Evidence {
         case INITIALIZED:
         case STOPPED:
             mpSetState(MPState.PREPARING);
-            mMp.prepareAsync();
+            mEngine.execute(mMp, new MediaPlayerEngine.Command("prepareAsync") {
+                @Override
+                void
+                run(MediaPlayer mp) {
+                    mp.prepareAsync();
+                }
+            });
             return;
 
         default:
@@ -608,23 +725,24 @@ UnexpectedExceptionHandler.Evidence {
             return;
 
 
-        if (MPState.ERROR != mMpS && mMp.isPlaying())
-            mMp.stop();
-
-        // Why run at another thread?
-        // Sometimes mMp.release takes too long time or may never return.
-        // Even in this case, ANR is very annoying to user.
-        // So, this is a kind of workaround for these cases.
-        final MediaPlayer mp = mMp;
-        new Thread(new Runnable() {
-            @Override
-            public void
-            run() {
-                mpUnsetVideoSurface();
-                mp.release();
-            }
-        }).start();
+        // NOTE
+        // Teardown is NOT queued behind commands of mEngine.
+        // stop() of buffering player may block for long time.
+        // Then, commands for next player - queued behind it - would be stalled.
+        // So, DO NOT call mpStop() before this for player that is thrown away.
+        switch (mpGetState()) {
+        case PREPARED_AUDIO:
+        case PREPARED:
+        case STARTED:
+        case PAUSED:
+        case PLAYBACK_COMPLETED:
+            mEngine.discard(mMp, newTeardownCommand(true, true));
+            break;
+        default:
+            mEngine.discard(mMp, newTeardownCommand(false, true));
+        }
         mMp = null;
+        mMpSurfAttached = false;
         mpSetState(MPState.END);
     }
 
@@ -643,7 +761,14 @@ UnexpectedExceptionHandler.Evidence {
         case STOPPED:
         case PLAYBACK_COMPLETED:
         case ERROR:
-            mMp.reset();
+            mEngine.execute(mMp, new MediaPlayerEngine.Command("reset") {
+                @Override
+                void
+                run(MediaPlayer mp) {
+                    mp.reset();
+                }
+            });
+            mpClearCachedValues();
             mpSetState(MPState.IDLE);
             return;
 
@@ -654,21 +779,23 @@ UnexpectedExceptionHandler.Evidence {
     }
 
     private void
-    mpSetVideoSurface(SurfaceHolder sholder) {
+    mpSetVideoSurface(final SurfaceHolder sholder) {
         if (null == mMp)
             return;
 
-        mMp.setDisplay(sholder);
+        mEngine.execute(mMp, new MediaPlayerEngine.Command("setDisplay") {
+            @Override
+            void
+            run(MediaPlayer mp) {
+                mp.setDisplay(sholder);
+            }
+        });
         mMpSurfAttached = (null != sholder);
     }
 
     private void
     mpUnsetVideoSurface() {
-        if (null == mMp)
-            return;
-
-        mMp.setDisplay(null);
-        mMpSurfAttached = false;
+        mpSetVideoSurface(null);
     }
 
     private void
@@ -685,9 +812,15 @@ UnexpectedExceptionHandler.Evidence {
         case PAUSED:
         case STOPPED:
         case PLAYBACK_COMPLETED:
-            float volf = vol/100.0f;
+            final float volf = vol/100.0f;
             mMpVol = vol;
-            mMp.setVolume(volf, volf);
+            mEngine.execute(mMp, new MediaPlayerEngine.Command("setVolume") {
+                @Override
+                void
+                run(MediaPlayer mp) {
+                    mp.setVolume(volf, volf);
+                }
+            });
             return;
 
         default:
@@ -727,7 +860,10 @@ UnexpectedExceptionHandler.Evidence {
         case PAUSED:
         case STOPPED:
         case PLAYBACK_COMPLETED:
-            return mMp.getCurrentPosition();
+            // Calling media player may be blocked until engine finishes running command.
+            if (!mEngine.isBusy())
+                mMpPos = mMp.getCurrentPosition();
+            return mMpPos;
 
         default:
             ; // ignored
@@ -748,7 +884,10 @@ UnexpectedExceptionHandler.Evidence {
         case PAUSED:
         case STOPPED:
         case PLAYBACK_COMPLETED:
-            return mMp.getDuration();
+            // Calling media player may be blocked until engine finishes running command.
+            if (!mEngine.isBusy())
+                mMpDur = mMp.getDuration();
+            return mMpDur;
 
         default:
             ; // ignored
@@ -771,7 +910,10 @@ UnexpectedExceptionHandler.Evidence {
         case PAUSED:
         case STOPPED:
         case PLAYBACK_COMPLETED:
-            return mMp.getVideoWidth();
+            // Calling media player may be blocked until engine finishes running command.
+            if (!mEngine.isBusy())
+                mMpVWidth = mMp.getVideoWidth();
+            return mMpVWidth;
 
         default:
             ; // ignored
@@ -795,7 +937,10 @@ UnexpectedExceptionHandler.Evidence {
         case PAUSED:
         case STOPPED:
         case PLAYBACK_COMPLETED:
-            return mMp.getVideoHeight();
+            // Calling media player may be blocked until engine finishes running command.
+            if (!mEngine.isBusy())
+                mMpVHeight = mMp.getVideoHeight();
+            return mMpVHeight;
 
         default:
             ; // ignored
@@ -815,6 +960,8 @@ UnexpectedExceptionHandler.Evidence {
         if (null == mMp)
             return false;
 
+        if (mEngine.isBusy())
+            return MPState.STARTED == mpGetState();
         return mMp.isPlaying();
     }
 
@@ -827,7 +974,13 @@ UnexpectedExceptionHandler.Evidence {
         switch (mpGetState()) {
         case STARTED:
         case PAUSED:
-            mMp.pause();
+            mEngine.execute(mMp, new MediaPlayerEngine.Command("pause") {
+                @Override
+                void
+                run(MediaPlayer mp) {
+                    mp.pause();
+                }
+            });
             mpSetState(MPState.PAUSED);
             return;
 
@@ -838,7 +991,7 @@ UnexpectedExceptionHandler.Evidence {
     }
 
     private void
-    mpSeekTo(int pos) {
+    mpSeekTo(final int pos) {
         if (DBG) P.v("MPlayer - seekTo : " + pos);
         if (null == mMp)
             return;
@@ -850,7 +1003,14 @@ UnexpectedExceptionHandler.Evidence {
         case PAUSED:
         case PLAYBACK_COMPLETED:
             mpSetStateFlagBit(MPSTATE_FLAG_SEEKING);
-            mMp.seekTo(pos);
+            mEngine.execute(mMp, new MediaPlayerEngine.Command("seekTo") {
+                @Override
+                void
+                run(MediaPlayer mp) {
+                    mp.seekTo(pos);
+                }
+            });
+            mMpPos = pos;
             return;
 
         default:
@@ -873,7 +1033,13 @@ UnexpectedExceptionHandler.Evidence {
         case STARTED:
         case PAUSED:
         case PLAYBACK_COMPLETED:
-            mMp.start();
+            mEngine.execute(mMp, new MediaPlayerEngine.Command("start") {
+                @Override
+                void
+                run(MediaPlayer mp) {
+                    mp.start();
+                }
+            });
             mpSetState(MPState.STARTED);
             return;
 
@@ -897,7 +1063,13 @@ UnexpectedExceptionHandler.Evidence {
         case PAUSED:
         case STOPPED:
         case PLAYBACK_COMPLETED:
-            mMp.stop();
+            mEngine.execute(mMp, new MediaPlayerEngine.Command("stop") {
+                @Override
+                void
+                run(MediaPlayer mp) {
+                    mp.stop();
+                }
+            });
             mpSetState(MPState.STOPPED);
             return;
 
@@ -936,6 +1108,309 @@ UnexpectedExceptionHandler.Evidence {
     isVideoSizeReady() {
         return mVSzReady;
     }
+    // ========================================================================
+    //
+    // Next Media Player Control (Gapless transition)
+    //
+    // ========================================================================
+    // While current video is playing, media player for next video is prepared in advance.
+    // At transition, players are swapped instead of creating and preparing new one.
+    // If 'setNextMediaPlayer' is supported, platform starts next player as soon as
+    //   current one is completed.
+    // NOTE
+    // This is used only if video is not shown and TTS is not used between videos.
+    private static Method
+    getSetNextMediaPlayerMethod() {
+        try {
+            return MediaPlayer.class.getMethod("setNextMediaPlayer", MediaPlayer.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * See MediaPlayerEngine.discard().
+     * @param stop
+     *   stop player before it is released.
+     * @param detachDisplay
+     *   detach display before it is released.
+     */
+    private static MediaPlayerEngine.Command
+    newTeardownCommand(final boolean stop, final boolean detachDisplay) {
+        return new MediaPlayerEngine.Command("teardown") {
+            @Override
+            void
+            run(MediaPlayer mp) {
+                try {
+                    if (stop)
+                        mp.stop();
+                    if (detachDisplay)
+                        mp.setDisplay(null);
+                } catch (IllegalStateException ignored) {
+                    // Player is released anyway.
+                } finally {
+                    mp.release();
+                }
+            }
+        };
+    }
+
+    private final MediaPlayer.OnPreparedListener mNextMpPreparedListener
+        = new MediaPlayer.OnPreparedListener() {
+        @Override
+        public void
+        onPrepared(MediaPlayer mp) {
+            if (mp != mNextMp)
+                return; // old one.
+            if (DBG) P.v("Next MPlayer - prepared : " + mNextMpYtvid);
+            mNextMpPrepared = true;
+            linkNextPlayer();
+        }
+    };
+
+    private final MediaPlayer.OnErrorListener mNextMpErrorListener
+        = new MediaPlayer.OnErrorListener() {
+        @Override
+        public boolean
+        onError(MediaPlayer mp, int what, int extra) {
+            if (DBG) P.v("Next MPlayer - onError : " + what);
+            // Next video will be started in normal way.
+            if (mp == mNextMp)
+                releaseNextPlayer();
+            return true;
+        }
+    };
+
+    private boolean
+    canUseNextPlayer() {
+        return !isVideoMode()
+               && !Utils.isPrefHeadTts()
+               && !Utils.isPrefTailTts();
+    }
+
+    private void
+    setNextMediaPlayer(MediaPlayer mp, final MediaPlayer next) {
+        mEngine.execute(mp, new MediaPlayerEngine.Command("setNextMediaPlayer") {
+            @Override
+            void
+            run(MediaPlayer mp) {
+                try {
+                    sSetNextMediaPlayer.invoke(mp, next);
+                } catch (Exception e) {
+                    // IllegalStateException is wrapped by InvocationTargetException.
+                    throw new IllegalStateException(e.getMessage());
+                }
+            }
+
+            @Override
+            void
+            onFailed(MediaPlayer mp, Exception e) {
+                if (null != next
+                    && mp == mNextMpLinkedTo
+                    && next == mNextMp)
+                    mNextMpLinkedTo = null;
+            }
+        });
+    }
+
+    private void
+    linkNextPlayer() {
+        if (null == sSetNextMediaPlayer
+            || null == mMp
+            || !mNextMpPrepared
+            || mNextMpLinkedTo == mMp)
+            return;
+
+        switch (mpGetState()) {
+        case PREPARED:
+        case STARTED:
+        case PAUSED:
+            // Linked optimistically. It is unlinked if linking fails.
+            setNextMediaPlayer(mMp, mNextMp);
+            mNextMpLinkedTo = mMp;
+            return;
+
+        default:
+            ; // ignored
+        }
+    }
+
+    private void
+    releaseNextPlayer() {
+        if (null != mNextMpResolveReq) {
+            YTResolver.get().cancel(mNextMpResolveReq);
+            mNextMpResolveReq = null;
+        }
+
+        if (null == mNextMp)
+            return;
+
+        if (null != mMp
+            && mNextMpLinkedTo == mMp
+            && MPState.END != mpGetState()
+            && MPState.ERROR != mpGetState())
+            setNextMediaPlayer(mMp, null);
+
+        mNextEngine.discard(mNextMp, newTeardownCommand(false, false));
+        mNextMp = null;
+        mNextMpYtvid = null;
+        mNextMpPrepared = false;
+        mNextMpFromFile = false;
+        mNextMpLinkedTo = null;
+    }
+
+    /**
+     * Used if next video is not cached.
+     * @return
+     *   null if stream is not resolved yet.
+     */
+    private String
+    getNextPlayerStreamUrl(String ytvid) {
+        YTHacker hack = RTState.get().getCachedYtHacker(ytvid);
+        if (null == hack
+            || hack.isHackExpired())
+            return null;
+
+        YTHacker.YtVideo ytv = hack.getAudio(getVideoQualityScore());
+        if (null == ytv)
+            ytv = hack.getVideo(getStreamingQualityScore(), false);
+        return null == ytv? null: ytv.url;
+    }
+
+    /**
+     * Prepare media player for next video if possible.
+     * This can be called whenever state - ex. video list, cache etc - is changed.
+     */
+    private void
+    prepareNextPlayer() {
+        switch (mpGetState()) {
+        case PREPARED:
+        case STARTED:
+        case PAUSED:
+            break;
+
+        default:
+            // Preparing next player is postponed until current one is ready.
+            // Current one is more important than next one.
+            return;
+        }
+
+        final Video nv = canUseNextPlayer() && mVlm.hasNextVideo()?
+                         mVlm.getNextVideo():
+                         null;
+        if (null == nv) {
+            releaseNextPlayer();
+            return;
+        }
+
+        if (nv.ytvid.equals(mNextMpYtvid)) {
+            linkNextPlayer();
+            return;
+        }
+
+        releaseNextPlayer();
+        File cachedf = getPlayableCachedFile(nv.ytvid);
+        final boolean fromFile = null != cachedf;
+        String src = fromFile?
+                     cachedf.getAbsolutePath():
+                     getNextPlayerStreamUrl(nv.ytvid);
+        if (null == src) {
+            // Stream is not resolved yet. Resolve it and try again.
+            YTResolver.OnResolvedListener listener = new YTResolver.OnResolvedListener() {
+                @Override
+                public void
+                onResolved(YTResolver.Request req, YTHacker hack, YTHacker.Err err) {
+                    if (req != mNextMpResolveReq)
+                        return;
+                    mNextMpResolveReq = null;
+                    if (YTHacker.Err.NO_ERR == err)
+                        prepareNextPlayer();
+                }
+            };
+            mNextMpResolveReq = YTResolver.get().resolveAsync(nv.ytvid, Utils.getUiHandler(), listener);
+            return;
+        }
+
+        MediaPlayer mp = new MediaPlayer();
+        mp.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        mp.setOnPreparedListener(mNextMpPreparedListener);
+        mp.setOnErrorListener(mNextMpErrorListener);
+        final float volf = nv.volume / 100.0f;
+        final String source = src;
+        if (DBG) P.v("Next MPlayer - prepare : " + nv.ytvid);
+        mNextMp = mp;
+        mNextMpYtvid = nv.ytvid;
+        mNextMpPrepared = false;
+        mNextMpFromFile = fromFile;
+        mNextMpLinkedTo = null;
+        mNextEngine.execute(mp, new MediaPlayerEngine.Command("prepareNext") {
+            @Override
+            void
+            run(MediaPlayer mp) throws IOException {
+                mp.setVolume(volf, volf);
+                mp.setDataSource(source);
+                mp.prepareAsync();
+            }
+
+            @Override
+            void
+            onFailed(MediaPlayer mp, Exception e) {
+                if (DBG) P.w("Next MPlayer - prepare fails : " + e.getMessage());
+                if (mp == mNextMp)
+                    releaseNextPlayer();
+            }
+        });
+    }
+
+    /**
+     * Swap current player with next player that is already prepared for given video.
+     * @return
+     *   false if next player cannot be used for the video.
+     */
+    private boolean
+    startNextPlayer(String ytvid, int volume) {
+        if (!canUseNextPlayer()
+            || null == mNextMp
+            || !mNextMpPrepared
+            || !ytvid.equals(mNextMpYtvid))
+            return false;
+
+        MediaPlayer mp = mNextMp;
+        boolean fromFile = mNextMpFromFile;
+        // Already started by platform when current one is completed.
+        boolean started = null != mMp
+                          && mNextMpLinkedTo == mMp
+                          && mp.isPlaying();
+        mNextMp = null;
+        mNextMpYtvid = null;
+        mNextMpPrepared = false;
+        mNextMpFromFile = false;
+        mNextMpLinkedTo = null;
+
+        mpRelease();
+
+        if (DBG) P.v("Next MPlayer - swapped (started by platform : " + started + ")");
+        resetCachingRate(!fromFile);
+        mMp = mp;
+        mMpSessId++;
+        mMpSurfAttached = false;
+        mMpVol = volume;
+        mpClearCachedValues();
+        initMediaPlayer(mMp);
+        if (started) {
+            mpSetState(MPState.STARTED);
+            if (mStartRequestTm > 0) {
+                mStreamStats.onStarted(SystemClock.elapsedRealtime() - mStartRequestTm);
+                mStartRequestTm = 0;
+            }
+            prepareNextPlayer();
+        } else {
+            mpSetState(MPState.PREPARED_AUDIO);
+            onPreparedCompletely();
+        }
+        return true;
+    }
+
     // ========================================================================
     //
     // Suspending/Resuming Control
@@ -1093,14 +1568,25 @@ UnexpectedExceptionHandler.Evidence {
             acquireLocks();
             break;
 
-        case STOPPED:
-            if (null != mLoader)
-                mLoader.close();
-            break;
-
         default:
             ; // ignored
         }
+
+        if (from != to) {
+            Utils.getUiHandler().removeCallbacks(mSnapshotPosRunnable);
+            switch (to) {
+            case STARTED:
+                Utils.getUiHandler().postDelayed(mSnapshotPosRunnable,
+                                                 Policy.YTPLAYER_PLAYQ_SNAPSHOT_POS_INTERVAL);
+                // fall through
+            case PAUSED:
+                putSnapshotPosition();
+                break;
+
+            default:
+                ; // ignored
+            }
+        }
     }
 
     private boolean
@@ -1128,6 +1614,27 @@ UnexpectedExceptionHandler.Evidence {
         return YTHacker.getQScorePreferLow(qscore);
     }
 
+    /**
+     * Quality for streaming.
+     * User's preference is upper limit. But, lower quality is selected if network can't afford it.
+     * Estimated bandwidth is re-evaluated whenever new video is started.
+     */
+    private int
+    getStreamingQualityScore() {
+        int qscore = getVideoQualityScore();
+        long bw = BandwidthEstimator.get().getEstimate();
+        if (bw < 0)
+            return qscore; // Not enough information yet.
+
+        int bwqscore = YTHacker.getQScoreForBandwidth((long)(bw * Policy.YTPLAYER_BANDWIDTH_USABLE_RATIO));
+        if (bwqscore >= qscore)
+            return qscore;
+
+        if (DBG) P.v("Quality is limited by bandwidth(" + bw + "bps) : " + qscore + " => " + bwqscore);
+        // Closest one that is not higher than affordable quality.
+        return YTHacker.getQScorePreferLow(bwqscore);
+    }
+
     private static String
     getCachedVideoFilePath(String ytvid, Utils.PrefQuality quality) {
         // Only mp4 is supported by YTHacker.
@@ -1136,6 +1643,15 @@ UnexpectedExceptionHandler.Evidence {
         return Policy.APPDATA_CACHEDIR + ytvid + "-" + quality.name() + ".mp4";
     }
 
+    /**
+     * Audio-only stream is cached as separated quality tier.
+     * NOTE : There SHOULD NOT be '-' after ytvid. See getYtvidOfCachedFile().
+     */
+    private static String
+    getCachedAudioFilePath(String ytvid, Utils.PrefQuality quality) {
+        return Policy.APPDATA_CACHEDIR + ytvid + "-AUDIO_" + quality.name() + ".m4a";
+    }
+
     private static String
     getYtvidOfCachedFile(String path) {
         int idStartI = path.lastIndexOf('/') + 1;
@@ -1149,51 +1665,184 @@ UnexpectedExceptionHandler.Evidence {
         return new File(getCachedVideoFilePath(ytvid, Utils.getPrefQuality()));
     }
 
-    private Video[]
-    getVideos(Cursor c,
-              int coliYtvid, int coliTitle, int coliAuthor,
-              int coliVolume, int coliPlaytime,
-              boolean shuffle) {
-        if (!c.moveToFirst())
-            return new Video[0];
+    private static File
+    getCachedAudio(String ytvid) {
+        return new File(getCachedAudioFilePath(ytvid, Utils.getPrefQuality()));
+    }
 
-        Video[] vs = new Video[c.getCount()];
+    private static boolean
+    isReadableFile(File f) {
+        return f.exists() && f.canRead();
+    }
 
-        int i = 0;
-        if (!shuffle) {
-            do {
-                vs[i++] = new Video(c.getString(coliYtvid),
-                                    c.getString(coliTitle),
-                                    c.getString(coliAuthor),
-                                    c.getInt(coliVolume),
-                                    c.getInt(coliPlaytime),
-                                    0);
-            } while (c.moveToNext());
-            Arrays.sort(vs, sVideoTitleComparator);
-        } else {
-            // This is shuffled case!
-            Random r = new Random(System.currentTimeMillis());
-            NrElem[] nes = new NrElem[c.getCount()];
+    /**
+     * Qualities whose cached file can be played instead of preferred one.
+     * See Policy.YTPLAYER_CACHE_ACCEPT_XXX.
+     * @return
+     *   ordered by preference. Closer quality is preferred.
+     */
+    private static Utils.PrefQuality[]
+    getPlayableCacheQualities(Utils.PrefQuality prefq) {
+        Utils.PrefQuality[] qs = Utils.PrefQuality.values();
+        LinkedList<Utils.PrefQuality> l = new LinkedList<Utils.PrefQuality>();
+        l.add(prefq);
+        if (Policy.YTPLAYER_CACHE_ACCEPT_HIGHER) {
+            for (int i = prefq.ordinal() + 1; i < qs.length; i++)
+                l.add(qs[i]);
+        }
+        if (Policy.YTPLAYER_CACHE_ACCEPT_LOWER
+            || (Policy.YTPLAYER_CACHE_ACCEPT_LOWER_OFFLINE && !Utils.isNetworkAvailable())) {
+            for (int i = prefq.ordinal() - 1; i >= 0; i--)
+                l.add(qs[i]);
+        }
+        return l.toArray(new Utils.PrefQuality[0]);
+    }
+
+    /**
+     * Truncated or broken file makes MediaPlayer fail and leads to recovery retries.
+     * So, file is checked before it is played. Broken one is quarantined.
+     * @param f
+     *   readable file
+     */
+    private boolean
+    isCommittedFile(File f) {
+        if (CacheIndex.isValid(f))
+            return true;
+        CacheIndex.quarantine(f);
+        // Pinned or warmed video is downloaded again.
+        OfflineStore.get().invalidate(f);
+        CacheWarmer.get().invalidate(f);
+        return false;
+    }
+
+    /**
+     * Audio-only file is used only if it's not video mode.
+     * But, video file can be used at both modes.
+     * Cached file of quality other than preferred one, may be returned.
+     * See getPlayableCacheQualities().
+     * File at offline store - pinned video - and warmed file are preferred to cached one.
+     * @return
+     *   null if there is no cached file that can be played at current mode.
+     */
+    private File
+    getPlayableCachedFile(String ytvid) {
+        File pinned = OfflineStore.getStoredFile(ytvid);
+        if (null != pinned
+            && isCommittedFile(pinned))
+            return pinned;
+
+        File warmed = CacheWarmer.getWarmedFile(ytvid);
+        if (null != warmed
+            && isCommittedFile(warmed))
+            return warmed;
+
+        boolean videoMode = isVideoMode();
+        for (Utils.PrefQuality q : getPlayableCacheQualities(Utils.getPrefQuality())) {
+            File f;
+            if (!videoMode) {
+                f = new File(getCachedAudioFilePath(ytvid, q));
+                if (isReadableFile(f)
+                    && isCommittedFile(f))
+                    return f;
+            }
+            f = new File(getCachedVideoFilePath(ytvid, q));
+            if (isReadableFile(f)
+                && isCommittedFile(f)) {
+                if (DBG && q != Utils.getPrefQuality())
+                    P.v("Cached file of other quality is used : " + f.getAbsolutePath());
+                return f;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Video samples dominate size of muxed file.
+     * So, if video is not shown, only audio track is kept in cache.
+     * Audio track is extracted to audio-only cache file and muxed file is removed.
+     * If it fails, muxed file is just kept as it is.
+     */
+    private static void
+    stripVideoTrackAsync(final File mp4, final File audf) {
+        TaskExecutor.get().execute(TaskExecutor.Lane.BULK, new Runnable() {
+            @Override
+            public void
+            run() {
+                File tmpf = null;
+                try {
+                    tmpf = File.createTempFile(getYtvidOfCachedFile(mp4.getAbsolutePath()),
+                                               null,
+                                               new File(Policy.APPDATA_TMPDIR));
+                    Mp4Utils.extractAudio(mp4, tmpf);
+                    Mp4Utils.verify(tmpf);
+                    CacheIndex.commit(tmpf, audf);
+                    mp4.delete();
+                    CacheIndex.getIndexFile(mp4).delete();
+                } catch (IOException e) {
+                    if (DBG) P.w("Fail to strip video track : " + e.getMessage());
+                } catch (Mp4Utils.FormatException e) {
+                    if (DBG) P.w("Fail to strip video track : " + e.getMessage());
+                } finally {
+                    if (null != tmpf)
+                        tmpf.delete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Videos are loaded lazily by play queue.
+     * See PlayQueue.
+     */
+    private Video[]
+    loadVideos(long[] ids) {
+        Video[] vs = new Video[ids.length];
+        if (0 == ids.length)
+            return vs;
+
+        HashMap<Long, Video> loaded = new HashMap<Long, Video>();
+        Cursor c = mDb.queryVideos(ids, sVideoProjectionToLoad);
+        if (c.moveToFirst()) {
             do {
-                nes[i++] = new NrElem(r.nextInt(),
-                                      new Video(c.getString(coliYtvid),
-                                                c.getString(coliTitle),
-                                                c.getString(coliAuthor),
-                                                c.getInt(coliVolume),
-                                                c.getInt(coliPlaytime),
-                                                0));
+                loaded.put(c.getLong(COLI_VID_ID),
+                           new Video(c.getString(COLI_VID_YTVID),
+                                     c.getString(COLI_VID_TITLE),
+                                     c.getString(COLI_VID_AUTHOR),
+                                     c.getInt(COLI_VID_VOLUME),
+                                     c.getInt(COLI_VID_PLAYTIME),
+                                     0));
             } while (c.moveToNext());
-            Arrays.sort(nes, sNrElemComparator);
-            for (i = 0; i < nes.length; i++)
-                vs[i] = (Video)nes[i].tag;
         }
+        c.close();
+
+        for (int i = 0; i < ids.length; i++)
+            vs[i] = loaded.get(ids[i]);
         return vs;
     }
 
+    /**
+     * In-place Fisher-Yates shuffle. 'ids' and 'ytvids' are shuffled together.
+     */
+    private static void
+    shuffleVideos(long[] ids, String[] ytvids) {
+        Random r = new Random(System.currentTimeMillis());
+        for (int i = ids.length - 1; i > 0; i--) {
+            int j = r.nextInt(i + 1);
+            long id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+            String ytvid = ytvids[i];
+            ytvids[i] = ytvids[j];
+            ytvids[j] = ytvid;
+        }
+    }
+
     private void
     cachingVideo(final String vid) {
-        File cacheFile = getCachedVideo(vid);
-        if ((cacheFile.exists() && cacheFile.canRead())
+        // Only audio is required if video is not shown.
+        final boolean audioOnly = !isVideoMode();
+        File cacheFile = audioOnly? getCachedAudio(vid): getCachedVideo(vid);
+        if (null != getPlayableCachedFile(vid)
             // previous operation is same with current request. And it is still running.
             // So, ignore current request.
             || cacheFile.getAbsolutePath().equals(mYtDnr.getCurrentTargetFile()))
@@ -1202,6 +1851,7 @@ UnexpectedExceptionHandler.Evidence {
         mYtDnr.close();
 
         mYtDnr = new YTDownloader();
+        mYtDnr.setRateLimiter(mCachingLimiter);
         YTDownloader.DownloadDoneReceiver rcvr = new DownloadDoneReceiver() {
             @Override
             public void
@@ -1211,15 +1861,37 @@ UnexpectedExceptionHandler.Evidence {
                     return;
                 }
 
+                // Next player can use cached file now.
+                if (YTDownloader.Err.NO_ERR == err) {
+                    prepareNextPlayer();
+                    // Muxed stream is cached but video is not shown.
+                    if (!arg.audioOnly
+                        && !isVideoMode())
+                        stripVideoTrackAsync(arg.outf, getCachedAudio(vid));
+                }
+
+                if (YTDownloader.Err.UNSUPPORTED_VIDFORMAT == err
+                    && arg.audioOnly) {
+                    // There is no audio-only stream for this video. Video is cached instead.
+                    downloader.download(vid, getCachedVideo(vid), getVideoQualityScore(), false, 0);
+                    return;
+                }
+
                 int retryTag = (Integer)downloader.getTag();
                 if (!(YTDownloader.Err.NO_ERR == err
                       || YTDownloader.Err.UNSUPPORTED_VIDFORMAT == err)
                     && Utils.isNetworkAvailable()
                     && retryTag > 0) {
                     // retry.
+                    // NOTE
+                    // Network errors at http request are already retried by NetLoader.
+                    // So, this handles errors while downloading stream.
+                    long delay = RetryPolicy.backoffDelay(Policy.NETOWRK_CONN_RETRY - retryTag,
+                                                          Policy.NETWORK_RETRY_BASE_DELAY,
+                                                          Policy.NETWORK_RETRY_MAX_DELAY);
                     retryTag--;
                     downloader.setTag(retryTag);
-                    downloader.download(vid, getCachedVideo(vid), getVideoQualityScore(), 500);
+                    downloader.download(vid, arg.outf, getVideoQualityScore(), arg.audioOnly, delay);
                 } else
                     downloader.close();
                 // Ignore other cases even if it is fails.
@@ -1229,7 +1901,7 @@ UnexpectedExceptionHandler.Evidence {
         mYtDnr.open("", rcvr);
         // to retry in case of YTHTTPGET.
         mYtDnr.setTag(Policy.NETOWRK_CONN_RETRY);
-        mYtDnr.download(vid, getCachedVideo(vid), getVideoQualityScore(),
+        mYtDnr.download(vid, cacheFile, getVideoQualityScore(), audioOnly,
                         Policy.YTPLAYER_CACHING_DELAY);
     }
 
@@ -1238,6 +1910,63 @@ UnexpectedExceptionHandler.Evidence {
         mYtDnr.close();
     }
 
+    /**
+     * @param streaming
+     *   true if current video is streamed from network.
+     */
+    private void
+    resetCachingRate(boolean streaming) {
+        mMpStreaming = streaming;
+        // Caching doesn't compete with player for network if current video is played from cached file.
+        mCachingLimiter.setRate(streaming?
+                                Policy.YTPLAYER_CACHING_RATE_INIT:
+                                RateLimiter.UNLIMITED);
+    }
+
+    /**
+     * Throughput of caching is adjusted by lead of buffered stream over playing position.
+     * Decreased multiplicatively and increased additively - like TCP congestion control.
+     * @param bufferedPercent
+     *   percent of current stream buffered by player. -1 if unknown.
+     */
+    private void
+    adjustCachingRate(int bufferedPercent) {
+        if (!mMpStreaming)
+            return;
+
+        long rate = mCachingLimiter.getRate();
+        boolean starving;
+        if (Utils.bitIsSet(mpGetStateFlag(), MPSTATE_FLAG_BUFFERING))
+            starving = true;
+        else if (bufferedPercent >= 100) {
+            // Whole stream is already buffered.
+            mCachingLimiter.setRate(RateLimiter.UNLIMITED);
+            return;
+        } else {
+            int dur = mpGetDuration();
+            if (bufferedPercent < 0
+                || dur <= 0)
+                return;
+            long lead = (long)dur * bufferedPercent / 100 - mpGetCurrentPosition();
+            if (lead > Policy.YTPLAYER_CACHING_LEAD_HIGH) {
+                mCachingLimiter.setRate(RateLimiter.UNLIMITED);
+                return;
+            }
+            starving = lead < Policy.YTPLAYER_CACHING_LEAD_LOW;
+        }
+
+        if (starving) {
+            if (RateLimiter.UNLIMITED == rate) {
+                // Start from half of estimated bandwidth.
+                long bps = BandwidthEstimator.get().getEstimate();
+                rate = bps > 0? bps / 8: Policy.YTPLAYER_CACHING_RATE_INIT * 2;
+            }
+            rate = Math.max(Policy.YTPLAYER_CACHING_RATE_MIN, rate / 2);
+        } else if (RateLimiter.UNLIMITED != rate)
+            rate += Policy.YTPLAYER_CACHING_RATE_STEP;
+        mCachingLimiter.setRate(rate);
+    }
+
     private void
     stopCaching(final String ytvid) {
         // If current downloading video is same with current active video
@@ -1262,16 +1991,44 @@ UnexpectedExceptionHandler.Evidence {
         if (!allClear) {
             // delete all cached videos except for
             //   current and next video.
+            LinkedList<File> keeps = new LinkedList<File>();
             for (Utils.PrefQuality pq : Utils.PrefQuality.values()) {
-                skipSet.add(new File(getCachedVideoFilePath(mVlm.getActiveVideo().ytvid, pq)).getAbsolutePath());
+                keeps.add(new File(getCachedVideoFilePath(mVlm.getActiveVideo().ytvid, pq)));
+                keeps.add(new File(getCachedAudioFilePath(mVlm.getActiveVideo().ytvid, pq)));
                 Video nextVid = mVlm.getNextVideo();
-                if (null != nextVid)
-                    skipSet.add(new File(getCachedVideoFilePath(nextVid.ytvid, pq)).getAbsolutePath());
+                if (null != nextVid) {
+                    keeps.add(new File(getCachedVideoFilePath(nextVid.ytvid, pq)));
+                    keeps.add(new File(getCachedAudioFilePath(nextVid.ytvid, pq)));
+                }
+            }
+            // Index record SHOULD be kept together. Otherwise, file is regarded as broken one.
+            for (File f : keeps) {
+                skipSet.add(f.getAbsolutePath());
+                skipSet.add(CacheIndex.getIndexFile(f).getAbsolutePath());
             }
         }
         FileUtils.removeFileRecursive(sCacheDir, skipSet);
     }
 
+    /**
+     * Is there any change among active video and videos to be prefetched?
+     */
+    private boolean
+    isNextVideosChanged(YTPlayerVideoListManager.ChangeType type, int from, int to) {
+        if (YTPlayerVideoListManager.ChangeType.RESET == type)
+            return true;
+        return Math.min(from, to) <= mVlm.getActiveVideoIndex() + Policy.YTPREFETCH_NR_NEXT;
+    }
+
+    private void
+    updatePrefetchTargets() {
+        Video[] vs = mVlm.getNextVideos(Policy.YTPREFETCH_NR_NEXT);
+        String[] ytvids = new String[vs.length];
+        for (int i = 0; i < vs.length; i++)
+            ytvids[i] = vs[i].ytvid;
+        mPrefetcher.setTargets(ytvids);
+    }
+
     private void
     prepareNext() {
         if (!mVlm.hasNextVideo()) {
@@ -1314,7 +2071,12 @@ UnexpectedExceptionHandler.Evidence {
 
     private void
     prepareVideoStreamingFromYtHack(YTHacker ythack) {
-        YTHacker.YtVideo ytv = ythack.getVideo(getVideoQualityScore(), false);
+        YTHacker.YtVideo ytv = null;
+        // Streaming audio-only is much cheaper if video is not shown.
+        if (!isVideoMode())
+            ytv = ythack.getAudio(getVideoQualityScore());
+        if (null == ytv)
+            ytv = ythack.getVideo(getStreamingQualityScore(), false);
         if (null == ytv) {
             // Video format is not supported...
             // Just skip it with toast!
@@ -1323,61 +2085,53 @@ UnexpectedExceptionHandler.Evidence {
             return;
         }
 
-        try {
-            mpSetDataSource(ytv.url);
-        } catch (IOException e) {
-            if (DBG) P.w("YTPlayer SetDataSource IOException : " + e.getMessage());
-            mStartVideoRecovery.executeRecoveryStart(mVlm.getActiveVideo(), 500);
-            return;
-        }
-
+        mpSetDataSource(ytv.url, new Runnable() {
+            @Override
+            public void
+            run() {
+                mStartVideoRecovery.executeRecoveryStart(mVlm.getActiveVideo());
+            }
+        });
         preparePlayerAsync();
     }
 
     private void
     prepareVideoStreaming(final String ytvid) {
         if (DBG) P.v("ytid : " + ytvid);
+        resetCachingRate(true);
 
         YTHacker hacker = RTState.get().getCachedYtHacker(ytvid);
-        if (null != hacker
-            && ytvid.equals(hacker.getYtvid())
-            && (System.currentTimeMillis() - hacker.getHackTimeStamp()) < Policy.YTHACK_REUSE_TIMEOUT) {
+        boolean hit = null != hacker
+                      && ytvid.equals(hacker.getYtvid())
+                      && !hacker.isHackExpired();
+        mStreamStats.onLookup(hit);
+        if (hit) {
             eAssert(hacker.hasHackedResult());
             // Let's try to reuse it.
             prepareVideoStreamingFromYtHack(hacker);
             return;
         }
 
-        if (null != mYtHack
-            && ytvid.equals(mYtHack.getYtvid())
-            && !mYtHack.hasHackedResult())
-            // hacking for this video is already on-going.
+        if (null != mYtResolveReq
+            && ytvid.equals(mYtResolveReq.getYtvid())
+            && !mYtResolveReq.isDone())
+            // resolving this video is already on-going.
             // this request is ignored.
             return;
 
-        YTHacker.YtHackListener listener = new YTHacker.YtHackListener() {
+        cancelResolving();
+        YTResolver.OnResolvedListener listener = new YTResolver.OnResolvedListener() {
             @Override
             public void
-            onPreHack(YTHacker ythack, String ytvid, Object user) {
-            }
-
-            @Override
-            public void
-            onPostHack(final YTHacker ythack, YTHacker.Err result, final NetLoader loader,
-                       String ytvid, Object user) {
-                if (mYtHack != ythack) {
+            onResolved(YTResolver.Request req, YTHacker ythack, YTHacker.Err result) {
+                if (mYtResolveReq != req) {
                     // Another try is already done.
                     // So, this response should be ignored.
-                    if (DBG) P.v("YTPlayer Old Youtube connection is finished. Ignored");
-                    loader.close();
+                    if (DBG) P.v("YTPlayer Old Youtube resolving is finished. Ignored");
                     return;
                 }
 
-                mYtHack = null;
-                if (null != mLoader)
-                    mLoader.close();
-                mLoader = loader;
-
+                mYtResolveReq = null;
                 if (YTHacker.Err.NO_ERR != result) {
                     if (DBG) P.w("YTPlayer YTHack Fails : " + result.name());
                     switch (result) {
@@ -1397,38 +2151,38 @@ UnexpectedExceptionHandler.Evidence {
 
                 prepareVideoStreamingFromYtHack(ythack);
             }
-
-            @Override
-            public void
-            onHackCancelled(YTHacker ythack, String ytvid, Object user) {
-                if (mYtHack != ythack) {
-                    if (DBG) P.v("Old Youtube connection is cancelled. Ignored");
-                    return;
-                }
-
-                mYtHack = null;
-            }
         };
-        mYtHack = new YTHacker(ytvid, null, listener);
-        mYtHack.startAsync();
+        // Request may be completed before 'mYtResolveReq' is set (ex. stream cache hit).
+        // But, listener is always called later at UI thread. So, it's safe.
+        mYtResolveReq = YTResolver.get().resolveAsync(ytvid, Utils.getUiHandler(), listener);
     }
 
     private void
-    prepareCachedVideo(File cachedVid) {
+    cancelResolving() {
+        if (null != mYtResolveReq)
+            YTResolver.get().cancel(mYtResolveReq);
+        mYtResolveReq = null;
+    }
+
+    private void
+    prepareCachedVideo(final File cachedVid) {
         if (DBG) P.v("video file path: " + cachedVid.getAbsolutePath());
+        resetCachingRate(false);
         // We have cached one.
         // So play in local!
-        try {
-            mpSetDataSource(cachedVid.getAbsolutePath());
-        } catch (IOException e) {
-            // Something wrong at cached file.
-            // Clean cache and try again - next time as streaming!
-            cleanCache(true);
-            if (DBG) P.w("YTPlayer SetDataSource to Cached File IOException : " + e.getMessage());
-            mStartVideoRecovery.executeRecoveryStart(mVlm.getActiveVideo());
-            return;
-        }
-
+        mpSetDataSource(cachedVid.getAbsolutePath(), new Runnable() {
+            @Override
+            public void
+            run() {
+                // Something wrong at cached file.
+                // Clean cache and try again - next time as streaming!
+                cleanCache(true);
+                // Cache cleaning doesn't touch offline store and warmed files.
+                OfflineStore.get().invalidate(cachedVid);
+                CacheWarmer.get().invalidate(cachedVid);
+                mStartVideoRecovery.executeRecoveryStart(mVlm.getActiveVideo());
+            }
+        });
         preparePlayerAsync();
     }
 
@@ -1472,22 +2226,26 @@ UnexpectedExceptionHandler.Evidence {
 
                 return;
             }
-        } else
+        } else {
             mErrRetry = PLAYER_ERR_RETRY;
+            mStartRequestTm = SystemClock.elapsedRealtime();
+        }
 
         // Stop if tts is playing
-        if (null != mYtHack)
-            mYtHack.forceCancel();
-        // Stop if player is already running.
-        mpStop();
-        mpRelease();
-        mpNewInstance();
-        mpReset();
-        mpSetVolume(volume);
+        cancelResolving();
+        // Media player prepared in advance is used if possible.
+        boolean nextPlayerUsed = !recovery && startNextPlayer(ytvid, volume);
+        if (!nextPlayerUsed) {
+            // Stop if player is already running.
+            mpRelease();
+            mpNewInstance();
+            mpReset();
+            mpSetVolume(volume);
+        }
 
         // Update DB at this moment.
         // It's not perfectly right moment but it's fair enough
-        new Thread(new Runnable() {
+        TaskExecutor.get().execute(TaskExecutor.Lane.BULK, new Runnable() {
             @Override
             public void
             run() {
@@ -1496,9 +2254,11 @@ UnexpectedExceptionHandler.Evidence {
                 // So, exception is ignored for this operation.
                 try {
                     mDb.updateVideoTimePlayed(ytvid, System.currentTimeMillis());
+                    // Play count is used to predict videos to be played. See CacheWarmer.
+                    mDb.increaseVideoPlayCount(ytvid);
                 } catch (Exception ignored) { }
             }
-        }).start();
+        });
 
         // NOTE
         // With early-caching, in case of first video - actually not-cached video,
@@ -1517,14 +2277,19 @@ UnexpectedExceptionHandler.Evidence {
         // So, in general, user doens't try to high-quality-video.
         //
         // Above two reasons, caching is started as soon as video is started.
+        // And throughput of caching is adjusted not to starve streaming. See adjustCachingRate().
         prepareNext();
+        updatePrefetchTargets();
+
+        if (nextPlayerUsed)
+            return;
 
         Runnable action = new Runnable() {
             @Override
             public void
             run() {
-                File cachedVid = getCachedVideo(ytvid);
-                if (cachedVid.exists() && cachedVid.canRead())
+                File cachedVid = getPlayableCachedFile(ytvid);
+                if (null != cachedVid)
                     prepareCachedVideo(cachedVid);
                 else {
                     if (!Utils.isNetworkAvailable())
@@ -1580,8 +2345,7 @@ UnexpectedExceptionHandler.Evidence {
     private void
     stopPlay(StopState st) {
         if (DBG) P.v("YTPlayer stopPlay : " + st.name());
-        if (null != mYtHack)
-            mYtHack.forceCancel();
+        cancelResolving();
         ttsStop();
 
         if (StopState.DONE == st
@@ -1599,7 +2363,7 @@ UnexpectedExceptionHandler.Evidence {
         // So, auto stop should be inactive here.
         mAutoStop.unset();
 
-        mpStop();
+        releaseNextPlayer();
         mpRelease();
         releaseLocks();
         mVlm.reset();
@@ -1658,6 +2422,76 @@ UnexpectedExceptionHandler.Evidence {
         }
     }
 
+    /**
+     * Position and volume of active video that can be used to resume playing later.
+     * @return
+     *   { position, volume }
+     */
+    private int[]
+    getResumePoint() {
+        eAssert(mVlm.hasActiveVideo());
+        switch(mpGetState()) {
+        case STARTED:
+        case PAUSED:
+        case PREPARED_AUDIO:
+        case PREPARED:
+            return new int[] { mpGetCurrentPosition(), mpGetVolume() };
+
+        default:
+            if (haveStoredPlayerState()
+                && mVlm.getActiveVideo() == mStoredPState.vidobj)
+                return new int[] { mStoredPState.pos, mStoredPState.vol };
+            return new int[] { mVlm.getActiveVideo().startpos, mVlm.getActiveVideo().volume };
+        }
+    }
+
+    private void
+    putSnapshotQueue(boolean fromStart) {
+        if (!mVlm.hasActiveVideo()) {
+            mSnapshot.clear();
+            return;
+        }
+        int[] rp = fromStart? new int[] { 0, mVlm.getActiveVideo().volume }: getResumePoint();
+        mSnapshot.putQueue(mVlm.getVideoList(), mVlm.getActiveVideoIndex(), rp[0], rp[1]);
+    }
+
+    private void
+    putSnapshotPosition() {
+        if (!mVlm.hasActiveVideo())
+            return;
+        int[] rp = getResumePoint();
+        if (!mSnapshot.putPosition(mVlm.getActiveVideoIndex(), rp[0], rp[1]))
+            putSnapshotQueue(false);
+    }
+
+    private void
+    putSnapshotChange(YTPlayerVideoListManager.ChangeType type, int from, int to) {
+        boolean appended;
+        switch (type) {
+        case RESET:
+            // New list is started from the beginning.
+            putSnapshotQueue(true);
+            return;
+
+        case INSERTED:
+            appended = mSnapshot.putInserted(mVlm.getVideoList(), from, to);
+            break;
+
+        case REMOVED:
+            appended = mSnapshot.putRemoved(from, to);
+            break;
+
+        default:
+            appended = false;
+        }
+
+        if (appended)
+            // Active video index may be changed.
+            putSnapshotPosition();
+        else
+            putSnapshotQueue(false);
+    }
+
     private void
     restorePlayerState() {
         if (!haveStoredPlayerState())
@@ -1752,6 +2586,7 @@ UnexpectedExceptionHandler.Evidence {
     public void
     onBufferingUpdate (MediaPlayer mp, int percent) {
         if (DBG) P.v("MPlayer - onBufferingUpdate : " + percent + " %");
+        adjustCachingRate(percent);
         // See comments around MEDIA_INFO_BUFFERING_START in onInfo()
         //mpSetState(MPState.BUFFERING);
         Iterator<PlayerStateListener> iter = mPStateLsnrl.iterator();
@@ -1798,6 +2633,15 @@ UnexpectedExceptionHandler.Evidence {
 
         if (autoStart)
             mpStart(); // auto start
+
+        if (MPState.STARTED == mpGetState()
+            && mStartRequestTm > 0) {
+            mStreamStats.onStarted(SystemClock.elapsedRealtime() - mStartRequestTm);
+            mStartRequestTm = 0;
+            if (DBG) P.v(mStreamStats.dump());
+        }
+
+        prepareNextPlayer();
     }
 
     @Override
@@ -1897,6 +2741,8 @@ UnexpectedExceptionHandler.Evidence {
 
         case MediaPlayer.MEDIA_INFO_BUFFERING_START:
             mpSetStateFlagBit(MPSTATE_FLAG_BUFFERING);
+            // Caching may steal bandwidth from player.
+            adjustCachingRate(-1);
             break;
 
         case MediaPlayer.MEDIA_INFO_BUFFERING_END:
@@ -1981,7 +2827,7 @@ UnexpectedExceptionHandler.Evidence {
         return mVlm.getActiveVideo();
     }
 
-    Video[]
+    PlayQueue
     getVideoList() {
         return mVlm.getVideoList();
     }
@@ -2017,8 +2863,7 @@ UnexpectedExceptionHandler.Evidence {
 
     void
     playerStop() {
-        if (null != mYtHack)
-            mYtHack.forceCancel();
+        cancelResolving();
         mpStop();
     }
 
@@ -2078,12 +2923,27 @@ UnexpectedExceptionHandler.Evidence {
     // ============================================================================
     private YTPlayer() {
         UnexpectedExceptionHandler.get().registerModule(this);
-        mVlm = new YTPlayerVideoListManager(new YTPlayerVideoListManager.OnListChangedListener() {
+        mVlm = new YTPlayerVideoListManager(new PlayQueue.Loader() {
+            @Override
+            public Video[]
+            load(long[] ids) {
+                return loadVideos(ids);
+            }
+        }, new YTPlayerVideoListManager.OnListChangedListener() {
             @Override
             public void
-            onChanged(YTPlayerVideoListManager vm) {
+            onChanged(YTPlayerVideoListManager vm,
+                      YTPlayerVideoListManager.ChangeType type,
+                      int from, int to) {
                 eAssert(Utils.isUiThread());
+                // Keep snapshot to resume playing after process is killed.
+                putSnapshotChange(type, from, to);
                 mUi.updateLDrawerList();
+                // Prefetch targets and next player depend only on videos right after active video.
+                if (isNextVideosChanged(type, from, to)) {
+                    updatePrefetchTargets();
+                    prepareNextPlayer();
+                }
                 Iterator<VideosStateListener> iter = mVStateLsnrl.iterator();
                 while (iter.hasNext())
                     iter.next().onChanged();
@@ -2101,7 +2961,12 @@ UnexpectedExceptionHandler.Evidence {
     @Override
     public String
     dump(UnexpectedExceptionHandler.DumpLevel lvl) {
-        return this.getClass().getName();
+        return this.getClass().getName() + "\n"
+               + mStreamStats.dump() + "\n"
+               + BandwidthEstimator.get().dump() + "\n"
+               + mEngine.dump() + "\n"
+               + mNextEngine.dump() + "\n"
+               + mCachingLimiter.dump();
     }
 
     public static YTPlayer
@@ -2311,6 +3176,17 @@ UnexpectedExceptionHandler.Evidence {
         startVideo(mVlm.getActiveVideo(), false);
     }
 
+    private void
+    startQueuedVideos() {
+        if (mVlm.moveToFist()) {
+            startVideo(mVlm.getActiveVideo(), false);
+            Iterator<VideosStateListener> iter = mVStateLsnrl.iterator();
+            while (iter.hasNext())
+                iter.next().onStarted();
+            mUi.setPlayerVisibility(View.VISIBLE);
+        }
+    }
+
     public void
     startVideos(final Video[] vs) {
         eAssert(Utils.isUiThread());
@@ -2323,44 +3199,116 @@ UnexpectedExceptionHandler.Evidence {
         // removes auto stop that is set before.
         mAutoStop.unset();
         mVlm.setVideoList(vs);
+        startQueuedVideos();
+    }
 
-        if (mVlm.moveToFist()) {
-            startVideo(mVlm.getActiveVideo(), false);
-            Iterator<VideosStateListener> iter = mVStateLsnrl.iterator();
-            while (iter.hasNext())
-                iter.next().onStarted();
-            mUi.setPlayerVisibility(View.VISIBLE);
-        }
+    private void
+    startVideos(long[] ids, String[] ytvids) {
+        eAssert(Utils.isUiThread());
+
+        if (ids.length <= 0)
+            return;
+
+        acquireLocks();
+        clearStoredPlayerState();
+        // removes auto stop that is set before.
+        mAutoStop.unset();
+        mVlm.setVideoList(ids, ytvids, null);
+        startQueuedVideos();
     }
 
+    /**
+     * Only ids of videos are read from cursor.
+     * Other information is loaded from DB when it is used.
+     * So, playing starts quickly regardless of number of videos.
+     * @param c
+     *   Videos are played in order of cursor if it's not shuffled.
+     */
     public void
     startVideos(final Cursor c,
+                final int coliId,
                 final int coliYtvid,
-                final int coliTitle,
-                final int coliAuthor,
-                final int coliVolume,
-                final int coliPlaytime,
                 final boolean shuffle) {
         eAssert(Utils.isUiThread());
 
-        new Thread(new Runnable() {
+        TaskExecutor.get().execute(TaskExecutor.Lane.PLAYBACK, new Runnable() {
             @Override
             public void
             run() {
-                final Video[] vs = getVideos(c,
-                                             coliYtvid, coliTitle, coliAuthor,
-                                             coliVolume, coliPlaytime,
-                                             shuffle);
+                final long[] ids = new long[c.getCount()];
+                final String[] ytvids = new String[ids.length];
+                int i = 0;
+                if (c.moveToFirst()) {
+                    do {
+                        ids[i] = c.getLong(coliId);
+                        ytvids[i] = c.getString(coliYtvid);
+                        i++;
+                    } while (c.moveToNext());
+                }
+                c.close();
+
+                if (shuffle)
+                    shuffleVideos(ids, ytvids);
+
                 Utils.getUiHandler().post(new Runnable() {
                     @Override
                     public void
                     run() {
-                        startVideos(vs);
+                        startVideos(ids, ytvids);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Resume play queue and position of last session - ex. process was killed while playing.
+     * Player is prepared in paused state at last position.
+     * Nothing happens if player already has videos to play.
+     */
+    public void
+    resumeLastSession() {
+        eAssert(Utils.isUiThread());
+        if (mVlm.hasActiveVideo())
+            return;
+
+        TaskExecutor.get().execute(TaskExecutor.Lane.PLAYBACK, new Runnable() {
+            @Override
+            public void
+            run() {
+                final PlayQueueSnapshot.State st = mSnapshot.load();
+                if (null == st)
+                    return;
+
+                Utils.getUiHandler().post(new Runnable() {
+                    @Override
+                    public void
+                    run() {
+                        // User may start another videos in the meantime.
+                        if (mVlm.hasActiveVideo())
+                            return;
+
+                        mAutoStop.unset();
+                        mVlm.setVideoList(st.ids, st.ytvids, st.vs);
+                        if (!mVlm.moveTo(st.index))
+                            return;
+
+                        mStoredPState = new PlayerState();
+                        mStoredPState.mpState = MPState.PAUSED;
+                        mStoredPState.vidobj = mVlm.getActiveVideo();
+                        mStoredPState.pos = st.pos;
+                        mStoredPState.vol = st.vol;
+                        putSnapshotPosition();
+
+                        startVideo(mVlm.getActiveVideo(), false);
+                        Iterator<VideosStateListener> iter = mVStateLsnrl.iterator();
+                        while (iter.hasNext())
+                            iter.next().onStarted();
+                        mUi.setPlayerVisibility(View.VISIBLE);
                     }
                 });
-                c.close();
             }
-        }).start();
+        });
     }
 
     public void
@@ -1026,12 +1026,8 @@ OnSharedPreferenceChangeListener {
                     if (null == mPlayerLDrawer)
                         return;
 
-                    if (mMp.hasActiveVideo()) {
-                        ListView lv = (ListView)mPlayerLDrawer.findViewById(R.id.mplayer_list);
-                        YTPlayerVideoListAdapter adapter = (YTPlayerVideoListAdapter)lv.getAdapter();
-                        if (null != adapter)
-                            adapter.setVidArray(mMp.getVideoList());
-                    } else
+                    // List itself is already updated at updateLDrawerList().
+                    if (!mMp.hasActiveVideo())
                         pvDisableLDrawer(mPlayerLDrawer);
                 }
             });
@@ -1251,12 +1247,16 @@ OnSharedPreferenceChangeListener {
             return;
 
         ListView lv = (ListView)mPlayerLDrawer.findViewById(R.id.mplayer_list);
-        YTPlayer.Video[] vs =  mMp.getVideoList();
-        if (null == vs)
-            vs = new YTPlayer.Video[0];
-        YTPlayerVideoListAdapter adapter = new YTPlayerVideoListAdapter(mVActivity, vs);
-        adapter.setActiveItem(mMp.getActiveVideoIndex());
-        lv.setAdapter(adapter);
+        YTPlayerVideoListAdapter adapter = (YTPlayerVideoListAdapter)lv.getAdapter();
+        // Adapter shows live view of player's list. So, re-creating adapter is not required.
+        if (null == adapter) {
+            adapter = new YTPlayerVideoListAdapter(mVActivity, mMp.getVideoList());
+            adapter.setActiveItem(mMp.getActiveVideoIndex());
+            lv.setAdapter(adapter);
+        } else {
+            adapter.setActiveItem(mMp.getActiveVideoIndex());
+            adapter.notifyDataSetChanged();
+        }
     }
 
     void
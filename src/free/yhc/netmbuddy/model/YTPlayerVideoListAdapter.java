@@ -42,7 +42,7 @@ public class YTPlayerVideoListAdapter extends BaseAdapter {
     private final Context mContext;
     private final HashMap<View, Integer>    mView2PosMap = new HashMap<View, Integer>();
 
-    private YTPlayer.Video[]    mVs;
+    private final PlayQueue     mQ;
     private int                 mActivePos = -1;
 
     private void
@@ -57,11 +57,16 @@ public class YTPlayerVideoListAdapter extends BaseAdapter {
         tv.setTextColor(mInactiveTextColor);
     }
 
-    YTPlayerVideoListAdapter(Context context, YTPlayer.Video[] vs) {
+    /**
+     * @param q
+     *   Live view of player's video list.
+     *   notifyDataSetChanged() should be called whenever it is changed.
+     */
+    YTPlayerVideoListAdapter(Context context, PlayQueue q) {
         super();
-        eAssert(null != vs);
+        eAssert(null != q);
         mContext = context;
-        mVs = vs;
+        mQ = q;
         mActiveTextColor = context.getResources().getColor(R.color.title_text_color_new);
         mInactiveTextColor = context.getResources().getColor(R.color.desc_text_color);
     }
@@ -86,22 +91,16 @@ public class YTPlayerVideoListAdapter extends BaseAdapter {
         return mActivePos;
     }
 
-    void
-    setVidArray(YTPlayer.Video[] vs) {
-        eAssert(null != vs);
-        mVs = vs;
-    }
-
     @Override
     public int
     getCount() {
-        return mVs.length;
+        return mQ.size();
     }
 
     @Override
     public Object
     getItem(int position) {
-        return mVs[position];
+        return mQ.get(position);
     }
 
     @Override
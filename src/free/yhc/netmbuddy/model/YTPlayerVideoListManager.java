@@ -22,8 +22,6 @@ package free.yhc.netmbuddy.model;
 
 import static free.yhc.netmbuddy.utils.Utils.eAssert;
 
-import java.util.ArrayList;
-
 import free.yhc.netmbuddy.utils.Utils;
 
 class YTPlayerVideoListManager {
@@ -31,18 +29,28 @@ class YTPlayerVideoListManager {
     private static final Utils.Logger P = new Utils.Logger(YTPlayerVideoListManager.class);
 
     // NOTE!
-    // mVs is accessed on by UIThread.
+    // mQ is accessed on by UIThread.
     // So, synchronization is not required.
-    private final Object        mVsLock = new Object();
-    private YTPlayer.Video[]    mVs = null; // video array
+    // mQ is never replaced. So, it can be used as live view of video list.
+    private final PlayQueue     mQ;
     private int                 mVi = -1;   // video index
     private OnListChangedListener   mListener = null;
 
+    enum ChangeType {
+        RESET,      // whole list is changed. [from, to) is [0, size)
+        INSERTED,   // videos are inserted at [from, to)
+        REMOVED,    // videos at [from, to) - indexes before removal - are removed.
+    }
+
     interface OnListChangedListener {
-        void onChanged(YTPlayerVideoListManager vm);
+        /**
+         * Called after list and active video index are updated.
+         */
+        void onChanged(YTPlayerVideoListManager vm, ChangeType type, int from, int to);
     }
 
-    YTPlayerVideoListManager(OnListChangedListener listener) {
+    YTPlayerVideoListManager(PlayQueue.Loader loader, OnListChangedListener listener) {
+        mQ = new PlayQueue(loader);
         mListener = listener;
     }
 
@@ -59,15 +67,15 @@ class YTPlayerVideoListManager {
     }
 
     void
-    notifyToListChangedListener() {
+    notifyToListChangedListener(ChangeType type, int from, int to) {
         if (null != mListener)
-            mListener.onChanged(this);
+            mListener.onChanged(this, type, from, to);
     }
 
     int
     size() {
         eAssert(Utils.isUiThread());
-        return mVs.length;
+        return mQ.size();
     }
 
     boolean
@@ -80,7 +88,7 @@ class YTPlayerVideoListManager {
     hasNextVideo() {
         eAssert(Utils.isUiThread());
         return hasActiveVideo()
-               && mVi < (mVs.length - 1);
+               && mVi < (mQ.size() - 1);
     }
 
     boolean
@@ -91,68 +99,98 @@ class YTPlayerVideoListManager {
 
     boolean
     isValidVideoIndex(int i) {
-        return 0 <= i && i < mVs.length;
+        return 0 <= i && i < mQ.size();
     }
 
     void
     reset() {
         eAssert(Utils.isUiThread());
-        mVs = null;
+        mQ.clear();
         mVi = -1;
-        notifyToListChangedListener();
+        notifyToListChangedListener(ChangeType.RESET, 0, 0);
     }
 
     void
     setVideoList(YTPlayer.Video[] vs) {
         eAssert(Utils.isUiThread());
-        mVs = vs;
-        if (null == mVs || 0 >= mVs.length)
+        if (null == vs || 0 >= vs.length) {
             reset();
-        else if(mVs.length > 0)
-            mVi = 0;
-        notifyToListChangedListener();
+            return;
+        }
+        mQ.clear();
+        mQ.append(vs);
+        mVi = 0;
+        notifyToListChangedListener(ChangeType.RESET, 0, mQ.size());
     }
 
-    YTPlayer.Video[]
+    /**
+     * Videos are loaded from DB when they are used.
+     * See PlayQueue.
+     * @param ids
+     *   DB ids of videos
+     * @param ytvids
+     *   ytvids of videos
+     * @param vs
+     *   See PlayQueue.insert()
+     */
+    void
+    setVideoList(long[] ids, String[] ytvids, YTPlayer.Video[] vs) {
+        eAssert(Utils.isUiThread());
+        if (0 >= ids.length) {
+            reset();
+            return;
+        }
+        mQ.clear();
+        mQ.insert(0, ids, ytvids, vs);
+        mVi = 0;
+        notifyToListChangedListener(ChangeType.RESET, 0, mQ.size());
+    }
+
+    /**
+     * @return
+     *   Live view of video list. This SHOULD NOT be modified by caller.
+     */
+    PlayQueue
     getVideoList() {
         eAssert(Utils.isUiThread());
-        return mVs;
+        return mQ;
     }
 
     void
     appendVideo(YTPlayer.Video vids[]) {
         eAssert(Utils.isUiThread());
-        YTPlayer.Video[] newvs = new YTPlayer.Video[mVs.length + vids.length];
-        System.arraycopy(mVs, 0, newvs, 0, mVs.length);
-        System.arraycopy(vids, 0, newvs, mVs.length, vids.length);
-        mVs = newvs;
-        notifyToListChangedListener();
+        if (0 == vids.length)
+            return;
+        int from = mQ.size();
+        mQ.append(vids);
+        notifyToListChangedListener(ChangeType.INSERTED, from, mQ.size());
     }
 
-    /**
-     *
-     * @param index
-     * @return
-     *   false if -1 == mVi after removing. Otherwise true.
-     */
     void
     removeVideo(String ytvid) {
         eAssert(Utils.isUiThread());
-        if (null == mVs)
-            return;
-
-        ArrayList<YTPlayer.Video> al = new ArrayList<YTPlayer.Video>(mVs.length);
-        int adjust = 0;
-        for (int i = 0; i < mVs.length; i++) {
-            if (!mVs[i].ytvid.equals(ytvid))
-                al.add(mVs[i]);
-            else if (i <= mVi)
-                adjust++;
+        int[] idxs = mQ.indexesOf(ytvid);
+        // Remove from the last one to keep indexes of others.
+        // Continuous indexes are notified as one range.
+        int end = idxs.length;
+        while (end > 0) {
+            int start = end - 1;
+            while (start > 0
+                   && idxs[start - 1] == idxs[start] - 1)
+                start--;
+            int from = idxs[start];
+            int to = idxs[end - 1] + 1;
+            for (int i = to - 1; i >= from; i--)
+                mQ.remove(i);
+            // Removed videos at or before active video are counted.
+            if (mVi >= to)
+                mVi -= to - from;
+            else if (mVi >= from)
+                mVi = from - 1;
+            end = start;
+            notifyToListChangedListener(ChangeType.REMOVED, from, to);
         }
-        mVs = al.toArray(new YTPlayer.Video[0]);
-        mVi = mVi - adjust;
-        eAssert(mVi >= 0 || mVi <= mVs.length);
-        notifyToListChangedListener();
+        eAssert(mVi >= 0 || mVi <= mQ.size());
     }
 
     int
@@ -168,19 +206,14 @@ class YTPlayerVideoListManager {
      */
     int
     findVideoExcept(int from, String ytvid) {
-        eAssert(from >= 0 && from <= mVs.length);
-        for (int i = from; i < mVs.length; i++) {
-            if (!ytvid.equals(mVs[i].ytvid))
-                return i;
-        }
-        return -1;
+        return mQ.indexOfExcept(from, ytvid);
     }
 
     YTPlayer.Video
     getActiveVideo() {
         eAssert(Utils.isUiThread());
-        if (null != mVs && 0 <= mVi && mVi < mVs.length)
-            return mVs[mVi];
+        if (0 <= mVi && mVi < mQ.size())
+            return mQ.get(mVi);
         return null;
     }
 
@@ -189,13 +222,27 @@ class YTPlayerVideoListManager {
         eAssert(Utils.isUiThread());
         if (!hasNextVideo())
             return null;
-        return mVs[mVi + 1];
+        return mQ.get(mVi + 1);
+    }
+
+    /**
+     * @param nr
+     *   maximum number of videos to get.
+     * @return
+     *   videos following active video. Empty array if there is no next video.
+     */
+    YTPlayer.Video[]
+    getNextVideos(int nr) {
+        eAssert(Utils.isUiThread());
+        if (!hasNextVideo())
+            return new YTPlayer.Video[0];
+        return mQ.toArray(mVi + 1, nr);
     }
 
     boolean
     moveTo(int index) {
         eAssert(Utils.isUiThread());
-        if (index < 0 || index >= mVs.length)
+        if (index < 0 || index >= mQ.size())
             return false;
         mVi = index;
         return true;
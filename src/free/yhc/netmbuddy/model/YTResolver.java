@@ -0,0 +1,302 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+package free.yhc.netmbuddy.model;
+
+import static free.yhc.netmbuddy.utils.Utils.eAssert;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.os.Handler;
+import free.yhc.netmbuddy.utils.Utils;
+
+// Resolving youtube streams shared by all modules (player, downloader, prefetcher etc).
+//
+// Concurrent requests for same video are collapsed into one hacking operation.
+// And all requesters get same result.
+// Successful result is stored at stream cache of RTState by YTHacker.
+//
+// NOTE
+// NetLoader of hacked object is closed as soon as hacking is done.
+// So, user SHOULD use it's own NetLoader to access stream url.
+public class YTResolver {
+    private static final boolean DBG = false;
+    private static final Utils.Logger P = new Utils.Logger(YTResolver.class);
+
+    private static YTResolver sInstance = null;
+
+    // Key : ytvid
+    private final HashMap<String, Flight> mFlights = new HashMap<String, Flight>();
+
+    public interface OnResolvedListener {
+        /**
+         * NOT called if request is cancelled.
+         * @param hack
+         *   successfully hacked object. null if fails.
+         */
+        void onResolved(Request req, YTHacker hack, YTHacker.Err err);
+    }
+
+    public static class Request {
+        private final String                _mYtvid;
+        private final Handler               _mOwner;
+        private final OnResolvedListener    _mListener;
+
+        private boolean     _mDone      = false;
+        private boolean     _mCancelled = false;
+        private YTHacker    _mHack      = null;
+        private YTHacker.Err _mErr      = YTHacker.Err.UNKNOWN;
+
+        Request(String ytvid, Handler owner, OnResolvedListener listener) {
+            _mYtvid = ytvid;
+            _mOwner = owner;
+            _mListener = listener;
+        }
+
+        private void
+        notifyListener() {
+            if (null == _mListener)
+                return;
+
+            Runnable r = new Runnable() {
+                @Override
+                public void
+                run() {
+                    boolean cancelled;
+                    synchronized (Request.this) {
+                        cancelled = _mCancelled;
+                    }
+                    if (!cancelled)
+                        _mListener.onResolved(Request.this, _mHack, _mErr);
+                }
+            };
+
+            if (null == _mOwner)
+                r.run();
+            else
+                _mOwner.post(r);
+        }
+
+        void
+        complete(YTHacker hack, YTHacker.Err err, boolean cancelled) {
+            synchronized (this) {
+                if (_mDone)
+                    return;
+                _mDone = true;
+                _mCancelled = cancelled;
+                _mHack = YTHacker.Err.NO_ERR == err? hack: null;
+                _mErr = err;
+                notifyAll();
+            }
+            if (!cancelled)
+                notifyListener();
+        }
+
+        public String
+        getYtvid() {
+            return _mYtvid;
+        }
+
+        public synchronized boolean
+        isDone() {
+            return _mDone;
+        }
+
+        /**
+         * Block until request is done or cancelled.
+         * This SHOULD NOT be called at UI thread.
+         * @return
+         *   Err.NO_ERR if successfully resolved.
+         */
+        public YTHacker.Err
+        waitDone() throws InterruptedException {
+            eAssert(!Utils.isUiThread());
+            synchronized (this) {
+                while (!_mDone)
+                    wait();
+                return _mErr;
+            }
+        }
+
+        /**
+         * @return
+         *   Successfully hacked object. Otherwise null.
+         */
+        public synchronized YTHacker
+        getHack() {
+            return _mHack;
+        }
+    }
+
+    private class Flight implements Runnable {
+        final String                _mYtvid;
+        final LinkedList<Request>   _mReqs = new LinkedList<Request>();
+        // Below are protected by mFlights.
+        // Lane that flight is submitted to.
+        TaskExecutor.Lane           _mLane;
+        // Highest class among requests joined before flight starts.
+        NetAdmission.TrafficClass   _mClass;
+        // Created when flight starts. So, null means 'not started yet'.
+        YTHacker                    _mHack = null;
+        boolean                     _mCancelled = false;
+
+        Flight(String ytvid, TaskExecutor.Lane lane, NetAdmission.TrafficClass tclass) {
+            _mYtvid = ytvid;
+            _mLane = lane;
+            _mClass = tclass;
+        }
+
+        @Override
+        public void
+        run() {
+            YTHacker hack;
+            synchronized (mFlights) {
+                // All requests are already completed by cancel().
+                if (_mCancelled)
+                    return;
+                hack = _mHack = new YTHacker(_mYtvid, null, null, _mClass);
+            }
+            YTHacker.Err err = hack.start();
+            // Connection used to hack is not shared with requesters.
+            hack.getNetLoader().close();
+            onFlightDone(this, err);
+        }
+    }
+
+    private void
+    onFlightDone(Flight f, YTHacker.Err err) {
+        Request[] reqs;
+        synchronized (mFlights) {
+            if (mFlights.get(f._mYtvid) == f)
+                mFlights.remove(f._mYtvid);
+            reqs = f._mReqs.toArray(new Request[0]);
+            f._mReqs.clear();
+        }
+        if (DBG) P.v("Resolved : " + f._mYtvid + " (" + err.name() + ") for " + reqs.length + " requests");
+        for (Request r : reqs)
+            r.complete(f._mHack, err, false);
+    }
+
+    private YTResolver() {
+    }
+
+    public static synchronized YTResolver
+    get() {
+        if (null == sInstance)
+            sInstance = new YTResolver();
+        return sInstance;
+    }
+
+    /**
+     * Thread safe.
+     * @param ytvid
+     * @param owner
+     *   Listener is called on this handler's context.
+     *   If null, listener is called at the thread that resolves video.
+     * @param listener
+     *   can be null. Use {@link Request#waitDone()} in this case.
+     * @param lane
+     *   Lane of TaskExecutor where video is resolved.
+     *   If flight of PREFETCH lane is joined by PLAYBACK request before it is started,
+     *     it is moved to PLAYBACK lane.
+     * @param tclass
+     *   Traffic class of requester. Web page is loaded with the highest class
+     *     among requests joined before flight starts.
+     */
+    public Request
+    resolveAsync(String ytvid, Handler owner, OnResolvedListener listener,
+                 TaskExecutor.Lane lane, NetAdmission.TrafficClass tclass) {
+        Request req = new Request(ytvid, owner, listener);
+        YTHacker cached = RTState.get().getCachedYtHacker(ytvid);
+        if (null != cached
+            && !cached.isHackExpired()) {
+            req.complete(cached, YTHacker.Err.NO_ERR, false);
+            return req;
+        }
+
+        synchronized (mFlights) {
+            Flight f = mFlights.get(ytvid);
+            if (null == f) {
+                f = new Flight(ytvid, lane, tclass);
+                mFlights.put(ytvid, f);
+                TaskExecutor.get().execute(lane, f);
+            } else if (null == f._mHack) {
+                // Not started yet. Request of higher priority SHOULD NOT wait behind lower one.
+                if (tclass.ordinal() < f._mClass.ordinal())
+                    f._mClass = tclass;
+                if (lane.ordinal() < f._mLane.ordinal()
+                    && TaskExecutor.get().remove(f._mLane, f)) {
+                    f._mLane = lane;
+                    TaskExecutor.get().execute(lane, f);
+                }
+            }
+            f._mReqs.addLast(req);
+        }
+        return req;
+    }
+
+    /**
+     * Resolved at PLAYBACK lane with PLAYBACK traffic class.
+     * See {@link #resolveAsync(String, Handler, OnResolvedListener, TaskExecutor.Lane, NetAdmission.TrafficClass)}.
+     */
+    public Request
+    resolveAsync(String ytvid, Handler owner, OnResolvedListener listener) {
+        return resolveAsync(ytvid, owner, listener,
+                            TaskExecutor.Lane.PLAYBACK, NetAdmission.TrafficClass.PLAYBACK);
+    }
+
+    /**
+     * Thread safe.
+     * Hacking operation is cancelled only if there is no more request waiting for it.
+     */
+    public void
+    cancel(Request req) {
+        if (null == req)
+            return;
+
+        YTHacker cancelh = null;
+        synchronized (mFlights) {
+            Flight f = mFlights.get(req.getYtvid());
+            if (null != f) {
+                Iterator<Request> iter = f._mReqs.iterator();
+                while (iter.hasNext()) {
+                    if (iter.next() == req)
+                        iter.remove();
+                }
+                if (f._mReqs.isEmpty()) {
+                    mFlights.remove(req.getYtvid());
+                    // Flight that is not started yet, is just dropped.
+                    if (!TaskExecutor.get().remove(f._mLane, f)) {
+                        f._mCancelled = true;
+                        cancelh = f._mHack;
+                    }
+                }
+            }
+        }
+        req.complete(null, YTHacker.Err.INTERRUPTED, true);
+
+        if (null != cancelh) {
+            if (DBG) P.v("Cancel hacking : " + req.getYtvid());
+            cancelh.forceCancel();
+        }
+    }
+}
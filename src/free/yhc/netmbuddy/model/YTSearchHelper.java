@@ -50,6 +50,11 @@ public class YTSearchHelper {
     private static final int MSG_WHAT_CLOSE                 = 1;
     private static final int MSG_WHAT_SEARCH                = 2;
     private static final int MSG_WHAT_LOAD_THUMBNAIL        = 3;
+    private static final int MSG_WHAT_PRIORITIZE_THUMBNAIL  = 4;
+    private static final int MSG_WHAT_CANCEL_THUMBNAIL      = 5;
+
+    // Priority of thumbnails that are shown to user.
+    private static final int PRIORITY_VISIBLE_THUMBNAIL     = MultiThreadRunner.PRIORITY_NORM + 1;
 
     private BGHandler                   mBgHandler      = null;
     private SearchDoneReceiver          mSearchRcvr     = null;
@@ -107,12 +112,20 @@ public class YTSearchHelper {
         public String   url;
         public int      width;
         public int      height;
+        public NetAdmission.TrafficClass tclass;
         public LoadThumbnailArg(Object aTag, String aUrl,
-                                int aWidth, int aHeight) {
+                                int aWidth, int aHeight,
+                                NetAdmission.TrafficClass aTclass) {
             tag = aTag;
             url = aUrl;
             width = aWidth;
             height = aHeight;
+            tclass = aTclass;
+        }
+
+        public LoadThumbnailArg(Object aTag, String aUrl,
+                                int aWidth, int aHeight) {
+            this(aTag, aUrl, aWidth, aHeight, NetAdmission.TrafficClass.THUMBNAIL);
         }
     }
 
@@ -227,6 +240,8 @@ public class YTSearchHelper {
             removeMessages(MSG_WHAT_OPEN);
             removeMessages(MSG_WHAT_SEARCH);
             removeMessages(MSG_WHAT_LOAD_THUMBNAIL);
+            removeMessages(MSG_WHAT_PRIORITIZE_THUMBNAIL);
+            removeMessages(MSG_WHAT_CANCEL_THUMBNAIL);
             _mSearchRcvr = null;
             _mThumbnailRcvr = null;
             if (interrupt) {
@@ -257,8 +272,10 @@ public class YTSearchHelper {
             switch (msg.what) {
             case MSG_WHAT_OPEN: {
                 eAssert(null == _mMtrunner);
+                // User is waiting thumbnails of search page.
                 _mMtrunner = new MultiThreadRunner(this,
-                                                   Policy.YTSEARCH_MAX_LOAD_THUMBNAIL_THREAD);
+                                                   Policy.YTSEARCH_MAX_LOAD_THUMBNAIL_THREAD,
+                                                   TaskExecutor.Lane.UI);
             } break;
 
             case MSG_WHAT_CLOSE: {
@@ -275,7 +292,7 @@ public class YTSearchHelper {
             case MSG_WHAT_LOAD_THUMBNAIL: {
                 final LoadThumbnailArg arg = (LoadThumbnailArg)msg.obj;
                 MultiThreadRunner.Job<Integer> job
-                    = new MultiThreadRunner.Job<Integer>(true, 0) {
+                    = new MultiThreadRunner.Job<Integer>(arg.tag, MultiThreadRunner.PRIORITY_NORM, true, 0) {
                     @Override
                     public Integer
                     doJob() {
@@ -293,6 +310,15 @@ public class YTSearchHelper {
                 };
                 _mMtrunner.appendJob(job);
             } break;
+
+            case MSG_WHAT_PRIORITIZE_THUMBNAIL: {
+                // Visible thumbnails are loaded in order of request.
+                _mMtrunner.setJobPriority(msg.obj, PRIORITY_VISIBLE_THUMBNAIL);
+            } break;
+
+            case MSG_WHAT_CANCEL_THUMBNAIL: {
+                _mMtrunner.cancelJobs(msg.obj);
+            } break;
             }
         }
     }
@@ -333,7 +359,7 @@ public class YTSearchHelper {
     doLoadThumbnail(LoadThumbnailArg arg) {
         Bitmap bm;
         try {
-            bm = ImageUtils.decodeImage(loadUrl(arg.url), arg.width, arg.height);
+            bm = ImageUtils.decodeImage(loadUrl(arg.url, false, arg.tclass), arg.width, arg.height);
         } catch (NetLoader.LocalException e) {
             eAssert(NetLoader.Err.NO_ERR != e.error());
             return new LoadThumbnailReturn(null, map(e.error(), e.extra()));
@@ -343,19 +369,33 @@ public class YTSearchHelper {
         return new LoadThumbnailReturn(bm, Err.NO_ERR);
     }
 
+    /**
+     * @param cache
+     *   use http cache. Feeds are cached. But, thumbnails are not.
+     */
     private static byte[]
-    loadUrl(String urlStr) throws NetLoader.LocalException, IOException {
+    loadUrl(String urlStr, boolean cache, NetAdmission.TrafficClass tclass)
+            throws NetLoader.LocalException, IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         Uri uri = Uri.parse(urlStr);
-        NetLoader loader = new NetLoader().open(null);
-        loader.readHttpData(baos, uri);
-        loader.close();
+        NetLoader loader = new NetLoader(tclass).open(null);
+        try {
+            loader.readHttpData(baos, uri, cache);
+        } finally {
+            // Permit of request SHOULD be returned even if reading fails.
+            loader.close();
+        }
 
         byte[] data = baos.toByteArray();
         baos.close();
         return data;
     }
 
+    private static byte[]
+    loadFeed(String urlStr) throws NetLoader.LocalException, IOException {
+        return loadUrl(urlStr, true, NetAdmission.TrafficClass.SEARCH);
+    }
+
     private static YTFeed.Result
     parse(byte[] xmlData, FeedType type) throws
         IOException, SAXException, ParserConfigurationException {
@@ -382,22 +422,22 @@ public class YTSearchHelper {
         try {
             switch (arg.type) {
             case VID_KEYWORD:
-                r = parse(loadUrl(YTVideoFeed.getFeedUrlByKeyword(arg.text, arg.starti, arg.max)),
+                r = parse(loadFeed(YTVideoFeed.getFeedUrlByKeyword(arg.text, arg.starti, arg.max)),
                           FeedType.VIDEO);
                 break;
 
             case VID_AUTHOR:
-                r = parse(loadUrl(YTVideoFeed.getFeedUrlByAuthor(arg.text, arg.starti, arg.max)),
+                r = parse(loadFeed(YTVideoFeed.getFeedUrlByAuthor(arg.text, arg.starti, arg.max)),
                           FeedType.VIDEO);
                 break;
 
             case VID_PLAYLIST:
-                r = parse(loadUrl(YTVideoFeed.getFeedUrlByPlaylist(arg.text, arg.starti, arg.max)),
+                r = parse(loadFeed(YTVideoFeed.getFeedUrlByPlaylist(arg.text, arg.starti, arg.max)),
                           FeedType.VIDEO);
                 break;
 
             case PL_USER:
-                r = parse(loadUrl(YTPlaylistFeed.getFeedUrlByUser(arg.text, arg.starti, arg.max)),
+                r = parse(loadFeed(YTPlaylistFeed.getFeedUrlByUser(arg.text, arg.starti, arg.max)),
                           FeedType.PLAYLIST);
                 break;
 
@@ -474,6 +514,36 @@ public class YTSearchHelper {
         mBgHandler.sendMessage(msg);
     }
 
+    /**
+     * Thumbnail of given tag is loaded before other pending thumbnails.
+     * ex. thumbnail of item that is just shown to user.
+     * @param tag
+     *   tag of LoadThumbnailArg.
+     */
+    public void
+    prioritizeThumbnailAsync(Object tag) {
+        if (null == mBgHandler)
+            return;
+
+        Message msg = mBgHandler.obtainMessage(MSG_WHAT_PRIORITIZE_THUMBNAIL, tag);
+        mBgHandler.sendMessage(msg);
+    }
+
+    /**
+     * Loading thumbnail of given tag is cancelled. ex. item is scrolled off screen.
+     * Receiver is called with error only if loading is already started.
+     * @param tag
+     *   tag of LoadThumbnailArg.
+     */
+    public void
+    cancelThumbnailAsync(Object tag) {
+        if (null == mBgHandler)
+            return;
+
+        Message msg = mBgHandler.obtainMessage(MSG_WHAT_CANCEL_THUMBNAIL, tag);
+        mBgHandler.sendMessage(msg);
+    }
+
     public Err
     searchAsync(SearchArg arg) {
         eAssert(0 < arg.starti && 0 < arg.max && arg.max <= Policy.YTSEARCH_MAX_RESULTS);
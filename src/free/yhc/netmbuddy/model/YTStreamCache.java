@@ -0,0 +1,406 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+package free.yhc.netmbuddy.model;
+
+import static free.yhc.netmbuddy.utils.Utils.eAssert;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import free.yhc.netmbuddy.utils.Utils;
+
+// Persistent cache of resolved youtube stream maps.
+//
+// Only small records (itag, url, mime type) are kept - NOT whole YTHacker objects.
+// This survives process restarts. So, first video after cold start may skip
+//   fetching youtube watch page.
+// NOTE
+// Cache directory(Policy.APPDATA_CACHEDIR) is cleared at every app start.
+// So, cache file is stored at application data directory.
+class YTStreamCache {
+    private static final boolean DBG = false;
+    private static final Utils.Logger P = new Utils.Logger(YTStreamCache.class);
+
+    private static final int    FILE_MAGIC      = 0x59545343; // 'YTSC'
+    private static final int    FILE_VERSION    = 1;
+
+    // Save is delayed to merge several updates into one file write.
+    private static final long   SAVE_DELAY      = 3000; // 3 seconds
+
+    private final File      mFile;
+    private final int       mMaxEntries;
+    private final long      mMaxBytes;
+    // Access-ordered map. So, eldest entry is least recently used one.
+    private final LinkedHashMap<String, Entry> mMap
+        = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long            mBytes      = 0;
+    // Cache file is read only at background. Until it is loaded, cache just misses.
+    private boolean         mLoadStarted= false;
+    private boolean         mLoaded     = false;
+    // Entries removed before cache file is loaded. Loaded ones of them are stale.
+    private final HashSet<String> mRemovedBeforeLoad = new HashSet<String>();
+    private boolean         mSavePending= false;
+    // Saves may run at the same time at different threads of BULK lane.
+    // They SHOULD NOT write same temp file concurrently.
+    private final Object    mSaveLock   = new Object();
+
+    private final Runnable  mSaveRunnable = new Runnable() {
+        @Override
+        public void
+        run() {
+            TaskExecutor.get().execute(TaskExecutor.Lane.BULK, new Runnable() {
+                @Override
+                public void
+                run() {
+                    save();
+                }
+            });
+        }
+    };
+
+    static class Stream {
+        final String    tag;
+        final String    url;
+        final String    type;
+        Stream(String aTag, String aUrl, String aType) {
+            tag = aTag;
+            url = aUrl;
+            type = aType;
+        }
+    }
+
+    static class Entry {
+        final String    ytvid;
+        final long      tmstamp;    // time when stream map is resolved (ms).
+        final long      expire;     // absolute time(ms) that stream urls are expired.
+        final Stream[]  streams;
+        Entry(String aYtvid, long aTmstamp, long aExpire, Stream[] aStreams) {
+            ytvid = aYtvid;
+            tmstamp = aTmstamp;
+            expire = aExpire;
+            streams = aStreams;
+        }
+
+        boolean
+        isExpired(long now) {
+            return now >= expire;
+        }
+    }
+
+    // Rough size of entry in file. It's enough to bound cache size.
+    private static long
+    estimateBytes(Entry e) {
+        long sz = e.ytvid.length() + 8 + 8 + 4;
+        for (Stream s : e.streams)
+            sz += s.tag.length() + s.url.length() + s.type.length() + 6;
+        return sz;
+    }
+
+    /**
+     * Parse value of 'expire' parameter(seconds since epoch) in youtube stream url.
+     * @param url
+     * @return
+     *   -1 if there is no valid 'expire' parameter.
+     */
+    static long
+    parseUrlExpire(String url) {
+        int qi = url.indexOf('?');
+        if (qi < 0)
+            return -1;
+
+        int i = qi;
+        while (i >= 0 && i < url.length()) {
+            int s = i + 1;
+            if (url.startsWith("expire=", s)) {
+                s += "expire=".length();
+                int e = url.indexOf('&', s);
+                if (e < 0)
+                    e = url.length();
+                try {
+                    return Long.parseLong(url.substring(s, e));
+                } catch (NumberFormatException ignored) {
+                    return -1;
+                }
+            }
+            i = url.indexOf('&', s);
+        }
+        return -1;
+    }
+
+    YTStreamCache(File file, int maxEntries, long maxBytes) {
+        mFile = file;
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+    }
+
+    private void
+    removeLocked(String ytvid) {
+        Entry e = mMap.remove(ytvid);
+        if (null != e)
+            mBytes -= estimateBytes(e);
+    }
+
+    private void
+    trimLocked() {
+        Iterator<Map.Entry<String, Entry>> iter = mMap.entrySet().iterator();
+        while (iter.hasNext()
+               && (mMap.size() > mMaxEntries || mBytes > mMaxBytes)) {
+            Entry e = iter.next().getValue();
+            mBytes -= estimateBytes(e);
+            iter.remove();
+        }
+    }
+
+    private void
+    putLocked(Entry e) {
+        removeLocked(e.ytvid);
+        mMap.put(e.ytvid, e);
+        mBytes += estimateBytes(e);
+    }
+
+    private static Entry
+    readEntry(DataInputStream dis) throws IOException {
+        String ytvid = dis.readUTF();
+        long tmstamp = dis.readLong();
+        long expire = dis.readLong();
+        int nr = dis.readInt();
+        if (nr < 0)
+            throw new IOException();
+        Stream[] ss = new Stream[nr];
+        for (int i = 0; i < nr; i++)
+            ss[i] = new Stream(dis.readUTF(), dis.readUTF(), dis.readUTF());
+        return new Entry(ytvid, tmstamp, expire, ss);
+    }
+
+    private static void
+    writeEntry(DataOutputStream dos, Entry e) throws IOException {
+        dos.writeUTF(e.ytvid);
+        dos.writeLong(e.tmstamp);
+        dos.writeLong(e.expire);
+        dos.writeInt(e.streams.length);
+        for (Stream s : e.streams) {
+            dos.writeUTF(s.tag);
+            dos.writeUTF(s.url);
+            dos.writeUTF(s.type);
+        }
+    }
+
+    /**
+     * @return
+     *   not-expired entries in LRU to MRU order.
+     */
+    private ArrayList<Entry>
+    readFile() {
+        ArrayList<Entry> es = new ArrayList<Entry>();
+        if (!mFile.exists())
+            return es;
+
+        long now = System.currentTimeMillis();
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (FILE_MAGIC != dis.readInt()
+                || FILE_VERSION != dis.readInt())
+                return es;
+
+            int nr = dis.readInt();
+            for (int i = 0; i < nr; i++) {
+                Entry e = readEntry(dis);
+                if (!e.isExpired(now))
+                    es.add(e);
+            }
+        } catch (IOException e) {
+            // Broken cache file. Just ignore it - cache is NOT critical data.
+            if (DBG) P.w("Fail to load stream cache : " + e.getMessage());
+            es.clear();
+        } finally {
+            if (null != dis)
+                try {
+                    dis.close();
+                } catch (IOException ignored) { }
+        }
+        return es;
+    }
+
+    /**
+     * File is read without lock. So, cache users are never blocked by disk IO.
+     */
+    private void
+    load() {
+        ArrayList<Entry> loaded = readFile();
+        synchronized (this) {
+            // Entries put before loading is done are newer than loaded ones.
+            Entry[] newer = mMap.values().toArray(new Entry[0]);
+            boolean updated = newer.length > 0 || !mRemovedBeforeLoad.isEmpty();
+            mMap.clear();
+            mBytes = 0;
+            // File is written from LRU to MRU order.
+            // So, putting in order keeps access order.
+            for (Entry e : loaded) {
+                if (!mRemovedBeforeLoad.contains(e.ytvid))
+                    putLocked(e);
+            }
+            for (Entry e : newer)
+                putLocked(e);
+            trimLocked();
+            mRemovedBeforeLoad.clear();
+            mLoaded = true;
+            // Saving is skipped until cache file is loaded.
+            if (updated)
+                scheduleSaveLocked();
+        }
+    }
+
+    private void
+    startLoadLocked() {
+        if (mLoadStarted)
+            return;
+        mLoadStarted = true;
+        TaskExecutor.get().execute(TaskExecutor.Lane.PLAYBACK, new Runnable() {
+            @Override
+            public void
+            run() {
+                load();
+            }
+        });
+    }
+
+    private void
+    removeAndSaveLocked(String ytvid) {
+        removeLocked(ytvid);
+        if (!mLoaded)
+            mRemovedBeforeLoad.add(ytvid);
+        scheduleSaveLocked();
+    }
+
+    private void
+    scheduleSaveLocked() {
+        if (mSavePending)
+            return;
+        mSavePending = true;
+        Utils.getUiHandler().postDelayed(mSaveRunnable, SAVE_DELAY);
+    }
+
+    private void
+    save() {
+        synchronized (mSaveLock) {
+            writeFile();
+        }
+    }
+
+    /**
+     * Snapshot is taken under save lock. So, newer snapshot is always written later.
+     */
+    private void
+    writeFile() {
+        Entry[] es;
+        synchronized (this) {
+            mSavePending = false;
+            // Writing partial cache would lose entries in file.
+            // It is saved again when loading is done.
+            if (!mLoaded)
+                return;
+            es = mMap.values().toArray(new Entry[0]);
+        }
+
+        File tmpf = new File(mFile.getAbsolutePath() + "-tmp");
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpf)));
+            dos.writeInt(FILE_MAGIC);
+            dos.writeInt(FILE_VERSION);
+            dos.writeInt(es.length);
+            for (Entry e : es)
+                writeEntry(dos, e);
+            dos.close();
+            dos = null;
+            if (!tmpf.renameTo(mFile))
+                tmpf.delete();
+        } catch (FileNotFoundException e) {
+            if (DBG) P.w("Fail to save stream cache : " + e.getMessage());
+        } catch (IOException e) {
+            if (DBG) P.w("Fail to save stream cache : " + e.getMessage());
+            tmpf.delete();
+        } finally {
+            if (null != dos)
+                try {
+                    dos.close();
+                } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Start loading cache file at background.
+     * Accessing cache before loading is done, is NOT blocked. Cache just misses.
+     */
+    synchronized void
+    loadAsync() {
+        startLoadLocked();
+    }
+
+    synchronized void
+    put(Entry e) {
+        eAssert(null != e.ytvid);
+        startLoadLocked();
+        putLocked(e);
+        trimLocked();
+        scheduleSaveLocked();
+    }
+
+    /**
+     * @return
+     *   null if there is no valid - not expired - entry, or cache file is not loaded yet.
+     */
+    synchronized Entry
+    get(String ytvid) {
+        startLoadLocked();
+        Entry e = mMap.get(ytvid);
+        if (null == e)
+            return null;
+
+        if (e.isExpired(System.currentTimeMillis())) {
+            removeAndSaveLocked(ytvid);
+            return null;
+        }
+        return e;
+    }
+
+    synchronized void
+    remove(String ytvid) {
+        startLoadLocked();
+        if (mMap.containsKey(ytvid)
+            || !mLoaded)
+            removeAndSaveLocked(ytvid);
+    }
+}
@@ -0,0 +1,172 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+package free.yhc.netmbuddy.model;
+
+import static free.yhc.netmbuddy.utils.Utils.eAssert;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import free.yhc.netmbuddy.utils.Utils;
+
+// Resolve youtube streams of upcoming videos in advance.
+// Results are stored at stream cache of RTState.
+// So, when user skips to next video, player can start streaming without fetching watch page.
+class YTStreamPrefetcher {
+    private static final boolean DBG = false;
+    private static final Utils.Logger P = new Utils.Logger(YTStreamPrefetcher.class);
+
+    private static final int MSG_WHAT_PREFETCH  = 0;
+
+    private final BGHandler mBgHandler;
+
+    private static class BGThread extends HandlerThread {
+        BGThread() {
+            super("YTStreamPrefetcher.BGThread", Process.THREAD_PRIORITY_BACKGROUND);
+        }
+    }
+
+    private static class BGHandler extends Handler {
+        // Assigning array reference is atomic operation in JAVA.
+        // Array itself is never changed after assigned.
+        private volatile String[]   _mTargets = new String[0];
+        private volatile YTResolver.Request _mReq = null;
+
+        BGHandler(Looper looper) {
+            super(looper);
+        }
+
+        /**
+         * @return
+         *   expire time of resolved stream. -1 if fails.
+         */
+        private long
+        resolve(String ytvid) {
+            YTHacker hack = RTState.get().getCachedYtHacker(ytvid);
+            if (null != hack
+                && hack.getHackExpireTime() - System.currentTimeMillis() > Policy.YTPREFETCH_REFRESH_AHEAD)
+                return hack.getHackExpireTime();
+
+            if (!Utils.isNetworkAvailable())
+                return -1;
+
+            if (DBG) P.v("Prefetch stream : " + ytvid);
+            // Successfully resolved result is cached at RTState.
+            YTResolver.Request req = YTResolver.get().resolveAsync(ytvid, null, null,
+                                                                   TaskExecutor.Lane.PREFETCH,
+                                                                   NetAdmission.TrafficClass.PREFETCH);
+            _mReq = req;
+            YTHacker.Err err;
+            try {
+                err = req.waitDone();
+            } catch (InterruptedException e) {
+                YTResolver.get().cancel(req);
+                err = YTHacker.Err.INTERRUPTED;
+            }
+            _mReq = null;
+            return YTHacker.Err.NO_ERR == err? req.getHack().getHackExpireTime(): -1;
+        }
+
+        private void
+        handlePrefetch() {
+            String[] targets = _mTargets;
+            long nextRefresh = Long.MAX_VALUE;
+            for (String ytvid : targets) {
+                // Targets are changed. New request is already in message queue.
+                if (targets != _mTargets)
+                    return;
+
+                // Back-pressure from network admission.
+                // Prefetching can be postponed. Requests of user SHOULD go first.
+                if (NetAdmission.get().isCongested(NetAdmission.TrafficClass.PREFETCH)) {
+                    if (DBG) P.v("Network is congested. Prefetch is postponed.");
+                    sendEmptyMessageDelayed(MSG_WHAT_PREFETCH, Policy.NETWORK_ADMIT_BACKOFF);
+                    return;
+                }
+
+                long expire = resolve(ytvid);
+                if (expire > 0
+                    && expire - Policy.YTPREFETCH_REFRESH_AHEAD < nextRefresh)
+                    nextRefresh = expire - Policy.YTPREFETCH_REFRESH_AHEAD;
+            }
+
+            if (Long.MAX_VALUE == nextRefresh
+                || targets != _mTargets)
+                return;
+
+            // Keep prefetched streams fresh until they are used.
+            long delay = nextRefresh - System.currentTimeMillis();
+            if (delay < Policy.YTPREFETCH_MIN_REFRESH_INTERVAL)
+                delay = Policy.YTPREFETCH_MIN_REFRESH_INTERVAL;
+            sendEmptyMessageDelayed(MSG_WHAT_PREFETCH, delay);
+        }
+
+        void
+        setTargets(String[] ytvids) {
+            _mTargets = ytvids;
+            // Cancel on-going resolving if it's not a target anymore.
+            // If other module - ex. player - also waits for it, it is not really cancelled.
+            YTResolver.Request req = _mReq;
+            if (null != req) {
+                boolean stillTarget = false;
+                for (String ytvid : ytvids) {
+                    if (ytvid.equals(req.getYtvid()))
+                        stillTarget = true;
+                }
+                if (!stillTarget)
+                    YTResolver.get().cancel(req);
+            }
+            removeMessages(MSG_WHAT_PREFETCH);
+            if (ytvids.length > 0)
+                sendEmptyMessage(MSG_WHAT_PREFETCH);
+        }
+
+        @Override
+        public void
+        handleMessage(Message msg) {
+            switch (msg.what) {
+            case MSG_WHAT_PREFETCH:
+                handlePrefetch();
+                break;
+            }
+        }
+    }
+
+    YTStreamPrefetcher() {
+        HandlerThread hThread = new BGThread();
+        hThread.start();
+        mBgHandler = new BGHandler(hThread.getLooper());
+    }
+
+    /**
+     * Set videos whose streams should be resolved in advance.
+     * Previous targets are replaced.
+     * @param ytvids
+     *   Ordered by priority. Empty array to stop prefetching.
+     */
+    void
+    setTargets(String[] ytvids) {
+        eAssert(null != ytvids);
+        mBgHandler.setTargets(ytvids);
+    }
+}
@@ -29,6 +29,7 @@ import org.json.JSONObject;
 import free.yhc.netmbuddy.db.ColPlaylist;
 import free.yhc.netmbuddy.db.DB;
 import free.yhc.netmbuddy.model.MultiThreadRunner;
+import free.yhc.netmbuddy.model.NetAdmission;
 import free.yhc.netmbuddy.model.Policy;
 import free.yhc.netmbuddy.model.YTSearchHelper;
 import free.yhc.netmbuddy.share.Share.Err;
@@ -106,7 +107,8 @@ class ImporterPlaylist implements ImporterI {
                                                   author,
                                                   playtm,
                                                   volume,
-                                                  bookmarks))
+                                                  bookmarks,
+                                                  NetAdmission.TrafficClass.IMPORT))
                     err = Err.NO_ERR;
             } catch (JSONException e) {
                 return Err.INVALID_SHARE;
@@ -194,7 +196,7 @@ class ImporterPlaylist implements ImporterI {
                         return Err.NO_ERR; // ignore for invalid thumbnail ytvid.
 
                     YTSearchHelper.LoadThumbnailReturn ltr
-                        = YTUtils.loadYtVideoThumbnail(thumbnailYtvid);
+                        = YTUtils.loadYtVideoThumbnail(thumbnailYtvid, NetAdmission.TrafficClass.IMPORT);
                     if (YTSearchHelper.Err.NO_ERR == ltr.err) {
                         byte[] data = ImageUtils.compressBitmap(ltr.bm);
                         db.updatePlaylist(plid,
@@ -0,0 +1,514 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+package free.yhc.netmbuddy.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+// Minimal ISO base media file format (MP4) remuxer.
+//
+// Only non-fragmented file - which has one 'moov' box - is supported.
+// Youtube's muxed mp4 streams are this type.
+//
+// Audio track is extracted to new file (m4a) by
+//   - removing all tracks except for first audio track from 'moov'
+//   - copying only chunks of audio track to new 'mdat'
+//   - rewriting chunk offsets('stco' or 'co64') for new layout.
+// Sample tables except for chunk offsets are not changed.
+// So, audio data itself is never decoded or re-encoded.
+//
+// NOTE
+// This class SHOULD depend only on JAVA standard library - not on Android or Utils.
+// So, it can be tested at JVM. See tests/src/free/yhc/netmbuddy/utils/Mp4UtilsTest.java
+public class Mp4Utils {
+    // 'moov' larger than this is regarded as broken file.
+    private static final long   MAX_MOOV_SIZE   = 16 * 1024 * 1024;
+    private static final int    COPY_BUFSZ      = 64 * 1024;
+
+    private static final int    BOX_FTYP    = fourcc("ftyp");
+    private static final int    BOX_MOOV    = fourcc("moov");
+    private static final int    BOX_MDAT    = fourcc("mdat");
+    private static final int    BOX_MOOF    = fourcc("moof");
+    private static final int    BOX_TRAK    = fourcc("trak");
+    private static final int    BOX_MDIA    = fourcc("mdia");
+    private static final int    BOX_HDLR    = fourcc("hdlr");
+    private static final int    BOX_MINF    = fourcc("minf");
+    private static final int    BOX_STBL    = fourcc("stbl");
+    private static final int    BOX_STCO    = fourcc("stco");
+    private static final int    BOX_CO64    = fourcc("co64");
+    private static final int    BOX_STSC    = fourcc("stsc");
+    private static final int    BOX_STSZ    = fourcc("stsz");
+    private static final int    HDLR_SOUN   = fourcc("soun");
+
+    public static class FormatException extends java.lang.Exception {
+        static final long serialVersionUID = 0; // to make compiler be happy
+
+        public FormatException(String msg) {
+            super(msg);
+        }
+    }
+
+    // Box in memory buffer.
+    private static class Box {
+        final int   type;
+        final int   offset;     // offset of box header in buffer.
+        final int   hdrsz;
+        final int   size;       // including header.
+        Box(int aType, int aOffset, int aHdrsz, int aSize) {
+            type = aType;
+            offset = aOffset;
+            hdrsz = aHdrsz;
+            size = aSize;
+        }
+
+        int
+        dataOffset() {
+            return offset + hdrsz;
+        }
+
+        int
+        end() {
+            return offset + size;
+        }
+    }
+
+    private static class Chunk {
+        final long  offset;     // offset in source file.
+        final long  size;
+        Chunk(long aOffset, long aSize) {
+            offset = aOffset;
+            size = aSize;
+        }
+    }
+
+    private static int
+    fourcc(String s) {
+        return (s.charAt(0) << 24) | (s.charAt(1) << 16) | (s.charAt(2) << 8) | s.charAt(3);
+    }
+
+    private static int
+    readInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24)
+               | ((b[off + 1] & 0xff) << 16)
+               | ((b[off + 2] & 0xff) << 8)
+               | (b[off + 3] & 0xff);
+    }
+
+    private static long
+    readUInt(byte[] b, int off) {
+        return readInt(b, off) & 0xffffffffL;
+    }
+
+    private static long
+    readLong(byte[] b, int off) {
+        return (readUInt(b, off) << 32) | readUInt(b, off + 4);
+    }
+
+    private static void
+    writeInt(byte[] b, int off, int v) {
+        b[off]     = (byte)(v >>> 24);
+        b[off + 1] = (byte)(v >>> 16);
+        b[off + 2] = (byte)(v >>> 8);
+        b[off + 3] = (byte)v;
+    }
+
+    private static void
+    writeLong(byte[] b, int off, long v) {
+        writeInt(b, off, (int)(v >>> 32));
+        writeInt(b, off + 4, (int)v);
+    }
+
+    /**
+     * Parse child boxes in [start, end) of buffer.
+     */
+    private static ArrayList<Box>
+    parseBoxes(byte[] b, int start, int end)
+            throws FormatException {
+        ArrayList<Box> boxes = new ArrayList<Box>();
+        int off = start;
+        while (off + 8 <= end) {
+            long size = readUInt(b, off);
+            int type = readInt(b, off + 4);
+            int hdrsz = 8;
+            if (1 == size) {
+                if (off + 16 > end)
+                    throw new FormatException("Truncated box header");
+                size = readLong(b, off + 8);
+                hdrsz = 16;
+            } else if (0 == size)
+                size = end - off;
+
+            if (size < hdrsz
+                || off + size > end)
+                throw new FormatException("Invalid box size");
+            boxes.add(new Box(type, off, hdrsz, (int)size));
+            off += size;
+        }
+        return boxes;
+    }
+
+    private static Box
+    findBox(ArrayList<Box> boxes, int type) {
+        for (Box bx : boxes) {
+            if (type == bx.type)
+                return bx;
+        }
+        return null;
+    }
+
+    private static Box
+    findChild(byte[] b, Box parent, int type)
+            throws FormatException {
+        return findBox(parseBoxes(b, parent.dataOffset(), parent.end()), type);
+    }
+
+    private static boolean
+    isAudioTrack(byte[] b, Box trak)
+            throws FormatException {
+        Box mdia = findChild(b, trak, BOX_MDIA);
+        if (null == mdia)
+            return false;
+        Box hdlr = findChild(b, mdia, BOX_HDLR);
+        // version/flags(4) + pre_defined(4) + handler_type(4)
+        return null != hdlr
+               && hdlr.size >= hdlr.hdrsz + 12
+               && HDLR_SOUN == readInt(b, hdlr.dataOffset() + 8);
+    }
+
+    /**
+     * Calculate position and size of each chunk from 'stsc', 'stsz' and chunk offset box.
+     */
+    private static Chunk[]
+    getChunks(byte[] b, Box stbl)
+            throws FormatException {
+        ArrayList<Box> boxes = parseBoxes(b, stbl.dataOffset(), stbl.end());
+        Box stsc = findBox(boxes, BOX_STSC);
+        Box stsz = findBox(boxes, BOX_STSZ);
+        Box stco = findBox(boxes, BOX_STCO);
+        Box co64 = findBox(boxes, BOX_CO64);
+        if (null == stsc
+            || null == stsz
+            || (null == stco && null == co64))
+            throw new FormatException("Sample table is not complete");
+
+        // Chunk offsets
+        Box co = null != stco? stco: co64;
+        int nrChunks = readInt(b, co.dataOffset() + 4);
+        int esz = null != stco? 4: 8;
+        if (nrChunks < 0
+            || co.dataOffset() + 8 + (long)nrChunks * esz > co.end())
+            throw new FormatException("Invalid chunk offset box");
+        long[] offsets = new long[nrChunks];
+        for (int i = 0; i < nrChunks; i++) {
+            int off = co.dataOffset() + 8 + i * esz;
+            offsets[i] = null != stco? readUInt(b, off): readLong(b, off);
+        }
+
+        // Sample sizes
+        int ssOff = stsz.dataOffset() + 4;
+        long sampleSize = readUInt(b, ssOff);
+        int nrSamples = readInt(b, ssOff + 4);
+        if (nrSamples < 0
+            || (0 == sampleSize && ssOff + 8 + (long)nrSamples * 4 > stsz.end()))
+            throw new FormatException("Invalid sample size box");
+
+        // Sample to chunk
+        int scOff = stsc.dataOffset() + 4;
+        int nrEntries = readInt(b, scOff);
+        if (nrEntries < 0
+            || scOff + 4 + (long)nrEntries * 12 > stsc.end())
+            throw new FormatException("Invalid sample to chunk box");
+
+        Chunk[] chunks = new Chunk[nrChunks];
+        int samplei = 0;
+        for (int e = 0; e < nrEntries; e++) {
+            int eoff = scOff + 4 + e * 12;
+            // 'first_chunk' is 1-based index.
+            long firstChunk = readUInt(b, eoff) - 1;
+            long samplesPerChunk = readUInt(b, eoff + 4);
+            long lastChunk = e + 1 < nrEntries? readUInt(b, eoff + 12) - 1: nrChunks;
+            if (firstChunk < 0
+                || lastChunk > nrChunks
+                || firstChunk > lastChunk)
+                throw new FormatException("Invalid sample to chunk entry");
+
+            for (long c = firstChunk; c < lastChunk; c++) {
+                long sz = 0;
+                for (long s = 0; s < samplesPerChunk; s++) {
+                    if (samplei >= nrSamples)
+                        throw new FormatException("Sample count mismatch");
+                    sz += 0 != sampleSize? sampleSize: readUInt(b, ssOff + 8 + samplei * 4);
+                    samplei++;
+                }
+                chunks[(int)c] = new Chunk(offsets[(int)c], sz);
+            }
+        }
+
+        for (Chunk c : chunks) {
+            if (null == c)
+                throw new FormatException("Chunk is not covered by sample to chunk box");
+        }
+        return chunks;
+    }
+
+    /**
+     * Rewrite chunk offsets in 'stbl'.
+     */
+    private static void
+    setChunkOffsets(byte[] b, Box stbl, long[] offsets)
+            throws FormatException {
+        ArrayList<Box> boxes = parseBoxes(b, stbl.dataOffset(), stbl.end());
+        Box stco = findBox(boxes, BOX_STCO);
+        if (null != stco) {
+            for (int i = 0; i < offsets.length; i++) {
+                if (offsets[i] > 0xffffffffL)
+                    throw new FormatException("Offset doesn't fit in 'stco'");
+                writeInt(b, stco.dataOffset() + 8 + i * 4, (int)offsets[i]);
+            }
+        } else {
+            Box co64 = findBox(boxes, BOX_CO64);
+            for (int i = 0; i < offsets.length; i++)
+                writeLong(b, co64.dataOffset() + 8 + i * 8, offsets[i]);
+        }
+    }
+
+    private static byte[]
+    readBytes(RandomAccessFile raf, long offset, long size)
+            throws IOException, FormatException {
+        if (size > MAX_MOOV_SIZE)
+            throw new FormatException("Box is too large");
+        byte[] b = new byte[(int)size];
+        raf.seek(offset);
+        raf.readFully(b);
+        return b;
+    }
+
+    /**
+     * Check that file is complete mp4 file.
+     * Top-level boxes SHOULD cover whole file exactly, and movie header and media data SHOULD exist.
+     * Truncated or partially written file fails this check.
+     * Samples are not verified.
+     * @throws FormatException
+     *   Broken file.
+     */
+    public static void
+    verify(File f)
+            throws IOException, FormatException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            long fileLen = raf.length();
+            long off = 0;
+            boolean ftyp = false;
+            boolean moov = false;
+            boolean mdat = false;
+            byte[] hdr = new byte[16];
+            while (off + 8 <= fileLen) {
+                raf.seek(off);
+                raf.readFully(hdr, 0, 8);
+                long size = readUInt(hdr, 0);
+                int type = readInt(hdr, 4);
+                if (1 == size) {
+                    raf.readFully(hdr, 8, 8);
+                    size = readLong(hdr, 8);
+                } else if (0 == size)
+                    size = fileLen - off;
+
+                if (size < 8
+                    || off + size > fileLen)
+                    throw new FormatException("Truncated top-level box");
+
+                if (BOX_FTYP == type)
+                    ftyp = true;
+                else if (BOX_MOOV == type)
+                    moov = true;
+                else if (BOX_MDAT == type)
+                    mdat = true;
+                off += size;
+            }
+
+            if (off != fileLen)
+                throw new FormatException("Garbage at the end of file");
+            if (!ftyp || !moov || !mdat)
+                throw new FormatException("Mandatory box is missing");
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Extract first audio track of mp4 file to new file.
+     * Output file is written directly. So, caller may need to write to temp file and rename it.
+     * @param in
+     *   mp4 file
+     * @param out
+     *   audio-only mp4 (m4a) file.
+     * @throws FormatException
+     *   Unsupported or broken file.
+     */
+    public static void
+    extractAudio(File in, File out)
+            throws IOException, FormatException {
+        RandomAccessFile raf = new RandomAccessFile(in, "r");
+        DataOutputStream dos = null;
+        try {
+            // Scan top-level boxes.
+            long fileLen = raf.length();
+            long off = 0;
+            byte[] ftyp = null;
+            byte[] moov = null;
+            byte[] hdr = new byte[16];
+            while (off + 8 <= fileLen) {
+                raf.seek(off);
+                raf.readFully(hdr, 0, 8);
+                long size = readUInt(hdr, 0);
+                int type = readInt(hdr, 4);
+                if (1 == size) {
+                    raf.readFully(hdr, 8, 8);
+                    size = readLong(hdr, 8);
+                } else if (0 == size)
+                    size = fileLen - off;
+
+                if (size < 8
+                    || off + size > fileLen)
+                    throw new FormatException("Invalid top-level box");
+
+                if (BOX_FTYP == type)
+                    ftyp = readBytes(raf, off, size);
+                else if (BOX_MOOV == type)
+                    moov = readBytes(raf, off, size);
+                else if (BOX_MOOF == type)
+                    throw new FormatException("Fragmented mp4 is not supported");
+                off += size;
+            }
+
+            if (null == moov)
+                throw new FormatException("No 'moov' box");
+
+            // Find audio track.
+            Box moovBox = parseBoxes(moov, 0, moov.length).get(0);
+            ArrayList<Box> children = parseBoxes(moov, moovBox.dataOffset(), moovBox.end());
+            Box audio = null;
+            for (Box bx : children) {
+                if (BOX_TRAK == bx.type
+                    && isAudioTrack(moov, bx)) {
+                    audio = bx;
+                    break;
+                }
+            }
+            if (null == audio)
+                throw new FormatException("No audio track");
+
+            Box mdia = findChild(moov, audio, BOX_MDIA);
+            Box minf = findChild(moov, mdia, BOX_MINF);
+            if (null == minf)
+                throw new FormatException("No 'minf' box");
+            Box stbl = findChild(moov, minf, BOX_STBL);
+            if (null == stbl)
+                throw new FormatException("No 'stbl' box");
+            Chunk[] chunks = getChunks(moov, stbl);
+
+            // Build new 'moov' : all children except for non-audio tracks.
+            // Size of chunk offset box is not changed. So, size of new 'moov' is fixed here.
+            int newMoovSize = moovBox.hdrsz;
+            for (Box bx : children) {
+                if (BOX_TRAK != bx.type || bx == audio)
+                    newMoovSize += bx.size;
+            }
+            byte[] newMoov = new byte[newMoovSize];
+            System.arraycopy(moov, moovBox.offset, newMoov, 0, moovBox.hdrsz);
+            if (16 == moovBox.hdrsz)
+                writeLong(newMoov, 8, newMoovSize);
+            else
+                writeInt(newMoov, 0, newMoovSize);
+            int wi = moovBox.hdrsz;
+            int newAudioOffset = -1;
+            for (Box bx : children) {
+                if (BOX_TRAK == bx.type && bx != audio)
+                    continue;
+                if (bx == audio)
+                    newAudioOffset = wi;
+                System.arraycopy(moov, bx.offset, newMoov, wi, bx.size);
+                wi += bx.size;
+            }
+            assert wi == newMoovSize && newAudioOffset >= 0;
+
+            // Layout : ftyp | moov | mdat(audio chunks)
+            long dataSize = 0;
+            for (Chunk c : chunks)
+                dataSize += c.size;
+            boolean largeMdat = dataSize + 8 > 0xffffffffL;
+            int mdatHdrsz = largeMdat? 16: 8;
+            long dataStart = (null == ftyp? 0: ftyp.length) + newMoovSize + mdatHdrsz;
+
+            long[] newOffsets = new long[chunks.length];
+            long pos = dataStart;
+            for (int i = 0; i < chunks.length; i++) {
+                newOffsets[i] = pos;
+                pos += chunks[i].size;
+            }
+            // Offsets of 'stbl' in new moov = old offset - (old trak offset - new trak offset)
+            int shift = audio.offset - newAudioOffset;
+            Box newStbl = new Box(stbl.type, stbl.offset - shift, stbl.hdrsz, stbl.size);
+            setChunkOffsets(newMoov, newStbl, newOffsets);
+
+            // Write
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out), COPY_BUFSZ));
+            if (null != ftyp)
+                dos.write(ftyp);
+            dos.write(newMoov);
+            if (largeMdat) {
+                dos.writeInt(1);
+                dos.writeInt(BOX_MDAT);
+                dos.writeLong(dataSize + 16);
+            } else {
+                dos.writeInt((int)(dataSize + 8));
+                dos.writeInt(BOX_MDAT);
+            }
+
+            byte[] buf = new byte[COPY_BUFSZ];
+            for (Chunk c : chunks) {
+                if (c.offset + c.size > fileLen)
+                    throw new FormatException("Chunk is out of file");
+                raf.seek(c.offset);
+                long remain = c.size;
+                while (remain > 0) {
+                    int n = (int)Math.min(remain, buf.length);
+                    raf.readFully(buf, 0, n);
+                    dos.write(buf, 0, n);
+                    remain -= n;
+                }
+            }
+            dos.close();
+            dos = null;
+        } finally {
+            raf.close();
+            if (null != dos)
+                try {
+                    dos.close();
+                } catch (IOException ignored) { }
+        }
+    }
+}
@@ -45,12 +45,14 @@ import android.app.ActivityManager;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.graphics.Rect;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.util.Log;
@@ -191,7 +193,9 @@ public class Utils {
 
         new File(Policy.APPDATA_DIR).mkdirs();
         new File(Policy.APPDATA_VIDDIR).mkdirs();
+        new File(Policy.APPDATA_WARMDIR).mkdirs();
         new File(Policy.APPDATA_LOGDIR).mkdirs();
+        new File(Policy.APPDATA_HTTPCACHEDIR).mkdirs();
 
         // Clear/Create cache directory!
         File cacheF = new File(Policy.APPDATA_CACHEDIR);
@@ -203,6 +207,11 @@ public class Utils {
         FileUtils.removeFileRecursive(tempF, tempF);
         tempF.mkdirs();
 
+        // Broken files of last run are kept until now - for debugging.
+        File quarF = new File(Policy.APPDATA_QUARANTINEDIR);
+        FileUtils.removeFileRecursive(quarF, quarF);
+        quarF.mkdirs();
+
         if (LOGF) {
             new File(Policy.APPDATA_LOGDIR).mkdirs();
             String dateText = DateFormat
@@ -370,6 +379,23 @@ public class Utils {
             return false;
     }
 
+    /**
+     * Wi-Fi is regarded as unmetered network. 'use wifi only' preference is not considered.
+     */
+    public static boolean
+    isWifiConnected() {
+        ConnectivityManager cm = (ConnectivityManager)getAppContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo ni = cm.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
+        return null != ni && ni.isConnected();
+    }
+
+    public static boolean
+    isCharging() {
+        // ACTION_BATTERY_CHANGED is sticky. So, receiver is not required to get current state.
+        Intent i = getAppContext().registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return null != i && 0 != i.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+    }
+
     public static String
     getCurrentTopActivity() {
         ActivityManager am = (ActivityManager)getAppContext().getSystemService(Context.ACTIVITY_SERVICE);
@@ -22,6 +22,7 @@ package free.yhc.netmbuddy.utils;
 
 import free.yhc.netmbuddy.R;
 import free.yhc.netmbuddy.db.DB;
+import free.yhc.netmbuddy.model.NetAdmission;
 import free.yhc.netmbuddy.model.Policy;
 import free.yhc.netmbuddy.model.YTConstants;
 import free.yhc.netmbuddy.model.YTHacker;
@@ -43,19 +44,31 @@ public class YTUtils {
                YTConstants.MAX_AVAILABLE_RESULTS_FOR_QUERY;
     }
 
+    /**
+     * @param tclass
+     *   Traffic class of network request. See NetAdmission.
+     */
     public static YTSearchHelper.LoadThumbnailReturn
-    loadYtVideoThumbnail(String ytvid) {
+    loadYtVideoThumbnail(String ytvid, NetAdmission.TrafficClass tclass) {
         String thumbnailUrl = YTHacker.getYtVideoThumbnailUrl(ytvid);
         YTSearchHelper.LoadThumbnailArg targ = new YTSearchHelper.LoadThumbnailArg(
                 null,
                 thumbnailUrl,
                 Utils.getAppContext().getResources().getDimensionPixelSize(R.dimen.thumbnail_width),
-                Utils.getAppContext().getResources().getDimensionPixelSize(R.dimen.thumbnail_height));
+                Utils.getAppContext().getResources().getDimensionPixelSize(R.dimen.thumbnail_height),
+                tclass);
         return YTSearchHelper.loadThumbnail(targ);
     }
 
+    public static YTSearchHelper.LoadThumbnailReturn
+    loadYtVideoThumbnail(String ytvid) {
+        return loadYtVideoThumbnail(ytvid, NetAdmission.TrafficClass.THUMBNAIL);
+    }
+
     /**
      * This function download thumbnail image through network synchronously.
+     * @param tclass
+     *   Traffic class of loading thumbnail. See NetAdmission.
      */
     public static boolean
     insertVideoToPlaylist(long      plid,
@@ -64,9 +77,10 @@ public class YTUtils {
                           String    author,
                           int       playtime,
                           int       volume,
-                          String    bookmarks) {
+                          String    bookmarks,
+                          NetAdmission.TrafficClass tclass) {
         // Loading thumbnail is done.
-        YTSearchHelper.LoadThumbnailReturn tr = loadYtVideoThumbnail(ytvid);
+        YTSearchHelper.LoadThumbnailReturn tr = loadYtVideoThumbnail(ytvid, tclass);
         if (null == tr.bm)
             return false;
 
@@ -86,6 +100,18 @@ public class YTUtils {
         return true;
     }
 
+    public static boolean
+    insertVideoToPlaylist(long      plid,
+                          String    ytvid,
+                          String    title,
+                          String    author,
+                          int       playtime,
+                          int       volume,
+                          String    bookmarks) {
+        return insertVideoToPlaylist(plid, ytvid, title, author, playtime, volume, bookmarks,
+                                     NetAdmission.TrafficClass.THUMBNAIL);
+    }
+
     public static boolean
     insertVideoToPlaylist(long      plid,
                           String    ytvid,
@@ -0,0 +1,220 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+package free.yhc.netmbuddy.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+// Compressed body SHOULD be decoded to original bytes. And compressed bytes SHOULD be transferred.
+// Local http server that sends compressed body is used instead of real server.
+public class ContentDecoderTest extends TestCase {
+    private EncodingServer  mServer;
+
+    // Http server that sends one response with given encoding and body.
+    private static class EncodingServer extends Thread {
+        final ServerSocket  _mSock;
+        final String        _mEncoding;
+        final byte[]        _mBody;
+
+        EncodingServer(String encoding, byte[] body) throws IOException {
+            super("EncodingServer");
+            _mSock = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+            _mEncoding = encoding;
+            _mBody = body;
+        }
+
+        int
+        getPort() {
+            return _mSock.getLocalPort();
+        }
+
+        void
+        shutdown() throws InterruptedException {
+            try {
+                _mSock.close();
+            } catch (IOException e) { }
+            join(5000);
+        }
+
+        @Override
+        public void
+        run() {
+            Socket sock = null;
+            try {
+                sock = _mSock.accept();
+                readHeader(sock.getInputStream()); // skip request.
+                OutputStream os = sock.getOutputStream();
+                os.write(("HTTP/1.1 200 OK\r\n"
+                          + "Content-Type: text/html\r\n"
+                          + "Content-Encoding: " + _mEncoding + "\r\n"
+                          + "Content-Length: " + _mBody.length + "\r\n"
+                          + "Connection: close\r\n"
+                          + "\r\n").getBytes());
+                os.write(_mBody);
+                os.flush();
+            } catch (IOException e) {
+            } finally {
+                if (null != sock)
+                    try {
+                        sock.close();
+                    } catch (IOException e) { }
+            }
+        }
+    }
+
+    // Read header until empty line.
+    private static String
+    readHeader(InputStream is) throws IOException {
+        StringBuilder sbldr = new StringBuilder();
+        int c;
+        while (0 <= (c = is.read())) {
+            sbldr.append((char)c);
+            if (sbldr.length() >= 4
+                && "\r\n\r\n".equals(sbldr.substring(sbldr.length() - 4)))
+                break;
+        }
+        return sbldr.toString();
+    }
+
+    private static String
+    getHeaderValue(String header, String name) {
+        for (String line : header.split("\r\n")) {
+            int i = line.indexOf(':');
+            if (i > 0
+                && name.equalsIgnoreCase(line.substring(0, i).trim()))
+                return line.substring(i + 1).trim();
+        }
+        return null;
+    }
+
+    // Compressible contents - like html page.
+    private static byte[]
+    buildContents() {
+        StringBuilder sbldr = new StringBuilder();
+        for (int i = 0; i < 2000; i++)
+            sbldr.append("<div class=\"item\" id=\"item-").append(i).append("\">item ").append(i).append("</div>\n");
+        return sbldr.toString().getBytes();
+    }
+
+    private static byte[]
+    gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        GZIPOutputStream gzos = new GZIPOutputStream(baos);
+        gzos.write(data);
+        gzos.close();
+        return baos.toByteArray();
+    }
+
+    private static byte[]
+    deflate(byte[] data, boolean nowrap) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DeflaterOutputStream dos = new DeflaterOutputStream(baos,
+                                                            new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap));
+        dos.write(data);
+        dos.close();
+        return baos.toByteArray();
+    }
+
+    @Override
+    protected void
+    tearDown() throws Exception {
+        if (null != mServer)
+            mServer.shutdown();
+    }
+
+    private void
+    receiveEncoded(String encoding, byte[] body, byte[] contents) throws Exception {
+        mServer = new EncodingServer(encoding, body);
+        mServer.start();
+        Socket sock = new Socket(InetAddress.getByName("127.0.0.1"), mServer.getPort());
+        try {
+            OutputStream os = sock.getOutputStream();
+            os.write(("GET /index.html HTTP/1.1\r\n"
+                      + "Host: 127.0.0.1:" + mServer.getPort() + "\r\n"
+                      + "Accept-Encoding: gzip, deflate\r\n"
+                      + "\r\n").getBytes());
+            os.flush();
+            InputStream is = sock.getInputStream();
+            String header = readHeader(is);
+            // Same as NetLoader.
+            CountingInputStream wire = new CountingInputStream(is);
+            CountingInputStream content = new CountingInputStream(
+                    ContentDecoder.decode(getHeaderValue(header, "Content-Encoding"), wire));
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while (0 < (n = content.read(buf)))
+                baos.write(buf, 0, n);
+
+            assertTrue("Decoded contents are different from original",
+                       Arrays.equals(contents, baos.toByteArray()));
+            assertEquals(contents.length, content.getBytes());
+            assertTrue("Wire : " + wire.getBytes() + ", Decoded : " + content.getBytes(),
+                       wire.getBytes() < content.getBytes());
+        } finally {
+            sock.close();
+        }
+    }
+
+    public void
+    testGzip() throws Exception {
+        byte[] contents = buildContents();
+        receiveEncoded("gzip", gzip(contents), contents);
+    }
+
+    public void
+    testZlibDeflate() throws Exception {
+        byte[] contents = buildContents();
+        receiveEncoded("deflate", deflate(contents, false), contents);
+    }
+
+    public void
+    testRawDeflate() throws Exception {
+        byte[] contents = buildContents();
+        receiveEncoded("deflate", deflate(contents, true), contents);
+    }
+
+    public void
+    testIdentity() throws Exception {
+        byte[] contents = buildContents();
+        InputStream is = ContentDecoder.decode(null, new ByteArrayInputStream(contents));
+        byte[] out = new byte[contents.length];
+        int n = 0;
+        int r;
+        while (0 < (r = is.read(out, n, out.length - n)))
+            n += r;
+        assertEquals(contents.length, n);
+        assertTrue(Arrays.equals(contents, out));
+    }
+}
@@ -0,0 +1,277 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+package free.yhc.netmbuddy.model;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+// Cancelling download SHOULD stop receiving data at once - even if server is slow or stalled.
+// Local http server that sends body very slowly is used instead of real server.
+// Cancelling is done in the same way with download : cancel flag is set, and then connection is aborted
+//   (NetLoader aborts request when token is cancelled).
+public class StreamCopierTest extends TestCase {
+    // Body that is never completed at test.
+    private static final long   CONTENT_LENGTH      = 100 * 1024 * 1024;
+    private static final int    DRIP_BYTES          = 1024;
+    private static final long   DRIP_INTERVAL       = 20; // ms
+    // Receiving is regarded as started after this amount of data is written to file.
+    private static final long   STARTED_BYTES       = 8 * 1024;
+
+    // Limits to pass.
+    private static final long   MAX_STOP_LATENCY    = 500; // ms
+    private static final long   MAX_BYTES_AFTER_CANCEL = 16 * 1024;
+
+    private SlowServer  mServer;
+    private File        mTmpf;
+
+    // Http server that sends response header at once, and then sends body slowly.
+    private static class SlowServer extends Thread {
+        final ServerSocket  _mSock;
+        // Body is not sent at all if 'false'.
+        final boolean       _mDrip;
+        final AtomicLong    _mSent = new AtomicLong(0);
+        volatile boolean    _mStop = false;
+
+        SlowServer(boolean drip) throws IOException {
+            super("SlowServer");
+            _mSock = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+            _mDrip = drip;
+        }
+
+        int
+        getPort() {
+            return _mSock.getLocalPort();
+        }
+
+        void
+        shutdown() throws InterruptedException {
+            _mStop = true;
+            try {
+                _mSock.close();
+            } catch (IOException e) { }
+            join(5000);
+        }
+
+        @Override
+        public void
+        run() {
+            Socket sock = null;
+            try {
+                sock = _mSock.accept();
+                BufferedReader br = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+                String line;
+                while (null != (line = br.readLine()) && !line.isEmpty())
+                    ; // skip request.
+                OutputStream os = sock.getOutputStream();
+                os.write(("HTTP/1.1 200 OK\r\n"
+                          + "Content-Type: video/mp4\r\n"
+                          + "Content-Length: " + CONTENT_LENGTH + "\r\n"
+                          + "Connection: close\r\n"
+                          + "\r\n").getBytes());
+                os.flush();
+                byte[] buf = new byte[DRIP_BYTES];
+                while (!_mStop) {
+                    if (_mDrip) {
+                        os.write(buf);
+                        os.flush();
+                        _mSent.addAndGet(buf.length);
+                    }
+                    Thread.sleep(DRIP_INTERVAL);
+                }
+            } catch (IOException e) {
+                // Client closes connection.
+            } catch (InterruptedException e) {
+            } finally {
+                if (null != sock)
+                    try {
+                        sock.close();
+                    } catch (IOException e) { }
+            }
+        }
+    }
+
+    // Counts bytes read from connection.
+    private static class CountingInputStream extends FilterInputStream {
+        final AtomicLong    _mBytes = new AtomicLong(0);
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int
+        read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                _mBytes.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int
+        read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                _mBytes.addAndGet(n);
+            return n;
+        }
+    }
+
+    private static class Receiver extends Thread implements StreamCopier.Callback {
+        final InputStream               _mStream;
+        final File                      _mFile;
+        volatile boolean                _mCancelled = false;
+        volatile Exception              _mException = null;
+        volatile long                   _mStopTime = 0;
+
+        Receiver(InputStream is, File f) {
+            super("Receiver");
+            _mStream = is;
+            _mFile = f;
+        }
+
+        @Override
+        public boolean
+        isCancelled() {
+            return _mCancelled;
+        }
+
+        @Override
+        public void
+        onWritten(int len) {
+        }
+
+        @Override
+        public void
+        run() {
+            try {
+                StreamCopier.copyToFile(_mStream, _mFile, false, CONTENT_LENGTH, true, this);
+            } catch (Exception e) {
+                _mException = e;
+            }
+            _mStopTime = now();
+        }
+    }
+
+    private static long
+    now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    // Send request and skip header of response.
+    private static InputStream
+    openBody(Socket sock) throws IOException {
+        OutputStream os = sock.getOutputStream();
+        os.write(("GET /video.mp4 HTTP/1.1\r\n"
+                  + "Host: 127.0.0.1:" + sock.getPort() + "\r\n"
+                  + "\r\n").getBytes());
+        os.flush();
+        InputStream is = sock.getInputStream();
+        // Header ends with empty line.
+        int matched = 0;
+        while (matched < 4) {
+            int c = is.read();
+            assertTrue("Unexpected end of header", c >= 0);
+            if (c == "\r\n\r\n".charAt(matched))
+                matched++;
+            else
+                matched = ('\r' == c)? 1: 0;
+        }
+        return is;
+    }
+
+    @Override
+    protected void
+    setUp() throws Exception {
+        mTmpf = File.createTempFile("cancel", null);
+    }
+
+    @Override
+    protected void
+    tearDown() throws Exception {
+        if (null != mServer)
+            mServer.shutdown();
+        mTmpf.delete();
+    }
+
+    private void
+    cancelWhileReceiving(boolean drip) throws Exception {
+        mServer = new SlowServer(drip);
+        mServer.start();
+        Socket sock = new Socket(InetAddress.getByName("127.0.0.1"), mServer.getPort());
+        try {
+            CountingInputStream body = new CountingInputStream(openBody(sock));
+            Receiver rcvr = new Receiver(body, mTmpf);
+            rcvr.start();
+
+            if (drip) {
+                long timeout = now() + 5000;
+                while (mTmpf.length() < STARTED_BYTES) {
+                    assertTrue("Receiving doesn't start", now() < timeout);
+                    Thread.sleep(DRIP_INTERVAL);
+                }
+            } else
+                // Receiver is blocked at reading body.
+                Thread.sleep(500);
+            assertTrue(rcvr.isAlive());
+
+            long wireAtCancel = body._mBytes.get();
+            long cancelTime = now();
+            rcvr._mCancelled = true;
+            sock.close();
+            rcvr.join(5000);
+            assertFalse("Receiving isn't stopped", rcvr.isAlive());
+
+            long latency = rcvr._mStopTime - cancelTime;
+            long bytesAfterCancel = body._mBytes.get() - wireAtCancel;
+            assertNotNull("Cancelled receiving SHOULD fail", rcvr._mException);
+            assertTrue("Stop latency : " + latency + "ms", latency <= MAX_STOP_LATENCY);
+            assertTrue("Bytes after cancel : " + bytesAfterCancel, bytesAfterCancel <= MAX_BYTES_AFTER_CANCEL);
+            assertFalse("Temp file isn't deleted", mTmpf.exists());
+            // Server SHOULD NOT keep sending whole contents.
+            assertTrue(mServer._mSent.get() < CONTENT_LENGTH);
+        } finally {
+            sock.close();
+        }
+    }
+
+    public void
+    testCancelSlowServer() throws Exception {
+        cancelWhileReceiving(true);
+    }
+
+    public void
+    testCancelStalledServer() throws Exception {
+        cancelWhileReceiving(false);
+    }
+}
@@ -0,0 +1,200 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+package free.yhc.netmbuddy.model;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+// Fixtures are small watch pages built here.
+// Player configuration is JSON in '<script>' element - like real pages.
+public class YTPageScannerTest extends TestCase {
+    private static final String STREAM_MAP
+        = "itag=22\\u0026url=http%3A%2F%2Fr1.example.com%2Fvideoplayback%3Fid%3D1\\u0026type=video%2Fmp4,"
+          + "itag=18\\u0026url=http%3A%2F%2Fr2.example.com%2Fvideoplayback%3Fid%3D2\\u0026type=video%2Fmp4";
+    private static final String ADAPTIVE_MAP
+        = "itag=140\\u0026url=http%3A%2F%2Fr3.example.com%2Fvideoplayback%3Fid%3D3\\u0026type=audio%2Fmp4";
+    // As it appears in page.
+    private static final String G204_URL_RAW
+        = "http:\\/\\/s.example.com\\/generate_204?ip=0.0.0.0\\u0026id=1";
+    private static final String G204_URL
+        = "http://s.example.com/generate_204?ip=0.0.0.0&id=1";
+
+    // Reader that returns at most given number of characters at each read.
+    // And it counts characters read.
+    private static class ChunkedReader extends Reader {
+        private final Reader    _mRdr;
+        private final int       _mChunk;
+        int                     _mRead = 0;
+
+        ChunkedReader(String s, int chunk) {
+            _mRdr = new StringReader(s);
+            _mChunk = chunk;
+        }
+
+        @Override
+        public int
+        read(char[] cbuf, int off, int len) throws IOException {
+            int n = _mRdr.read(cbuf, off, Math.min(len, _mChunk));
+            if (n > 0)
+                _mRead += n;
+            return n;
+        }
+
+        @Override
+        public void
+        close() throws IOException {
+            _mRdr.close();
+        }
+    }
+
+    private static String
+    config(boolean adaptive) {
+        // generate_204 url comes first. So, it is found only if quotes before it are tracked correctly.
+        return "var beacon = \"" + G204_URL_RAW + "\";"
+               + "var ytplayer = ytplayer || {};"
+               + "ytplayer.config = {\"args\": {"
+               + "\"title\": \"He said \\\"hello\\\"\", "
+               + "\"url_encoded_fmt_stream_map\": \"" + STREAM_MAP + "\", "
+               + (adaptive? "\"adaptive_fmts\": \"" + ADAPTIVE_MAP + "\", ": "")
+               + "\"ptk\": \"youtube\"}, "
+               + "\"assets\": {\"js\": \"\\/\\/s.example.com\\/player.js\"}};";
+    }
+
+    private static String
+    page(String beforeScript, String script, String afterScript) {
+        return "<!DOCTYPE html><html><head><title>video</title></head><body>"
+               + beforeScript
+               + "<script type=\"text/javascript\">" + script + "</script>"
+               + afterScript
+               + "</body></html>";
+    }
+
+    private static String
+    padding(int len) {
+        StringBuilder sb = new StringBuilder(len);
+        while (sb.length() < len)
+            sb.append("<div class=\"row\">text</div>\n");
+        sb.setLength(len);
+        return sb.toString();
+    }
+
+    private static YTPageScanner.Result
+    scan(String page) throws IOException {
+        return YTPageScanner.scan(new StringReader(page));
+    }
+
+    private static void
+    assertFound(YTPageScanner.Result r, boolean adaptive) {
+        assertEquals(STREAM_MAP, r.streamMap);
+        assertEquals(G204_URL, r.generate204Url);
+        if (adaptive)
+            assertEquals(ADAPTIVE_MAP, r.adaptiveMap);
+        else
+            assertNull(r.adaptiveMap);
+    }
+
+    public void
+    testBasic() throws Exception {
+        assertFound(scan(page("", config(true), "")), true);
+    }
+
+    public void
+    testEscapedQuotes() throws Exception {
+        String script = "var msg = \"a \\\"quoted\\\" \\\\\"; var esc = 'it\\'s \"x\"';" + config(true);
+        assertFound(scan(page("", script, "")), true);
+    }
+
+    public void
+    testStrayQuoteInHtmlText() throws Exception {
+        // Quotes outside of script don't start string.
+        String text = "<p>Screen is 6\" wide.</p><a href=\"/x\" title='y'>don't</a>";
+        assertFound(scan(page(text, config(true), "")), true);
+    }
+
+    public void
+    testSingleQuotedJs() throws Exception {
+        // Double quote in single-quoted string doesn't start string.
+        String script = "var s = 'say \"hi';" + config(true);
+        assertFound(scan(page("", script, "")), true);
+    }
+
+    public void
+    testUnterminatedStringInOtherScript() throws Exception {
+        // String state is reset at the end of script element.
+        String other = "<script>var broken = \"oops</script>";
+        assertFound(scan(page(other, config(true), "")), true);
+    }
+
+    public void
+    testMarkerOutsideScriptIsIgnored() throws Exception {
+        String text = "<pre>\"url_encoded_fmt_stream_map\": \"itag=5\"</pre>";
+        assertFound(scan(page(text, config(true), "")), true);
+    }
+
+    public void
+    testMarkersSplitAcrossReads() throws Exception {
+        String page = page("", config(true), "");
+        for (int chunk = 1; chunk <= 7; chunk++)
+            assertFound(YTPageScanner.scan(new ChunkedReader(page, chunk)), true);
+    }
+
+    public void
+    testMarkerSplitAtBufferBoundary() throws Exception {
+        String prefix = "<script>var a = 1;";
+        String cfg = config(true);
+        // Stream map marker starts just before end of first read buffer.
+        int markerAt = cfg.indexOf("\"url_encoded_fmt_stream_map\"");
+        String fill = padding(YTPageScanner.READ_BUFSZ - 10 - markerAt - prefix.length()
+                              - "<!DOCTYPE html><html><head><title>video</title></head><body>".length());
+        String page = "<!DOCTYPE html><html><head><title>video</title></head><body>"
+                      + fill + prefix + cfg + "</script></body></html>";
+        assertFound(scan(page), true);
+    }
+
+    public void
+    testMissingAdaptiveMap() throws Exception {
+        // Scanning stops after limit once others are found. Rest of page is not read.
+        String page = page("", config(false), padding(4 * YTPageScanner.ADAPTIVE_SCAN_LIMIT));
+        ChunkedReader rdr = new ChunkedReader(page, 1024);
+        assertFound(YTPageScanner.scan(rdr), false);
+        assertTrue(rdr._mRead < page.length());
+    }
+
+    public void
+    testStopsWhenAllFound() throws Exception {
+        String page = page("", config(true), padding(4 * YTPageScanner.ADAPTIVE_SCAN_LIMIT));
+        ChunkedReader rdr = new ChunkedReader(page, 1024);
+        assertFound(YTPageScanner.scan(rdr), true);
+        assertTrue(rdr._mRead < YTPageScanner.ADAPTIVE_SCAN_LIMIT);
+    }
+
+    public void
+    testNothingFound() throws Exception {
+        YTPageScanner.Result r = scan(page("", "var a = \"b\";", ""));
+        assertNull(r.streamMap);
+        assertNull(r.adaptiveMap);
+        assertNull(r.generate204Url);
+    }
+}
@@ -0,0 +1,385 @@
+/******************************************************************************
+ *    Copyright (C) 2012, 2013, 2014 Younghyung Cho. <yhcting77@gmail.com>
+ *
+ *    This file is part of NetMBuddy.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as
+ *    published by the Free Software Foundation either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License
+ *    (<http://www.gnu.org/licenses/lgpl.html>) for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.	If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+package free.yhc.netmbuddy.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+// Fixtures are built here instead of being committed as binary files.
+// Each fixture is small mp4 file that has one video and one audio track
+//   whose chunks are interleaved in 'mdat' - like Youtube's muxed streams.
+public class Mp4UtilsTest extends TestCase {
+    private File mDir;
+
+    // Sample sizes of each chunk. ex. { { 3, 5 }, { 7 } } : 2 chunks. First chunk has 2 samples.
+    private static class Track {
+        final String    handler;
+        final int[][]   chunks;
+        long[]          offsets;
+        Track(String aHandler, int[][] aChunks) {
+            handler = aHandler;
+            chunks = aChunks;
+            offsets = new long[aChunks.length];
+        }
+    }
+
+    @Override
+    protected void
+    setUp() throws Exception {
+        mDir = File.createTempFile("mp4utils", null);
+        mDir.delete();
+        assertTrue(mDir.mkdirs());
+    }
+
+    @Override
+    protected void
+    tearDown() throws Exception {
+        for (File f : mDir.listFiles())
+            f.delete();
+        mDir.delete();
+    }
+
+    // ------------------------------------------------------------------------
+    // Fixture builder
+    // ------------------------------------------------------------------------
+    private static byte[]
+    box(String type, byte[]... payloads) throws IOException {
+        int size = 8;
+        for (byte[] p : payloads)
+            size += p.length;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(size);
+        dos.writeBytes(type);
+        for (byte[] p : payloads)
+            dos.write(p);
+        return bos.toByteArray();
+    }
+
+    private static byte[]
+    ints(long... vs) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        for (long v : vs)
+            dos.writeInt((int)v);
+        return bos.toByteArray();
+    }
+
+    private static byte[]
+    longs(long... vs) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        for (long v : vs)
+            dos.writeLong(v);
+        return bos.toByteArray();
+    }
+
+    /**
+     * Data of sample is filled with bytes that are unique to track, chunk and sample.
+     */
+    private static byte[]
+    chunkData(Track t, int chunk) {
+        int sz = 0;
+        for (int ssz : t.chunks[chunk])
+            sz += ssz;
+        byte[] b = new byte[sz];
+        int seed = ("soun".equals(t.handler)? 0x80: 0x10) + chunk * 16;
+        int wi = 0;
+        for (int s = 0; s < t.chunks[chunk].length; s++) {
+            for (int i = 0; i < t.chunks[chunk][s]; i++)
+                b[wi++] = (byte)(seed + s * 3 + i);
+        }
+        return b;
+    }
+
+    private static byte[]
+    trak(Track t, boolean co64) throws IOException {
+        // 'stsc' : new entry only when number of samples per chunk is changed.
+        ArrayList<long[]> stsc = new ArrayList<long[]>();
+        ArrayList<Long> sizes = new ArrayList<Long>();
+        for (int c = 0; c < t.chunks.length; c++) {
+            if (stsc.isEmpty()
+                || stsc.get(stsc.size() - 1)[1] != t.chunks[c].length)
+                stsc.add(new long[] { c + 1, t.chunks[c].length, 1 });
+            for (int ssz : t.chunks[c])
+                sizes.add((long)ssz);
+        }
+        ByteArrayOutputStream stscb = new ByteArrayOutputStream();
+        stscb.write(ints(0, stsc.size()));
+        for (long[] e : stsc)
+            stscb.write(ints(e));
+        ByteArrayOutputStream stszb = new ByteArrayOutputStream();
+        stszb.write(ints(0, 0, sizes.size()));
+        for (long sz : sizes)
+            stszb.write(ints(sz));
+        byte[] co = co64?
+                    box("co64", ints(0, t.offsets.length), longs(t.offsets)):
+                    box("stco", ints(0, t.offsets.length), ints(t.offsets));
+        byte[] hdlr = box("hdlr", ints(0, 0), t.handler.getBytes(), new byte[13]);
+        return box("trak",
+                   box("tkhd", new byte[84]),
+                   box("mdia",
+                       box("mdhd", new byte[24]),
+                       hdlr,
+                       box("minf",
+                           box("stbl",
+                               box("stsc", stscb.toByteArray()),
+                               box("stsz", stszb.toByteArray()),
+                               co))));
+    }
+
+    /**
+     * Layout : ftyp | moov(mvhd, video trak, audio trak) | mdat(chunks of tracks interleaved)
+     */
+    private File
+    buildMp4(String name, Track video, Track audio, boolean co64) throws IOException {
+        byte[] ftyp = box("ftyp", "isom".getBytes(), ints(0x200), "isomavc1".getBytes());
+        byte[] mvhd = box("mvhd", new byte[100]);
+        // Size of 'moov' doesn't depend on value of offsets.
+        int moovSize = box("moov", mvhd, trak(video, co64), trak(audio, co64)).length;
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        long off = ftyp.length + moovSize + 8;
+        int nrChunks = Math.max(video.chunks.length, audio.chunks.length);
+        for (int c = 0; c < nrChunks; c++) {
+            for (Track t : new Track[] { video, audio }) {
+                if (c >= t.chunks.length)
+                    continue;
+                byte[] b = chunkData(t, c);
+                t.offsets[c] = off + data.size();
+                data.write(b);
+            }
+        }
+
+        File f = new File(mDir, name);
+        FileOutputStream fos = new FileOutputStream(f);
+        try {
+            fos.write(ftyp);
+            fos.write(box("moov", mvhd, trak(video, co64), trak(audio, co64)));
+            fos.write(box("mdat", data.toByteArray()));
+        } finally {
+            fos.close();
+        }
+        return f;
+    }
+
+    // ------------------------------------------------------------------------
+    // Output parser
+    // ------------------------------------------------------------------------
+    private static int
+    readInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24)
+               | ((b[off + 1] & 0xff) << 16)
+               | ((b[off + 2] & 0xff) << 8)
+               | (b[off + 3] & 0xff);
+    }
+
+    private static String
+    type(byte[] b, int off) {
+        return new String(b, off + 4, 4);
+    }
+
+    /**
+     * @return
+     *   offsets of child boxes in [start, end).
+     */
+    private static ArrayList<Integer>
+    children(byte[] b, int start, int end) {
+        ArrayList<Integer> r = new ArrayList<Integer>();
+        for (int off = start; off < end; off += readInt(b, off))
+            r.add(off);
+        return r;
+    }
+
+    private static int
+    child(byte[] b, int parent, String type) {
+        for (int off : children(b, parent + 8, parent + readInt(b, parent))) {
+            if (type.equals(type(b, off)))
+                return off;
+        }
+        fail("No box : " + type);
+        return -1;
+    }
+
+    private static byte[]
+    readAll(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            byte[] b = new byte[(int)raf.length()];
+            raf.readFully(b);
+            return b;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Check that output has only audio track and its chunk offsets point to audio data.
+     */
+    private void
+    checkAudioOnly(File out, Track audio, boolean co64) throws Exception {
+        Mp4Utils.verify(out);
+
+        byte[] b = readAll(out);
+        ArrayList<Integer> top = children(b, 0, b.length);
+        assertEquals(3, top.size());
+        assertEquals("ftyp", type(b, top.get(0)));
+        assertEquals("moov", type(b, top.get(1)));
+        assertEquals("mdat", type(b, top.get(2)));
+
+        int moov = top.get(1);
+        int nrTrak = 0;
+        for (int off : children(b, moov + 8, moov + readInt(b, moov))) {
+            if ("trak".equals(type(b, off)))
+                nrTrak++;
+        }
+        assertEquals(1, nrTrak);
+        // Other boxes in 'moov' are kept.
+        child(b, moov, "mvhd");
+
+        int trak = child(b, moov, "trak");
+        int mdia = child(b, trak, "mdia");
+        assertEquals("soun", type(b, child(b, mdia, "hdlr") + 8 + 4));
+        int stbl = child(b, child(b, mdia, "minf"), "stbl");
+        int co = child(b, stbl, co64? "co64": "stco");
+        assertEquals(audio.chunks.length, readInt(b, co + 12));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int c = 0; c < audio.chunks.length; c++) {
+            byte[] cd = chunkData(audio, c);
+            long off = co64?
+                       ((long)readInt(b, co + 16 + c * 8) << 32) | (readInt(b, co + 16 + c * 8 + 4) & 0xffffffffL):
+                       readInt(b, co + 16 + c * 4) & 0xffffffffL;
+            assertTrue(Arrays.equals(cd, Arrays.copyOfRange(b, (int)off, (int)off + cd.length)));
+            expected.write(cd);
+        }
+        // 'mdat' has only audio data.
+        int mdat = top.get(2);
+        assertTrue(Arrays.equals(expected.toByteArray(), Arrays.copyOfRange(b, mdat + 8, b.length)));
+    }
+
+    // ------------------------------------------------------------------------
+    // Tests
+    // ------------------------------------------------------------------------
+    public void
+    testExtractAudioStco() throws Exception {
+        Track video = new Track("vide", new int[][] { { 40, 50 }, { 60, 70 }, { 80, 90 } });
+        Track audio = new Track("soun", new int[][] { { 5, 6 }, { 7, 8 }, { 9, 10 } });
+        File in = buildMp4("stco.mp4", video, audio, false);
+        Mp4Utils.verify(in);
+        File out = new File(mDir, "stco.m4a");
+        Mp4Utils.extractAudio(in, out);
+        checkAudioOnly(out, audio, false);
+    }
+
+    public void
+    testExtractAudioCo64() throws Exception {
+        Track video = new Track("vide", new int[][] { { 100 }, { 200 } });
+        Track audio = new Track("soun", new int[][] { { 11, 12, 13 }, { 14, 15, 16 } });
+        File in = buildMp4("co64.mp4", video, audio, true);
+        Mp4Utils.verify(in);
+        File out = new File(mDir, "co64.m4a");
+        Mp4Utils.extractAudio(in, out);
+        checkAudioOnly(out, audio, true);
+    }
+
+    public void
+    testExtractAudioMultiEntryStsc() throws Exception {
+        // Number of samples per chunk is changed. So, 'stsc' has several entries.
+        // Tracks also have different number of chunks.
+        Track video = new Track("vide", new int[][] { { 30 }, { 31, 32 }, { 33 }, { 34 }, { 35, 36, 37 } });
+        Track audio = new Track("soun", new int[][] { { 1, 2 }, { 3, 4 }, { 5 }, { 6, 7, 8 } });
+        File in = buildMp4("stsc.mp4", video, audio, false);
+        File out = new File(mDir, "stsc.m4a");
+        Mp4Utils.extractAudio(in, out);
+        checkAudioOnly(out, audio, false);
+    }
+
+    public void
+    testExtractAudioNoAudioTrack() throws Exception {
+        Track video = new Track("vide", new int[][] { { 10 } });
+        Track other = new Track("text", new int[][] { { 3 } });
+        File in = buildMp4("noaudio.mp4", video, other, false);
+        try {
+            Mp4Utils.extractAudio(in, new File(mDir, "noaudio.m4a"));
+            fail();
+        } catch (Mp4Utils.FormatException expected) { }
+    }
+
+    public void
+    testVerifyTruncated() throws Exception {
+        Track video = new Track("vide", new int[][] { { 10 }, { 20 } });
+        Track audio = new Track("soun", new int[][] { { 3 }, { 4 } });
+        File f = buildMp4("truncated.mp4", video, audio, false);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+        try {
+            Mp4Utils.verify(f);
+            fail();
+        } catch (Mp4Utils.FormatException expected) { }
+    }
+
+    public void
+    testVerifyGarbageAtEnd() throws Exception {
+        Track video = new Track("vide", new int[][] { { 10 } });
+        Track audio = new Track("soun", new int[][] { { 3 } });
+        File f = buildMp4("garbage.mp4", video, audio, false);
+        FileOutputStream fos = new FileOutputStream(f, true);
+        try {
+            fos.write(new byte[] { 1, 2, 3 });
+        } finally {
+            fos.close();
+        }
+        try {
+            Mp4Utils.verify(f);
+            fail();
+        } catch (Mp4Utils.FormatException expected) { }
+    }
+
+    public void
+    testVerifyMissingMoov() throws Exception {
+        File f = new File(mDir, "nomoov.mp4");
+        FileOutputStream fos = new FileOutputStream(f);
+        try {
+            fos.write(box("ftyp", "isom".getBytes(), ints(0x200), "isom".getBytes()));
+            fos.write(box("mdat", new byte[16]));
+        } finally {
+            fos.close();
+        }
+        try {
+            Mp4Utils.verify(f);
+            fail();
+        } catch (Mp4Utils.FormatException expected) { }
+    }
+}